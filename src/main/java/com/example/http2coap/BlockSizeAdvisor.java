@@ -0,0 +1,362 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.MessageObserver;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Picks the Block2 size per CoAP device instead of the gateway wide
+ * PREFERRED_BLOCK_SIZE.
+ * <p>
+ * A device is only asked for a block size once it has answered with a Block2
+ * option on its own; the size it chose is the ceiling and the starting
+ * point, and later answers with smaller blocks lower the ceiling. From then
+ * on GET requests to the device carry an early Block2 option (RFC 7959,
+ * section 2.4) with the advised size, and the blockwise layer keeps that size
+ * for the remaining blocks.
+ * <p>
+ * The size is adapted AIMD style to the retransmissions seen on the path:
+ * after every window of requests to the device it grows by a fixed step if
+ * the share of retransmitted or timed out requests stayed below the loss
+ * threshold and is halved otherwise. Configured through Californium.properties:
+ * BLOCKWISE_ADAPTIVE_MIN_SIZE and BLOCKWISE_ADAPTIVE_MAX_SIZE (bytes),
+ * BLOCKWISE_ADAPTIVE_WINDOW (requests) and BLOCKWISE_ADAPTIVE_LOSS (ratio).
+ * <p>
+ * State is kept for at most {@code MAX_PEERS} devices that used blockwise
+ * transfers; a device that has not been talked to for {@code IDLE_MILLIS}
+ * makes room for others and starts over from its own choice. Served under {@code /metrics/blockwise}.
+ */
+public final class BlockSizeAdvisor implements MessageInterceptor, GatewayMetrics.Source {
+
+    public static final String MIN_SIZE = "BLOCKWISE_ADAPTIVE_MIN_SIZE";
+    public static final String MAX_SIZE = "BLOCKWISE_ADAPTIVE_MAX_SIZE";
+    public static final String WINDOW = "BLOCKWISE_ADAPTIVE_WINDOW";
+    public static final String LOSS = "BLOCKWISE_ADAPTIVE_LOSS";
+
+    private static final int DEFAULT_MIN_SIZE = 64;
+    private static final int DEFAULT_MAX_SIZE = 1024;
+    private static final int DEFAULT_WINDOW = 16;
+    private static final double DEFAULT_LOSS = 0.05;
+
+    /* additive increase per clean window, in bytes */
+    private static final int INCREASE = 64;
+
+    /* devices with an own state, the rest keeps the device's choice */
+    private static final int MAX_PEERS = 1024;
+    /* milliseconds after which an unused device state may be dropped */
+    static final long IDLE_MILLIS = 10 * 60 * 1000;
+
+    private static volatile BlockSizeAdvisor instance;
+
+    private final int minSize;
+    private final int maxSize;
+    private final int window;
+    private final double loss;
+
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+    private final LongAdder increases = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+    private volatile long nextSweep;
+
+    BlockSizeAdvisor(int minSize, int maxSize, int window, double loss) {
+        this.minSize = clamp(minSize);
+        this.maxSize = Math.max(this.minSize, clamp(maxSize));
+        this.window = window;
+        this.loss = loss;
+    }
+
+    /**
+     * @return the advisor configured from the standard NetworkConfig
+     */
+    public static BlockSizeAdvisor get() {
+        if (instance == null) {
+            synchronized (BlockSizeAdvisor.class) {
+                if (instance == null) {
+                    NetworkConfig config = NetworkConfig.getStandard();
+                    int minSize = config.getInt(MIN_SIZE);
+                    int maxSize = config.getInt(MAX_SIZE);
+                    int window = config.getInt(WINDOW);
+                    double loss = config.getFloat(LOSS);
+                    BlockSizeAdvisor advisor = new BlockSizeAdvisor(
+                            minSize > 0 ? minSize : DEFAULT_MIN_SIZE,
+                            maxSize > 0 ? maxSize : DEFAULT_MAX_SIZE,
+                            window > 0 ? window : DEFAULT_WINDOW,
+                            loss > 0 ? loss : DEFAULT_LOSS);
+                    GatewayMetrics.register("blockwise", advisor);
+                    instance = advisor;
+                }
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public void sendRequest(final Request request) {
+        if (isRetransmission(request)) {
+            return;
+        }
+        String peer = request.getDestination() + ":" + request.getDestinationPort();
+        request.addMessageObserver(new TransmissionObserver(peer, advise(peer, request)));
+    }
+
+    /**
+     * Adds an early Block2 option to a fresh GET if the device uses blockwise
+     * transfers.
+     *
+     * @return the size exponent asked for, -1 if none
+     */
+    private int advise(String peer, Request request) {
+        if (request.getCode() != Code.GET || request.getOptions().hasBlock2() || request.getOptions().hasObserve()) {
+            return -1;
+        }
+        int szx = advise(peer);
+        if (szx >= 0) {
+            request.getOptions().setBlock2(szx, false, 0);
+        }
+        return szx;
+    }
+
+    /**
+     * @return the size exponent for the device, -1 if it has not used
+     *         blockwise transfers yet
+     */
+    int advise(String peer) {
+        Peer state = peers.get(peer);
+        if (state == null) {
+            return -1;
+        }
+        synchronized (state) {
+            return state.ceiling < 0 ? -1 : Math.min(state.ceiling, szx(state.size));
+        }
+    }
+
+    /**
+     * Records the block size of a response.
+     *
+     * @param requested the size exponent asked for, -1 if none
+     * @param szx the size exponent the device answered with
+     */
+    void onBlock(String peer, int requested, int szx) {
+        Peer state = peer(peer);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.lastUsed = System.currentTimeMillis();
+            if (state.ceiling < 0) {
+                // the device's own choice, start from there
+                state.ceiling = Math.min(szx, szx(maxSize));
+                state.size = size(state.ceiling);
+            } else if (requested < 0 || szx < requested) {
+                // the device does not support the size we asked for
+                state.ceiling = Math.min(state.ceiling, szx);
+                state.size = Math.min(state.size, size(state.ceiling));
+            }
+        }
+    }
+
+    /**
+     * Counts a request to a device that uses blockwise transfers and adapts
+     * the block size at the end of a window.
+     *
+     * @param lost true if the request was retransmitted or timed out
+     */
+    void onTransmission(String peer, boolean lost) {
+        Peer state = peers.get(peer);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.lastUsed = System.currentTimeMillis();
+            state.sent++;
+            if (lost) {
+                state.lost++;
+            }
+            if (state.sent < window) {
+                return;
+            }
+            int before = szx(state.size);
+            if (state.lost > state.sent * loss) {
+                state.size = Math.max(minSize, state.size / 2);
+            } else {
+                int limit = state.ceiling < 0 ? maxSize : size(state.ceiling);
+                state.size = Math.min(limit, state.size + INCREASE);
+            }
+            int after = szx(state.size);
+            if (state.ceiling >= 0 && after != before) {
+                (after > before ? increases : decreases).increment();
+            }
+            state.sent = 0;
+            state.lost = 0;
+        }
+    }
+
+    private Peer peer(String peer) {
+        Peer state = peers.get(peer);
+        if (state == null) {
+            if (peers.size() >= MAX_PEERS) {
+                evictIdle(System.currentTimeMillis());
+                if (peers.size() >= MAX_PEERS) {
+                    return null;
+                }
+            }
+            Peer created = new Peer(maxSize);
+            state = peers.putIfAbsent(peer, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Drops the devices not talked to for {@link #IDLE_MILLIS}, at most once
+     * per tenth of it.
+     *
+     * @return the number of devices dropped
+     */
+    int evictIdle(long now) {
+        if (now < nextSweep) {
+            return 0;
+        }
+        nextSweep = now + IDLE_MILLIS / 10;
+        int evicted = 0;
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            long lastUsed;
+            synchronized (entry.getValue()) {
+                lastUsed = entry.getValue().lastUsed;
+            }
+            if (now - lastUsed >= IDLE_MILLIS && peers.remove(entry.getKey(), entry.getValue())) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    int peers() {
+        return peers.size();
+    }
+
+    /**
+     * @return the largest size exponent whose block fits in size bytes
+     */
+    private static int szx(int size) {
+        return Math.max(0, Math.min(6, 31 - Integer.numberOfLeadingZeros(size) - 4));
+    }
+
+    private static int size(int szx) {
+        return 1 << (szx + 4);
+    }
+
+    private static int clamp(int size) {
+        return Math.max(16, Math.min(1024, size));
+    }
+
+    private static boolean isRetransmission(Request request) {
+        for (MessageObserver observer : request.getMessageObservers()) {
+            if (observer instanceof TransmissionObserver) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+    }
+
+    @Override
+    public void collect(Map<String, Number> metrics) {
+        metrics.put("increases", increases.sum());
+        metrics.put("decreases", decreases.sum());
+        for (Map.Entry<String, Peer> peer : peers.entrySet()) {
+            int szx = advise(peer.getKey());
+            if (szx >= 0) {
+                metrics.put("size." + peer.getKey().replace("/", ""), size(szx));
+            }
+        }
+    }
+
+    private static final class Peer {
+
+        /* the largest size exponent the device accepts, -1 until known */
+        private int ceiling = -1;
+        /* the AIMD controlled block size in bytes */
+        private int size;
+        /* requests and lost requests in the current window */
+        private int sent;
+        private int lost;
+        /* when the device was last talked to */
+        private long lastUsed = System.currentTimeMillis();
+
+        Peer(int size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Tracks the retransmissions of a request until its response or timeout.
+     */
+    private class TransmissionObserver extends MessageObserverAdapter {
+
+        private final String peer;
+        private final int requested;
+        private volatile boolean retransmitted;
+        private volatile boolean done;
+
+        TransmissionObserver(String peer, int requested) {
+            this.peer = peer;
+            this.requested = requested;
+        }
+
+        @Override
+        public void onRetransmission() {
+            retransmitted = true;
+        }
+
+        @Override
+        public void onResponse(Response response) {
+            if (response.getOptions().hasBlock2()) {
+                onBlock(peer, requested, response.getOptions().getBlock2().getSzx());
+            }
+            finish(retransmitted);
+        }
+
+        @Override
+        public void onTimeout() {
+            finish(true);
+        }
+
+        private void finish(boolean lost) {
+            if (!done) {
+                done = true;
+                onTransmission(peer, lost);
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.deduplication.Deduplicator;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Deduplicator with a fixed memory footprint.
+ * <p>
+ * Keys are packed into a single long (MID, source port and the IPv4 address or
+ * a 32 bit hash of an IPv6 address) and kept in preallocated primitive arrays,
+ * so the heap used by the store does not depend on the message rate. IPv6
+ * entries also keep a reference to the full source address, which lookups
+ * compare, so sources whose hashes collide are never mistaken for each other. Entries
+ * expire through a timing wheel: every tick drops exactly the entries that were
+ * added one exchange lifetime ago, instead of sweeping the whole store.
+ * <p>
+ * The capacity is only a bound: when the store is full the oldest entry is
+ * evicted and counted. Overload is judged by the insert rate over a short
+ * window instead, so a full store alone never makes the proxy shed load: the
+ * deduplicator reports itself as overloaded while the rate is above the
+ * configured maximum, and until it has fallen below the low-water fraction of
+ * it again.
+ */
+public class BoundedDeduplicator implements Deduplicator {
+
+    private static final Logger LOGGER = Logger.getLogger(BoundedDeduplicator.class.getCanonicalName());
+
+    private static final int NONE = -1;
+
+    /* fraction of the maximum rate below which the overload flag is cleared again */
+    private static final double LOW_WATER = 0.9;
+    /* span of the insert rate measurement */
+    private static final long RATE_WINDOW = 5000;
+
+    private final int maxEntries;
+    private final long tickMillis;
+    private final double maxRate;
+
+    /* entry pool, indexed by entry id */
+    private final long[] entryKey;
+    /* the source address of IPv6 entries, null for IPv4 */
+    private final byte[][] entryAddress;
+    private final Exchange[] entryExchange;
+    private final int[] entryPrev;
+    private final int[] entryNext;
+    private final int[] entryBucket;
+    private int freeList;
+    private int size;
+
+    /* open addressing index: entry id + 1, 0 marks a free slot */
+    private final int[] table;
+    private final int mask;
+
+    /* timing wheel: a doubly linked list of entry ids per tick */
+    private final int[] wheelHead;
+    private final int[] wheelTail;
+    private int currentBucket;
+
+    /* inserts per tick over the rate window, as a ring */
+    private final int[] tickInserts;
+    private int tickInsertsIndex;
+    private int insertsInTick;
+    private long insertsInWindow;
+
+    private volatile boolean overloaded;
+    private boolean evicting;
+    private long evictions;
+    private long duplicates;
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> ticker;
+
+    /**
+     * @param maxEntries the hard limit of remembered message IDs
+     * @param lifetime the time in milliseconds a message ID is remembered
+     * @param tickMillis the expiry resolution in milliseconds
+     */
+    public BoundedDeduplicator(int maxEntries, long lifetime, long tickMillis) {
+        this(maxEntries, lifetime, tickMillis, 0);
+    }
+
+    /**
+     * @param maxEntries the hard limit of remembered message IDs
+     * @param lifetime the time in milliseconds a message ID is remembered
+     * @param tickMillis the expiry resolution in milliseconds
+     * @param maxRate the new message IDs per second above which the
+     *        deduplicator reports overload, 0 to never report it
+     */
+    public BoundedDeduplicator(int maxEntries, long lifetime, long tickMillis, double maxRate) {
+        if (maxEntries <= 0 || lifetime <= 0 || tickMillis <= 0 || maxRate < 0) {
+            throw new IllegalArgumentException("maxEntries, lifetime and tickMillis must be positive, maxRate not negative");
+        }
+        this.maxEntries = maxEntries;
+        this.tickMillis = tickMillis;
+        this.maxRate = maxRate;
+        tickInserts = new int[(int) Math.max(1, (RATE_WINDOW + tickMillis - 1) / tickMillis)];
+
+        entryKey = new long[maxEntries];
+        entryAddress = new byte[maxEntries][];
+        entryExchange = new Exchange[maxEntries];
+        entryPrev = new int[maxEntries];
+        entryNext = new int[maxEntries];
+        entryBucket = new int[maxEntries];
+
+        int tableSize = Integer.highestOneBit(Math.max(maxEntries * 2 - 1, 1)) << 1;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+
+        int buckets = (int) ((lifetime + tickMillis - 1) / tickMillis) + 1;
+        wheelHead = new int[buckets];
+        wheelTail = new int[buckets];
+
+        reset();
+    }
+
+    private void reset() {
+        Arrays.fill(table, 0);
+        Arrays.fill(entryExchange, null);
+        Arrays.fill(entryAddress, null);
+        Arrays.fill(wheelHead, NONE);
+        Arrays.fill(wheelTail, NONE);
+        for (int id = 0; id < maxEntries; id++) {
+            entryNext[id] = id + 1 < maxEntries ? id + 1 : NONE;
+        }
+        freeList = 0;
+        size = 0;
+        Arrays.fill(tickInserts, 0);
+        insertsInTick = 0;
+        insertsInWindow = 0;
+        overloaded = false;
+        evicting = false;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (ticker == null && executor != null) {
+            ticker = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    advance();
+                }
+            }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+    }
+
+    @Override
+    public synchronized void setExecutor(ScheduledExecutorService executor) {
+        stop();
+        this.executor = executor;
+    }
+
+    @Override
+    public Exchange findPrevious(KeyMID key, Exchange exchange) {
+        long packed = MidKeys.pack(key);
+        byte[] ipv6 = MidKeys.ipv6Address(key);
+        synchronized (this) {
+            int id = lookup(packed, ipv6);
+            if (id != NONE) {
+                duplicates++;
+                return entryExchange[id];
+            }
+            insert(packed, ipv6, exchange);
+            return null;
+        }
+    }
+
+    @Override
+    public Exchange find(KeyMID key) {
+        long packed = MidKeys.pack(key);
+        byte[] ipv6 = MidKeys.ipv6Address(key);
+        synchronized (this) {
+            int id = lookup(packed, ipv6);
+            return id == NONE ? null : entryExchange[id];
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        reset();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return true while message IDs arrive faster than the maximum rate
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * @return the new message IDs per second over the rate window
+     */
+    public synchronized double getRate() {
+        return insertsInWindow * 1000.0 / (tickInserts.length * tickMillis);
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Moves the wheel by one tick, drops the entries that have reached their
+     * lifetime and updates the insert rate.
+     */
+    synchronized void advance() {
+        currentBucket = (currentBucket + 1) % wheelHead.length;
+        int id = wheelHead[currentBucket];
+        while (id != NONE) {
+            int next = entryNext[id];
+            remove(id);
+            id = next;
+        }
+        if (evicting && freeList != NONE) {
+            evicting = false;
+            LOGGER.info("Deduplicator no longer full, " + evictions + " entries evicted so far");
+        }
+
+        tickInsertsIndex = (tickInsertsIndex + 1) % tickInserts.length;
+        insertsInWindow += insertsInTick - tickInserts[tickInsertsIndex];
+        tickInserts[tickInsertsIndex] = insertsInTick;
+        insertsInTick = 0;
+        if (maxRate > 0) {
+            double rate = getRate();
+            if (!overloaded && rate > maxRate) {
+                overloaded = true;
+                LOGGER.warning("Deduplicator overloaded, " + (long) rate + " new message IDs/s");
+            } else if (overloaded && rate < maxRate * LOW_WATER) {
+                overloaded = false;
+                LOGGER.info("Deduplicator recovered from overload, " + (long) rate + " new message IDs/s");
+            }
+        }
+    }
+
+    private void insert(long key, byte[] ipv6, Exchange exchange) {
+        if (freeList == NONE) {
+            evictOldest();
+        }
+        int id = freeList;
+        freeList = entryNext[id];
+
+        entryKey[id] = key;
+        entryAddress[id] = ipv6;
+        entryExchange[id] = exchange;
+
+        // append to the bucket of the current tick
+        entryBucket[id] = currentBucket;
+        entryPrev[id] = wheelTail[currentBucket];
+        entryNext[id] = NONE;
+        if (wheelTail[currentBucket] == NONE) {
+            wheelHead[currentBucket] = id;
+        } else {
+            entryNext[wheelTail[currentBucket]] = id;
+        }
+        wheelTail[currentBucket] = id;
+
+        int slot = slot(key);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+        size++;
+        insertsInTick++;
+    }
+
+    private void evictOldest() {
+        // the bucket after the current one holds the oldest entries
+        for (int i = 1; i <= wheelHead.length; i++) {
+            int bucket = (currentBucket + i) % wheelHead.length;
+            if (wheelHead[bucket] != NONE) {
+                remove(wheelHead[bucket]);
+                evictions++;
+                if (!evicting) {
+                    evicting = true;
+                    LOGGER.warning("Deduplicator full (" + maxEntries + " entries), evicting before lifetime");
+                }
+                return;
+            }
+        }
+    }
+
+    private int lookup(long key, byte[] ipv6) {
+        int slot = slot(key);
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (entryKey[id] == key && Arrays.equals(entryAddress[id], ipv6)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private void remove(int id) {
+        // unlink from the wheel
+        int bucket = entryBucket[id];
+        int prev = entryPrev[id];
+        int next = entryNext[id];
+        if (prev == NONE) {
+            wheelHead[bucket] = next;
+        } else {
+            entryNext[prev] = next;
+        }
+        if (next == NONE) {
+            wheelTail[bucket] = prev;
+        } else {
+            entryPrev[next] = prev;
+        }
+
+        // delete from the index with backward shifting
+        int hole = slot(entryKey[id]);
+        while (table[hole] != id + 1) {
+            hole = (hole + 1) & mask;
+        }
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (table[slot] == 0) {
+                break;
+            }
+            int ideal = slot(entryKey[table[slot] - 1]);
+            boolean inRange = hole <= slot ? (hole < ideal && ideal <= slot) : (hole < ideal || ideal <= slot);
+            if (!inRange) {
+                table[hole] = table[slot];
+                hole = slot;
+            }
+        }
+        table[hole] = 0;
+
+        entryExchange[id] = null;
+        entryAddress[id] = null;
+        entryNext[id] = freeList;
+        freeList = id;
+        size--;
+    }
+
+    private int slot(long key) {
+        // murmur3 finalizer
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    /**
+     * Packs a {@link KeyMID} into a long. Californium does not expose the
+     * fields of the key, they are read once through reflection.
+     */
+    static final class MidKeys {
+
+        private static final Field MID;
+        private static final Field ADDRESS;
+        private static final Field PORT;
+
+        static {
+            try {
+                MID = KeyMID.class.getDeclaredField("MID");
+                ADDRESS = KeyMID.class.getDeclaredField("address");
+                PORT = KeyMID.class.getDeclaredField("port");
+                MID.setAccessible(true);
+                ADDRESS.setAccessible(true);
+                PORT.setAccessible(true);
+            } catch (NoSuchFieldException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        static long pack(KeyMID key) {
+            try {
+                return pack(MID.getInt(key), (byte[]) ADDRESS.get(key), PORT.getInt(key));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return the source address if it is an IPv6 address, which the
+         *         packed key only holds a hash of, null otherwise
+         */
+        static byte[] ipv6Address(KeyMID key) {
+            try {
+                byte[] address = (byte[]) ADDRESS.get(key);
+                return address.length == 4 ? null : address;
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static long pack(int mid, byte[] address, int port) {
+            int host = 0;
+            if (address.length == 4) {
+                host = (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16 | (address[2] & 0xFF) << 8 | (address[3] & 0xFF);
+            } else {
+                // IPv6 sources are folded into 32 bits, lookups compare the full address
+                host = Arrays.hashCode(address);
+                host ^= host >>> 16;
+                host *= 0x85ebca6b;
+                host ^= host >>> 13;
+            }
+            return ((long) host << 32) | ((long) (port & 0xFFFF) << 16) | (mid & 0xFFFF);
+        }
+
+        private MidKeys() {
+        }
+    }
+}
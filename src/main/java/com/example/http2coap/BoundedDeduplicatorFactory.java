@@ -0,0 +1,104 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.deduplication.Deduplicator;
+import org.eclipse.californium.core.network.deduplication.DeduplicatorFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Creates {@link BoundedDeduplicator}s when Californium.properties selects
+ * DEDUPLICATOR=DEDUPLICATOR_BOUNDED, and the stock deduplicators otherwise.
+ * <p>
+ * Keeps track of the running deduplicators it created so that the proxy can
+ * shed load while new message IDs arrive at any of them faster than
+ * BOUNDED_DEDUPLICATOR_MAX_RATE per second. A deduplicator is tracked from
+ * the start to the stop of its endpoint, so destroyed endpoints do not pin
+ * their preallocated stores.
+ * <p>
+ * Endpoints created before {@link #install()} get Californium's default
+ * factory, which does not know DEDUPLICATOR_BOUNDED; the application installs
+ * the factory before anything else runs.
+ */
+public class BoundedDeduplicatorFactory extends DeduplicatorFactory {
+
+    private static final Logger LOGGER = Logger.getLogger(BoundedDeduplicatorFactory.class.getCanonicalName());
+
+    public static final String DEDUPLICATOR_BOUNDED = "DEDUPLICATOR_BOUNDED";
+    public static final String MAX_ENTRIES = "BOUNDED_DEDUPLICATOR_MAX_ENTRIES";
+    public static final String TICK = "BOUNDED_DEDUPLICATOR_TICK";
+    public static final String MAX_RATE = "BOUNDED_DEDUPLICATOR_MAX_RATE";
+
+    private static final int DEFAULT_MAX_ENTRIES = 200000;
+    private static final long DEFAULT_TICK = 1000;
+
+    private static final CopyOnWriteArrayList<BoundedDeduplicator> RUNNING = new CopyOnWriteArrayList<BoundedDeduplicator>();
+
+    /**
+     * Makes Californium use this factory for all endpoints created afterwards.
+     */
+    public static synchronized void install() {
+        if (!(DeduplicatorFactory.getDeduplicatorFactory() instanceof BoundedDeduplicatorFactory)) {
+            DeduplicatorFactory.setDeduplicatorFactory(new BoundedDeduplicatorFactory());
+        }
+    }
+
+    @Override
+    public Deduplicator createDeduplicator(NetworkConfig config) {
+        if (!DEDUPLICATOR_BOUNDED.equals(config.getString(NetworkConfig.Keys.DEDUPLICATOR))) {
+            return super.createDeduplicator(config);
+        }
+        int maxEntries = config.getInt(MAX_ENTRIES);
+        long tick = config.getLong(TICK);
+        BoundedDeduplicator deduplicator = new BoundedDeduplicator(
+                maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES,
+                config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME),
+                tick > 0 ? tick : DEFAULT_TICK,
+                Math.max(0, config.getFloat(MAX_RATE))) {
+
+            @Override
+            public synchronized void start() {
+                super.start();
+                RUNNING.addIfAbsent(this);
+            }
+
+            @Override
+            public synchronized void stop() {
+                super.stop();
+                RUNNING.remove(this);
+            }
+        };
+        LOGGER.info("Using bounded deduplicator with " + deduplicator.getMaxEntries() + " entries");
+        return deduplicator;
+    }
+
+    /**
+     * @return true if new message IDs arrive at any bounded deduplicator
+     *         faster than its maximum rate
+     */
+    public static boolean isOverloaded() {
+        for (BoundedDeduplicator deduplicator : RUNNING) {
+            if (deduplicator.isOverloaded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static long getEvictions() {
+        long evictions = 0;
+        for (BoundedDeduplicator deduplicator : RUNNING) {
+            evictions += deduplicator.getEvictions();
+        }
+        return evictions;
+    }
+
+    /**
+     * @return the deduplicators of the running endpoints
+     */
+    public static List<BoundedDeduplicator> getDeduplicators() {
+        return RUNNING;
+    }
+}
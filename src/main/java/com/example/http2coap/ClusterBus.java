@@ -0,0 +1,23 @@
+package com.example.http2coap;
+
+/**
+ * Message bus connecting the gateway nodes of a cluster. Implementations
+ * deliver every published message to all subscribers of all nodes, including
+ * the publishing node; delivery may be asynchronous and is best effort.
+ * <p>
+ * Declare a bean of this type to plug in a real transport, the gateway falls
+ * back to a {@link LoopbackClusterBus} which makes it a single node cluster.
+ */
+public interface ClusterBus {
+
+    void publish(ClusterMessage message);
+
+    void subscribe(Listener listener);
+
+    void unsubscribe(Listener listener);
+
+    interface Listener {
+
+        void onMessage(ClusterMessage message);
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.http2coap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message exchanged between gateway nodes over the {@link ClusterBus}.
+ */
+public final class ClusterMessage {
+
+    public enum Type {
+        /** periodic liveness signal of a node */
+        HEARTBEAT,
+        /** a node shuts down and gives up its observations */
+        LEAVE,
+        /** a node has clients for a resource */
+        INTEREST,
+        /** the owner republishes an upstream notification */
+        NOTIFY,
+        /** a node no longer has clients for a resource */
+        WITHDRAW
+    }
+
+    private final Type type;
+    private final String node;
+    private final String resource;
+    private final String payload;
+
+    public ClusterMessage(Type type, String node, String resource, String payload) {
+        if (type == null || node == null) {
+            throw new NullPointerException("type and node must not be null");
+        }
+        this.type = type;
+        this.node = node;
+        this.resource = resource;
+        this.payload = payload;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Encodes the message for bus implementations that carry bytes.
+     */
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type.ordinal());
+            out.writeUTF(node);
+            writeNullable(out, resource);
+            writeNullable(out, payload);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static ClusterMessage fromBytes(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= Type.values().length) {
+            throw new IOException("Unknown message type " + ordinal);
+        }
+        return new ClusterMessage(Type.values()[ordinal], in.readUTF(), readNullable(in), readNullable(in));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            // not writeUTF, payloads may exceed 64k
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return type + " from " + node + (resource != null ? " for " + resource : "");
+    }
+}
@@ -1,37 +1,200 @@
 package com.example.http2coap;
 
+import com.google.common.base.Supplier;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.network.CoapEndpoint;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.proxy.resources.ForwardingResource;
 import org.eclipse.californium.proxy.resources.ProxyCoapClientResource;
 import org.eclipse.californium.proxy.resources.ProxyHttpClientResource;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 @Component
 public class Coap2HttpServer {
 
+    private final static Logger LOGGER = Logger.getLogger(Coap2HttpServer.class.getCanonicalName());
 
     @Value("${coapserver.port}")
     private int port;
 
-    private CoapServer coapProxy;
+    /**
+     * In fast-startup mode the CoAP listener is brought up on its own thread
+     * while Spring is still starting the HTTP listener.
+     */
+    @Value("${coapserver.fast-startup:false}")
+    private boolean fastStartup;
+
+    /**
+     * Number of UDP sockets bound to the port with SO_REUSEPORT, each with
+     * its own receiver threads and protocol stage.
+     */
+    @Value("${coapserver.sockets:1}")
+    private int sockets;
+
+    @Autowired
+    private ObserveStatePersistence observeState;
+
+    private volatile CoapServer coapProxy;
+
+    private final AtomicBoolean starting = new AtomicBoolean();
+    private final CountDownLatch started = new CountDownLatch(1);
+    /* why the start failed, null while starting and once started */
+    private volatile Throwable failure;
+
+    @PostConstruct
+    void prestart() {
+        if (fastStartup) {
+            Thread starter = new Thread(() -> {
+                try {
+                    start();
+                } catch (RuntimeException e) {
+                    // logged, and rethrown to whoever waits for the start
+                }
+            }, "coap-startup");
+            starter.setDaemon(true);
+            starter.start();
+        }
+    }
 
+    /**
+     * Starts the CoAP listener, or waits for the start already under way.
+     *
+     * @throws IllegalStateException if the listener could not be started
+     */
     public void start() {
-        ForwardingResource coap2coap = new ProxyCoapClientResource("coap2coap");
-        ForwardingResource coap2http = new ProxyHttpClientResource("coap2http");
+        if (!starting.compareAndSet(false, true)) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    started.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            checkStarted();
+            return;
+        }
+        try {
+            long st = System.currentTimeMillis();
+            // parse the translation tables here rather than on the first request
+            TranslationTables.preload();
+            startServer();
+            LOGGER.info(String.format("coap server started on port %d in %d ms", getPort(), System.currentTimeMillis() - st));
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            LOGGER.log(Level.SEVERE, "coap server failed to start", e);
+            throw e;
+        } finally {
+            started.countDown();
+        }
+    }
+
+    /**
+     * Waits for the CoAP listener to be up.
+     *
+     * @return false if the listener was not up within the timeout
+     * @throws IllegalStateException if the listener could not be started
+     */
+    public boolean awaitStarted(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!started.await(timeout, unit)) {
+            return false;
+        }
+        checkStarted();
+        return true;
+    }
+
+    private void checkStarted() {
+        Throwable cause = failure;
+        if (cause != null) {
+            throw new IllegalStateException("coap server failed to start", cause);
+        }
+    }
+
+    /**
+     * @return the bound port, which differs from the configured one when
+     *         the configured port is 0
+     */
+    public int getPort() {
+        if (coapProxy == null || coapProxy.getEndpoints().isEmpty()) {
+            return port;
+        }
+        return coapProxy.getEndpoints().get(0).getAddress().getPort();
+    }
+
+    private void startServer() {
+        // must be in place before the first endpoint is created
+        BoundedDeduplicatorFactory.install();
+
+        // coap+tcp:// and coap+ws:// targets go through the RFC 8323 transport
+        ForwardingResource coap2coap = new ProxyTransportResource("coap2coap", new ProxyCoapClientResource("coap2coap"));
+        ForwardingResource coap2http;
+        if (fastStartup) {
+            coap2http = new DeferredForwardingResource("coap2http", new Supplier<ForwardingResource>() {
+                @Override
+                public ForwardingResource get() {
+                    return new ProxyHttpClientResource("coap2http");
+                }
+            });
+        } else {
+            coap2http = new ProxyHttpClientResource("coap2http");
+        }
+
+        // the proxy resources forward through the default endpoints
+        OutboundEndpoints.get();
+        if (OutboundEndpoints.isSecureConfigured()) {
+            OutboundEndpoints.secure();
+        }
 
         // Create CoAP Server on PORT with proxy resources form CoAP to CoAP and HTTP
-        coapProxy = new CoapServer(port);
+        NetworkConfig config = NetworkConfig.getStandard();
+        coapProxy = new CoapServer(config);
+        int count = socketCount();
+        for (int i = 0; i < count; i++) {
+            GatewayUdpConnector connector = new GatewayUdpConnector(new InetSocketAddress(port), config, count > 1);
+            CoapEndpoint endpoint = new CoapEndpoint(connector, config);
+            coapProxy.addEndpoint(endpoint);
+            TransportMetrics.instrument(endpoint, connector, config);
+        }
 
-        coapProxy.setMessageDeliverer(new ProxyMessageDeliverer(coapProxy.getRoot(), coap2coap, coap2http));
+        // all endpoints deliver to the same resources
+        ProxyMessageDeliverer deliverer = new ProxyMessageDeliverer(coapProxy.getRoot(), coap2coap, coap2http);
+        coapProxy.setMessageDeliverer(deliverer);
 
         coapProxy.add(new TargetResource("test"));
         coapProxy.start();
+        observeState.attach(deliverer, coapProxy.getEndpoints().get(0));
     }
 
+    private int socketCount() {
+        if (sockets <= 1) {
+            return 1;
+        }
+        if (port == 0) {
+            LOGGER.warning("coapserver.sockets needs a fixed coapserver.port, using a single socket");
+            return 1;
+        }
+        if (!GatewayUdpConnector.isReusePortSupported()) {
+            LOGGER.warning("SO_REUSEPORT is not available on this JVM, using a single socket");
+            return 1;
+        }
+        return sockets;
+    }
 
     /**
      * A simple resource that responds to GET requests with a small response
@@ -0,0 +1,162 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Request;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Registers the upstream observations of the {@link ObserveCluster} on the
+ * CoAP devices.
+ * <p>
+ * Observations restored from a snapshot are registered again at a random
+ * point within the restore spread, so a restarted gateway does not hit all
+ * devices at the same moment. They reuse their previous token, which lets
+ * the device recognise the registration only if the gateway observes from
+ * the same address, i.e. with a fixed
+ * {@link OutboundEndpoints#OUTBOUND_PORT}; otherwise they are plain new
+ * registrations.
+ */
+public class CoapObserveUpstream implements ObserveCluster.Upstream {
+
+    private final static Logger LOGGER = Logger.getLogger(CoapObserveUpstream.class.getCanonicalName());
+
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<String, Registration>();
+    private final Map<String, byte[]> restoredTokens = new ConcurrentHashMap<String, byte[]>();
+    private final Random random = new Random();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "observe-restore");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long restoreSpread;
+
+    /**
+     * @param restoreSpread the window in milliseconds over which restored
+     *        observations are registered
+     */
+    public void setRestoreSpread(long restoreSpread) {
+        this.restoreSpread = restoreSpread;
+    }
+
+    /**
+     * Remembers the token of an observation from before a restart; it is
+     * used when the resource is observed next.
+     */
+    public void restore(String resource, byte[] token) {
+        restoredTokens.put(resource, token);
+    }
+
+    /**
+     * @return the tokens of the current observations by resource
+     */
+    public Map<String, byte[]> getTokens() {
+        Map<String, byte[]> tokens = new HashMap<String, byte[]>();
+        for (Registration registration : registrations.values()) {
+            byte[] token = registration.token;
+            if (token != null) {
+                tokens.put(registration.resource, token);
+            }
+        }
+        return tokens;
+    }
+
+    @Override
+    public Object observe(final String resource, final ObserveCluster cluster) {
+        final Registration registration = new Registration(resource, restoredTokens.remove(resource));
+        registrations.put(resource, registration);
+        long spread = restoreSpread;
+        if (registration.token != null && spread > 0) {
+            long delay = (long) (random.nextDouble() * spread);
+            registration.pending = scheduler.schedule(() -> registration.register(cluster), delay, TimeUnit.MILLISECONDS);
+        } else {
+            registration.register(cluster);
+        }
+        return registration;
+    }
+
+    @Override
+    public void cancel(Object handle) {
+        Registration registration = (Registration) handle;
+        registrations.remove(registration.resource, registration);
+        registration.cancel();
+    }
+
+    private static class Registration {
+
+        private final String resource;
+        private volatile byte[] token;
+        private volatile boolean canceled;
+        private volatile ScheduledFuture<?> pending;
+        private volatile CoapObserveRelation relation;
+
+        Registration(String resource, byte[] token) {
+            this.resource = resource;
+            this.token = token;
+        }
+
+        void register(final ObserveCluster cluster) {
+            if (canceled) {
+                return;
+            }
+            CoapClient client = new CoapClient(resource);
+            client.setEndpoint(resource.startsWith("coaps:") ? OutboundEndpoints.secure() : OutboundEndpoints.get());
+
+            // observation setup is bulk traffic, keep it behind interactive requests
+            final Request request = Request.newGet();
+            request.setURI(resource);
+            request.getOptions().setObserve(0);
+            if (token != null) {
+                request.setToken(token);
+            }
+            TrafficClassifier.tag(request, TrafficClass.BACKGROUND);
+            token = request.getToken();
+
+            relation = client.observe(request,
+                    new CoapHandler() {
+                        @Override
+                        public void onLoad(CoapResponse response) {
+                            String content = response.getResponseText();
+                            LOGGER.info(content);
+                            cluster.publishNotification(resource, content);
+                        }
+
+                        @Override
+                        public void onError() {
+                            // Californium passes no exception, the request knows how it ended
+                            String cause = request.isRejected() ? "rejected by the device"
+                                    : request.isTimedOut() ? "timed out" : "failed";
+                            LOGGER.warning("Observation of " + resource + " " + cause);
+                        }
+                    });
+            if (canceled) {
+                // canceled while registering
+                relation.proactiveCancel();
+            }
+        }
+
+        void cancel() {
+            canceled = true;
+            ScheduledFuture<?> future = pending;
+            if (future != null) {
+                future.cancel(false);
+            }
+            CoapObserveRelation current = relation;
+            if (current != null) {
+                current.proactiveCancel();
+            }
+        }
+    }
+}
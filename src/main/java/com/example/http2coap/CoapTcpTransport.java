@@ -0,0 +1,742 @@
+package com.example.http2coap;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.ContainerProvider;
+import javax.websocket.DeploymentException;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * CoAP over TCP, TLS and WebSockets (RFC 8323) for the destinations with a
+ * coap+tcp://, coaps+tcp://, coap+ws:// or coaps+ws:// scheme.
+ * <p>
+ * Requests are multiplexed over long-lived connections and matched to their
+ * responses by token. The transports are reliable, so there are neither
+ * retransmissions nor ACKs: a request fails when its connection fails or
+ * after TCP_REQUEST_TIMEOUT. Every destination has a pool of up to
+ * TCP_POOL_SIZE connections, another one is opened when all of them have
+ * TCP_MAX_INFLIGHT requests outstanding. One request at a time opens a
+ * connection, outside of the pool's lock; the others wait for it at most
+ * TCP_CONNECT_TIMEOUT, and after a failed connect requests to the
+ * destination fail at once for TCP_CONNECT_TIMEOUT. Quiet connections are pinged every
+ * TCP_PING_INTERVAL and released once no request has used them for
+ * TCP_IDLE_TIMEOUT; all times in milliseconds in Californium.properties.
+ * <p>
+ * WebSocket connections go to {@code /.well-known/coap} of the destination
+ * through the servlet container's JSR 356 client.
+ */
+public final class CoapTcpTransport implements GatewayMetrics.Source {
+
+    private static final Logger LOGGER = Logger.getLogger(CoapTcpTransport.class.getCanonicalName());
+
+    public static final String CONNECT_TIMEOUT = "TCP_CONNECT_TIMEOUT";
+    public static final String REQUEST_TIMEOUT = "TCP_REQUEST_TIMEOUT";
+    public static final String POOL_SIZE = "TCP_POOL_SIZE";
+    public static final String MAX_INFLIGHT = "TCP_MAX_INFLIGHT";
+    public static final String IDLE_TIMEOUT = "TCP_IDLE_TIMEOUT";
+    public static final String PING_INTERVAL = "TCP_PING_INTERVAL";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final int DEFAULT_MAX_INFLIGHT = 64;
+    private static final long DEFAULT_IDLE_TIMEOUT = 300000;
+    private static final long DEFAULT_PING_INTERVAL = 30000;
+
+    /* the Max-Message-Size announced to the devices */
+    static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+    private static final String WEBSOCKET_PATH = "/.well-known/coap";
+    private static final String WEBSOCKET_PROTOCOL = "coap";
+    /* how Undertow's client is given the SSLContext for wss:// */
+    private static final String UNDERTOW_SSL_CONTEXT = "io.undertow.websocket.SSL_CONTEXT";
+
+    private static final Supplier<CoapTcpTransport> STANDARD = Suppliers.memoize(new Supplier<CoapTcpTransport>() {
+        @Override
+        public CoapTcpTransport get() {
+            NetworkConfig config = NetworkConfig.getStandard();
+            int connectTimeout = config.getInt(CONNECT_TIMEOUT);
+            long requestTimeout = config.getLong(REQUEST_TIMEOUT);
+            int poolSize = config.getInt(POOL_SIZE);
+            int maxInflight = config.getInt(MAX_INFLIGHT);
+            long idleTimeout = config.getLong(IDLE_TIMEOUT);
+            long pingInterval = config.getLong(PING_INTERVAL);
+            CoapTcpTransport transport = new CoapTcpTransport(
+                    connectTimeout > 0 ? connectTimeout : DEFAULT_CONNECT_TIMEOUT,
+                    requestTimeout > 0 ? requestTimeout : DEFAULT_REQUEST_TIMEOUT,
+                    poolSize > 0 ? poolSize : DEFAULT_POOL_SIZE,
+                    maxInflight > 0 ? maxInflight : DEFAULT_MAX_INFLIGHT,
+                    idleTimeout > 0 ? idleTimeout : DEFAULT_IDLE_TIMEOUT,
+                    pingInterval > 0 ? pingInterval : DEFAULT_PING_INTERVAL);
+            GatewayMetrics.register("tcp", transport);
+            return transport;
+        }
+    });
+
+    private static final Supplier<WebSocketContainer> WEBSOCKETS = Suppliers.memoize(new Supplier<WebSocketContainer>() {
+        @Override
+        public WebSocketContainer get() {
+            WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+            container.setDefaultMaxBinaryMessageBufferSize(MAX_MESSAGE_SIZE + 16);
+            return container;
+        }
+    });
+
+    private final int connectTimeout;
+    private final long requestTimeout;
+    private final int poolSize;
+    private final int maxInflight;
+    private final long idleTimeout;
+    private final long pingInterval;
+
+    private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+    private final ScheduledExecutorService maintenance;
+
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder pings = new LongAdder();
+
+    CoapTcpTransport(int connectTimeout, long requestTimeout, int poolSize, int maxInflight, long idleTimeout, long pingInterval) {
+        this.connectTimeout = connectTimeout;
+        this.requestTimeout = requestTimeout;
+        this.poolSize = poolSize;
+        this.maxInflight = maxInflight;
+        this.idleTimeout = idleTimeout;
+        this.pingInterval = pingInterval;
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "coap-tcp-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(100, Math.min(pingInterval, idleTimeout) / 2);
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                maintain(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "TCP connection maintenance failed", e);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the transport configured from the standard NetworkConfig
+     */
+    public static CoapTcpTransport get() {
+        return STANDARD.get();
+    }
+
+    /**
+     * @return true if the URI has one of the RFC 8323 schemes
+     */
+    public static boolean handles(String uri) {
+        return Target.transportOf(uri) != null;
+    }
+
+    /**
+     * Sends the request to the destination of the URI and waits for the
+     * response. The URI is set on the request as if it were coap://, so the
+     * Uri options and the destination are filled in as usual.
+     *
+     * @param uri a coap+tcp://, coaps+tcp://, coap+ws:// or coaps+ws:// URI
+     * @return the response, null if none arrived within the request timeout
+     * @throws IOException if no connection could be opened or it failed
+     *                     while waiting for the response
+     */
+    public Response send(Request request, String uri) throws IOException, InterruptedException {
+        Target target = Target.parse(uri);
+        request.setURI(target.coapUri);
+        request.setDestinationPort(target.port);
+        requests.increment();
+        Connection connection = acquire(target);
+        try {
+            Response response = connection.exchange(request, requestTimeout);
+            if (response == null) {
+                timeouts.increment();
+                request.setTimedOut(true);
+                return null;
+            }
+            response.setSource(request.getDestination());
+            response.setSourcePort(target.port);
+            request.setResponse(response);
+            return response;
+        } catch (IOException e) {
+            failures.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all connections.
+     */
+    public void close() {
+        maintenance.shutdownNow();
+        for (Pool pool : pools.values()) {
+            synchronized (pool) {
+                pool.retired = true;
+                for (Connection connection : pool.connections) {
+                    connection.release();
+                }
+                pool.connections.clear();
+            }
+        }
+        pools.clear();
+    }
+
+    private Connection acquire(Target target) throws IOException, InterruptedException {
+        while (true) {
+            Pool pool = pools.computeIfAbsent(target.key, key -> new Pool());
+            CompletableFuture<Connection> connecting;
+            boolean opener = false;
+            synchronized (pool) {
+                if (pool.retired) {
+                    continue;
+                }
+                Connection best = null;
+                for (Iterator<Connection> it = pool.connections.iterator(); it.hasNext(); ) {
+                    Connection connection = it.next();
+                    if (!connection.isOpen()) {
+                        it.remove();
+                    } else if (best == null || connection.inflight() < best.inflight()) {
+                        best = connection;
+                    }
+                }
+                if (best != null && (best.inflight() < maxInflight || pool.connections.size() >= poolSize)) {
+                    return best;
+                }
+                if (pool.connecting == null) {
+                    if (System.currentTimeMillis() - pool.failedAt < connectTimeout) {
+                        throw new IOException("recent connect to " + target.key + " failed", pool.failure);
+                    }
+                    pool.connecting = new CompletableFuture<Connection>();
+                    opener = true;
+                } else if (best != null) {
+                    // another connection is on its way, the busy one will do meanwhile
+                    return best;
+                }
+                connecting = pool.connecting;
+            }
+            if (opener) {
+                return connect(target, pool, connecting);
+            }
+            try {
+                Connection connection = connecting.get(connectTimeout, TimeUnit.MILLISECONDS);
+                if (connection.isOpen()) {
+                    return connection;
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("Cannot connect to " + target.key, e.getCause());
+            } catch (TimeoutException e) {
+                throw new IOException("Timed out waiting for the connection to " + target.key);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection for the pool, without holding its lock, and hands
+     * it to the requests waiting for it.
+     */
+    private Connection connect(Target target, Pool pool, CompletableFuture<Connection> connecting) throws IOException {
+        Connection connection;
+        try {
+            connection = open(target);
+        } catch (IOException | RuntimeException e) {
+            synchronized (pool) {
+                pool.connecting = null;
+                pool.failedAt = System.currentTimeMillis();
+                pool.failure = e;
+            }
+            connecting.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (pool) {
+            pool.connecting = null;
+            pool.failedAt = 0;
+            pool.failure = null;
+            if (pool.retired) {
+                // closed meanwhile
+                connection.release();
+            } else {
+                pool.connections.add(connection);
+            }
+        }
+        connecting.complete(connection);
+        return connection;
+    }
+
+    private Connection open(Target target) throws IOException {
+        Connection connection = new Connection(target);
+        try {
+            if (target.websocket) {
+                openWebSocket(target, connection);
+            } else {
+                openStream(target, connection);
+            }
+            connection.write(TcpFrames.signal(TcpFrames.CSM, new byte[0], TcpFrames.MAX_MESSAGE_SIZE, MAX_MESSAGE_SIZE, target.websocket));
+        } catch (IOException e) {
+            connectFailures.increment();
+            connection.close(e);
+            throw e;
+        }
+        opened.increment();
+        LOGGER.info("Opened CoAP connection to " + target.key);
+        return connection;
+    }
+
+    /**
+     * Connects the connection's channel, which is in place before the first
+     * frame is read from it.
+     */
+    private void openStream(Target target, final Connection connection) throws IOException {
+        final Socket socket = target.tls ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(target.host, target.port), connectTimeout);
+            if (target.tls) {
+                SSLSocket ssl = (SSLSocket) socket;
+                SSLParameters parameters = ssl.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(parameters);
+                ssl.startHandshake();
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        connection.channel = new Channel() {
+            @Override
+            public synchronized void write(byte[] frame) throws IOException {
+                out.write(frame);
+                out.flush();
+            }
+
+            @Override
+            public void close() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        };
+        Thread reader = new Thread(() -> {
+            try {
+                TcpFrames.Frame frame;
+                while ((frame = TcpFrames.read(in, MAX_MESSAGE_SIZE)) != null) {
+                    connection.onFrame(frame);
+                }
+                connection.close(new IOException("connection closed by " + target.key));
+            } catch (IOException e) {
+                connection.close(e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Cannot process frame from " + target.key, e);
+                connection.close(new IOException(e));
+            }
+        }, "coap-tcp-reader-" + target.key);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void openWebSocket(final Target target, final Connection connection) throws IOException {
+        ClientEndpointConfig config = ClientEndpointConfig.Builder.create()
+                .preferredSubprotocols(Collections.singletonList(WEBSOCKET_PROTOCOL)).build();
+        if (target.tls) {
+            try {
+                config.getUserProperties().put(UNDERTOW_SSL_CONTEXT, SSLContext.getDefault());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("No default SSLContext", e);
+            }
+        }
+        try {
+            URI uri = new URI(target.tls ? "wss" : "ws", null, target.host, target.port, WEBSOCKET_PATH, null, null);
+            WEBSOCKETS.get().connectToServer(new javax.websocket.Endpoint() {
+                @Override
+                public void onOpen(Session session, EndpointConfig config) {
+                    connection.channel = webSocketChannel(session);
+                    session.addMessageHandler(new MessageHandler.Whole<byte[]>() {
+                        @Override
+                        public void onMessage(byte[] message) {
+                            try {
+                                connection.onFrame(TcpFrames.decode(message));
+                            } catch (IOException e) {
+                                connection.close(e);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onClose(Session session, CloseReason reason) {
+                    connection.close(new IOException("WebSocket to " + target.key + " closed: " + reason));
+                }
+
+                @Override
+                public void onError(Session session, Throwable error) {
+                    connection.close(new IOException(error));
+                }
+            }, config, uri);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid WebSocket URI for " + target.key, e);
+        } catch (DeploymentException e) {
+            throw new IOException("Cannot open WebSocket to " + target.key, e);
+        }
+        if (connection.channel == null) {
+            throw new IOException("WebSocket to " + target.key + " did not open");
+        }
+    }
+
+    private static Channel webSocketChannel(final Session session) {
+        return new Channel() {
+            @Override
+            public synchronized void write(byte[] frame) throws IOException {
+                session.getBasicRemote().sendBinary(ByteBuffer.wrap(frame));
+            }
+
+            @Override
+            public void close() {
+                try {
+                    session.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        };
+    }
+
+    /**
+     * Pings quiet connections, closes those that did not answer the last
+     * ping and releases the idle ones. A connection is quiet when nothing
+     * was received for the ping interval, idle when no request used it for
+     * the idle timeout; the pongs keep it alive, but not in use.
+     */
+    void maintain(long now) {
+        for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+            Pool pool = entry.getValue();
+            List<Connection> connections;
+            synchronized (pool) {
+                connections = new ArrayList<Connection>(pool.connections);
+            }
+            for (Connection connection : connections) {
+                long quiet = now - connection.lastReceived;
+                long idle = now - connection.lastUsed;
+                if (!connection.isOpen()) {
+                    continue;
+                }
+                if (connection.inflight() == 0 && idle >= idleTimeout) {
+                    connection.release();
+                } else if (connection.pingOutstanding) {
+                    connection.close(new IOException("no pong from " + entry.getKey()));
+                } else if (quiet >= pingInterval) {
+                    connection.ping();
+                }
+            }
+            synchronized (pool) {
+                pool.connections.removeIf(connection -> !connection.isOpen());
+                // a pool that is connecting or remembers a failure stays
+                if (pool.connections.isEmpty() && pool.connecting == null && now - pool.failedAt >= connectTimeout) {
+                    pool.retired = true;
+                    pools.remove(entry.getKey(), pool);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void collect(Map<String, Number> metrics) {
+        int open = 0;
+        int inflight = 0;
+        for (Pool pool : pools.values()) {
+            synchronized (pool) {
+                for (Connection connection : pool.connections) {
+                    if (connection.isOpen()) {
+                        open++;
+                        inflight += connection.inflight();
+                    }
+                }
+            }
+        }
+        metrics.put("connections.open", open);
+        metrics.put("connections.opened", opened.sum());
+        metrics.put("connections.failed", connectFailures.sum());
+        metrics.put("destinations", pools.size());
+        metrics.put("requests", requests.sum());
+        metrics.put("requests.inflight", inflight);
+        metrics.put("timeouts", timeouts.sum());
+        metrics.put("failures", failures.sum());
+        metrics.put("pings", pings.sum());
+    }
+
+    /**
+     * The byte stream or WebSocket under a connection.
+     */
+    private interface Channel {
+
+        void write(byte[] frame) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * The connections to one destination.
+     */
+    private static final class Pool {
+
+        private final List<Connection> connections = new ArrayList<Connection>();
+        /* the connection being opened, null if none */
+        private CompletableFuture<Connection> connecting;
+        /* the last failed connect, to fail fast for a while */
+        private long failedAt;
+        private Exception failure;
+        /* removed from the pools, must not get new connections */
+        private boolean retired;
+    }
+
+    /**
+     * A destination parsed from a coap+tcp://, coaps+tcp://, coap+ws:// or
+     * coaps+ws:// URI.
+     */
+    static final class Target {
+
+        final String key;
+        final String host;
+        final int port;
+        final boolean tls;
+        final boolean websocket;
+        /* the URI with the coap scheme, for Request.setURI */
+        final String coapUri;
+
+        private Target(String scheme, String host, int port, String coapUri) {
+            this.tls = scheme.startsWith("coaps");
+            this.websocket = scheme.endsWith("+ws");
+            this.host = host;
+            this.port = port;
+            this.key = scheme + "://" + (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+            this.coapUri = coapUri;
+        }
+
+        /**
+         * @return the lower case transport scheme of the URI, null if it is
+         *         not one of RFC 8323
+         */
+        static String transportOf(String uri) {
+            int colon = uri == null ? -1 : uri.indexOf("://");
+            if (colon < 0) {
+                return null;
+            }
+            String scheme = uri.substring(0, colon).toLowerCase(Locale.ROOT);
+            switch (scheme) {
+                case "coap+tcp":
+                case "coaps+tcp":
+                case "coap+ws":
+                case "coaps+ws":
+                    return scheme;
+                default:
+                    return null;
+            }
+        }
+
+        static Target parse(String uri) {
+            String scheme = transportOf(uri);
+            if (scheme == null) {
+                throw new IllegalArgumentException("Not a CoAP over TCP or WebSocket URI: " + uri);
+            }
+            URI parsed;
+            try {
+                parsed = new URI(uri);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid URI: " + uri, e);
+            }
+            String host = parsed.getHost();
+            if (host == null) {
+                throw new IllegalArgumentException("URI without host: " + uri);
+            }
+            if (host.startsWith("[")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            int port = parsed.getPort();
+            if (port < 0) {
+                // RFC 8323 section 8: 5683 and 5684 for TCP, the HTTP ports for WebSockets
+                boolean tls = scheme.startsWith("coaps");
+                port = scheme.endsWith("+ws") ? (tls ? 443 : 80) : (tls ? 5684 : 5683);
+            }
+            String coapUri = "coap" + uri.substring(scheme.length());
+            return new Target(scheme, host, port, coapUri);
+        }
+    }
+
+    /**
+     * A connection to a destination with the requests waiting on it.
+     */
+    private final class Connection {
+
+        private final Target target;
+        private final ConcurrentHashMap<Integer, BlockingQueue<Object>> pending = new ConcurrentHashMap<Integer, BlockingQueue<Object>>();
+        private final AtomicInteger tokens = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+        private volatile Channel channel;
+        private volatile boolean open = true;
+        /* any frame received, for the liveness pings */
+        private volatile long lastReceived = System.currentTimeMillis();
+        /* request sent or response received, for the idle timeout */
+        private volatile long lastUsed = lastReceived;
+        private volatile boolean pingOutstanding;
+
+        Connection(Target target) {
+            this.target = target;
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        int inflight() {
+            return pending.size();
+        }
+
+        /**
+         * @return the response, null on timeout
+         */
+        Response exchange(Request request, long timeout) throws IOException, InterruptedException {
+            int token = tokens.incrementAndGet();
+            request.setToken(new byte[]{(byte) (token >>> 24), (byte) (token >>> 16), (byte) (token >>> 8), (byte) token});
+            BlockingQueue<Object> result = new ArrayBlockingQueue<Object>(1);
+            pending.put(token, result);
+            lastUsed = System.currentTimeMillis();
+            try {
+                if (!open) {
+                    throw new IOException("connection to " + target.key + " closed");
+                }
+                write(TcpFrames.encode(request, target.websocket));
+                Object outcome = result.poll(timeout, TimeUnit.MILLISECONDS);
+                if (outcome instanceof IOException) {
+                    throw new IOException("connection to " + target.key + " failed", (IOException) outcome);
+                }
+                return (Response) outcome;
+            } finally {
+                pending.remove(token);
+            }
+        }
+
+        void write(byte[] frame) throws IOException {
+            try {
+                channel.write(frame);
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+
+        void onFrame(TcpFrames.Frame frame) throws IOException {
+            lastReceived = System.currentTimeMillis();
+            if (frame.isSignal()) {
+                switch (frame.code) {
+                    case TcpFrames.PING:
+                        write(TcpFrames.signal(TcpFrames.PONG, frame.token, 0, 0, target.websocket));
+                        break;
+                    case TcpFrames.PONG:
+                        pingOutstanding = false;
+                        break;
+                    case TcpFrames.RELEASE:
+                    case TcpFrames.ABORT:
+                        close(new IOException(target.key + " ended the connection"));
+                        break;
+                    default:
+                        // CSM is not evaluated, a device rejects requests above its Max-Message-Size
+                        break;
+                }
+            } else if (frame.isResponse() && frame.token.length == 4) {
+                int token = (frame.token[0] & 0xFF) << 24 | (frame.token[1] & 0xFF) << 16
+                        | (frame.token[2] & 0xFF) << 8 | (frame.token[3] & 0xFF);
+                BlockingQueue<Object> result = pending.get(token);
+                if (result != null) {
+                    lastUsed = lastReceived;
+                    result.offer(frame.toResponse());
+                }
+            }
+        }
+
+        void ping() {
+            pingOutstanding = true;
+            pings.increment();
+            try {
+                write(TcpFrames.signal(TcpFrames.PING, new byte[0], 0, 0, target.websocket));
+            } catch (IOException e) {
+                LOGGER.fine("Cannot ping " + target.key + ": " + e);
+            }
+        }
+
+        void release() {
+            if (open) {
+                try {
+                    channel.write(TcpFrames.signal(TcpFrames.RELEASE, new byte[0], 0, 0, target.websocket));
+                } catch (IOException e) {
+                    // closing anyway
+                }
+                close(new IOException("connection to " + target.key + " released"));
+            }
+        }
+
+        void close(IOException cause) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            if (channel != null) {
+                channel.close();
+            }
+            for (BlockingQueue<Object> result : pending.values()) {
+                result.offer(cause);
+            }
+            LOGGER.info("Closed CoAP connection to " + target.key + ": " + cause.getMessage());
+        }
+    }
+}
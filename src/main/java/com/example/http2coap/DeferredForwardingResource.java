@@ -0,0 +1,27 @@
+package com.example.http2coap;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.proxy.resources.ForwardingResource;
+
+/**
+ * Forwarding resource whose delegate is only created on the first forwarded
+ * request. Used by the fast-startup path for optional forwarders such as
+ * coap2http, whose HTTP client is not needed until a CoAP client asks for it.
+ */
+public class DeferredForwardingResource extends ForwardingResource {
+
+    private final Supplier<ForwardingResource> delegate;
+
+    public DeferredForwardingResource(String name, Supplier<ForwardingResource> factory) {
+        super(name);
+        this.delegate = Suppliers.memoize(factory);
+    }
+
+    @Override
+    public Response forwardRequest(Request incomingRequest) {
+        return delegate.get().forwardRequest(incomingRequest);
+    }
+}
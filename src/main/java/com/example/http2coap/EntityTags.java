@@ -0,0 +1,113 @@
+package com.example.http2coap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Converts between CoAP ETag option values and HTTP entity tags.
+ * <p>
+ * CoAP ETags are opaque byte strings of up to 8 bytes; towards HTTP they are
+ * rendered as a quoted lower case hex string, so the tags HTTP clients echo
+ * in If-None-Match and If-Match decode to exactly the original bytes.
+ * Entity tags not issued by the gateway are taken as raw bytes if they fit
+ * into a CoAP ETag and dropped otherwise.
+ */
+final class EntityTags {
+
+    /** maximum length of a CoAP ETag, RFC 7252 section 5.10.6 */
+    static final int MAX_LENGTH = 8;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return the quoted HTTP entity tag of a CoAP ETag
+     */
+    static String toHttp(byte[] etag) {
+        StringBuilder tag = new StringBuilder(etag.length * 2 + 2).append('"');
+        for (byte b : etag) {
+            tag.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return tag.append('"').toString();
+    }
+
+    /**
+     * @return true if the header value of If-None-Match or If-Match is
+     *         {@code *}
+     */
+    static boolean isWildcard(String header) {
+        return "*".equals(header.trim());
+    }
+
+    /**
+     * Parses a comma separated list of entity tags, weak tags included.
+     *
+     * @return the CoAP ETags of the list
+     */
+    static List<byte[]> fromHttp(String header) {
+        List<byte[]> etags = new ArrayList<byte[]>();
+        int i = 0;
+        int length = header.length();
+        while (i < length) {
+            char c = header.charAt(i);
+            if (c == ',' || Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (header.startsWith("W/", i)) {
+                i += 2;
+            }
+            String tag;
+            if (i < length && header.charAt(i) == '"') {
+                // entity tags cannot contain quotes, but may contain commas
+                int end = header.indexOf('"', i + 1);
+                if (end < 0) {
+                    end = length;
+                }
+                tag = header.substring(i + 1, end);
+                i = end + 1;
+            } else {
+                // lenient: an unquoted tag
+                int end = header.indexOf(',', i);
+                if (end < 0) {
+                    end = length;
+                }
+                tag = header.substring(i, end).trim();
+                i = end;
+            }
+            byte[] etag = decode(tag);
+            if (etag != null) {
+                etags.add(etag);
+            }
+        }
+        return etags;
+    }
+
+    /**
+     * @return the CoAP ETag of an opaque tag, null if it cannot be one
+     */
+    static byte[] decode(String tag) {
+        if (tag.length() <= MAX_LENGTH * 2 && tag.length() % 2 == 0 && isHex(tag)) {
+            byte[] etag = new byte[tag.length() / 2];
+            for (int i = 0; i < etag.length; i++) {
+                etag[i] = (byte) (Character.digit(tag.charAt(2 * i), 16) << 4 | Character.digit(tag.charAt(2 * i + 1), 16));
+            }
+            return etag;
+        }
+        byte[] raw = tag.getBytes(ISO_8859_1);
+        return raw.length <= MAX_LENGTH ? raw : null;
+    }
+
+    private static boolean isHex(String tag) {
+        for (int i = 0; i < tag.length(); i++) {
+            if (Character.digit(tag.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private EntityTags() {
+    }
+}
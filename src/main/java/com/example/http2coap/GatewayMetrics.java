@@ -0,0 +1,52 @@
+package com.example.http2coap;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the live metrics served by {@link MetricsServlet}. Subsystems
+ * register a source under a prefix; sources are only polled when the
+ * metrics are read.
+ */
+public final class GatewayMetrics {
+
+    /**
+     * Reports the current values of a subsystem.
+     */
+    public interface Source {
+
+        void collect(Map<String, Number> metrics);
+    }
+
+    private static final ConcurrentHashMap<String, Source> SOURCES = new ConcurrentHashMap<String, Source>();
+
+    /**
+     * Registers or replaces the source of a prefix.
+     */
+    public static void register(String prefix, Source source) {
+        SOURCES.put(prefix, source);
+    }
+
+    public static void unregister(String prefix) {
+        SOURCES.remove(prefix);
+    }
+
+    /**
+     * @return all metrics, sorted by name
+     */
+    public static Map<String, Number> snapshot() {
+        TreeMap<String, Number> metrics = new TreeMap<String, Number>();
+        for (Map.Entry<String, Source> entry : SOURCES.entrySet()) {
+            Map<String, Number> values = new TreeMap<String, Number>();
+            entry.getValue().collect(values);
+            for (Map.Entry<String, Number> value : values.entrySet()) {
+                metrics.put(entry.getKey() + "." + value.getKey(), value.getValue());
+            }
+        }
+        return metrics;
+    }
+
+    private GatewayMetrics() {
+    }
+}
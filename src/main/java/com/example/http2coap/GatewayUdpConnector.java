@@ -0,0 +1,271 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * UDP connector used by the gateway's endpoints in place of Californium's
+ * UDPConnector. Outbound datagrams go through a
+ * {@link PriorityOutboundQueue}, so interactive traffic overtakes queued
+ * background traffic instead of waiting behind it in a single FIFO.
+ * <p>
+ * Thread counts, buffer sizes and the outbound capacity (per traffic class)
+ * are taken from the same NetworkConfig keys as the stock connector.
+ * <p>
+ * With {@code reusePort} the socket is bound with SO_REUSEPORT, so several
+ * connectors can share a port and the kernel spreads the datagrams of
+ * different peers across them. The option is only available on Java 9 and
+ * later, see {@link #isReusePortSupported()}.
+ */
+public class GatewayUdpConnector implements Connector {
+
+    private static final Logger LOGGER = Logger.getLogger(GatewayUdpConnector.class.getCanonicalName());
+
+    private static final AtomicInteger SOCKETS = new AtomicInteger();
+
+    private final InetSocketAddress localAddress;
+    private final int senderCount;
+    private final int receiverCount;
+    private final int datagramSize;
+    private final int receiveBuffer;
+    private final int sendBuffer;
+    private final boolean reusePort;
+    private final int socketId = SOCKETS.getAndIncrement();
+
+    private final PriorityOutboundQueue outbound;
+
+    private volatile boolean running;
+    private volatile DatagramSocket socket;
+    private volatile InetSocketAddress effectiveAddress;
+    private volatile RawDataChannel receiver;
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    public GatewayUdpConnector(InetSocketAddress localAddress, NetworkConfig config) {
+        this(localAddress, config, false);
+    }
+
+    public GatewayUdpConnector(InetSocketAddress localAddress, NetworkConfig config, boolean reusePort) {
+        this.localAddress = localAddress;
+        this.reusePort = reusePort;
+        this.effectiveAddress = localAddress;
+        this.senderCount = Math.max(1, config.getInt(NetworkConfig.Keys.NETWORK_STAGE_SENDER_THREAD_COUNT));
+        this.receiverCount = Math.max(1, config.getInt(NetworkConfig.Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT));
+        this.datagramSize = Math.max(1, config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_DATAGRAM_SIZE));
+        this.receiveBuffer = config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_RECEIVE_BUFFER);
+        this.sendBuffer = config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_SEND_BUFFER);
+        this.outbound = new PriorityOutboundQueue(config.getInt(NetworkConfig.Keys.UDP_CONNECTOR_OUT_CAPACITY));
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        DatagramSocket datagramSocket = new DatagramSocket(null);
+        if (receiveBuffer > 0) {
+            datagramSocket.setReceiveBufferSize(receiveBuffer);
+        }
+        if (sendBuffer > 0) {
+            datagramSocket.setSendBufferSize(sendBuffer);
+        }
+        if (reusePort) {
+            ReusePort.enable(datagramSocket);
+        }
+        datagramSocket.bind(localAddress);
+        socket = datagramSocket;
+        effectiveAddress = new InetSocketAddress(datagramSocket.getLocalAddress(), datagramSocket.getLocalPort());
+        running = true;
+
+        for (int i = 0; i < receiverCount; i++) {
+            threads.add(startThread(new Receiver(), "udp-receiver-" + effectiveAddress.getPort() + "-" + socketId + "-" + i));
+        }
+        for (int i = 0; i < senderCount; i++) {
+            threads.add(startThread(new Sender(), "udp-sender-" + effectiveAddress.getPort() + "-" + socketId + "-" + i));
+        }
+        GatewayMetrics.register(metricsPrefix(), outbound);
+        LOGGER.info("UDP connector listening on " + effectiveAddress);
+    }
+
+    private Thread startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        GatewayMetrics.unregister(metricsPrefix());
+        socket.close();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        threads.clear();
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+    }
+
+    @Override
+    public void send(RawData msg) {
+        if (msg == null) {
+            throw new NullPointerException("Message must not be null");
+        }
+        TrafficClass trafficClass = TrafficClassifier.classify(msg.getBytes());
+        if (!outbound.offer(msg, trafficClass)) {
+            LOGGER.log(Level.FINE, "Outbound {0} queue full, dropping datagram to {1}",
+                    new Object[]{trafficClass, msg.getInetSocketAddress()});
+        }
+    }
+
+    @Override
+    public void setRawDataReceiver(RawDataChannel messageHandler) {
+        this.receiver = messageHandler;
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return effectiveAddress;
+    }
+
+    public int getOutboundQueueSize() {
+        return outbound.size();
+    }
+
+    private String metricsPrefix() {
+        if (reusePort) {
+            return "udp." + effectiveAddress.getPort() + "." + socketId + ".scheduler";
+        }
+        return "udp." + effectiveAddress.getPort() + ".scheduler";
+    }
+
+    /**
+     * @return true if the running JVM can bind sockets with SO_REUSEPORT
+     */
+    public static boolean isReusePortSupported() {
+        return ReusePort.SET_OPTION != null;
+    }
+
+    /**
+     * SO_REUSEPORT through {@code DatagramSocket.setOption}, looked up
+     * reflectively as the project is compiled for Java 8.
+     */
+    private static final class ReusePort {
+
+        private static final Object OPTION;
+        private static final Method SET_OPTION;
+
+        static {
+            Object option = null;
+            Method setOption = null;
+            try {
+                option = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+                setOption = DatagramSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+                Method supported = DatagramSocket.class.getMethod("supportedOptions");
+                DatagramSocket probe = new DatagramSocket(null);
+                try {
+                    if (!((Set<?>) supported.invoke(probe)).contains(option)) {
+                        setOption = null;
+                    }
+                } finally {
+                    probe.close();
+                }
+            } catch (Exception e) {
+                setOption = null;
+            }
+            OPTION = option;
+            SET_OPTION = setOption;
+        }
+
+        static void enable(DatagramSocket socket) throws IOException {
+            if (SET_OPTION == null) {
+                throw new IOException("SO_REUSEPORT is not supported by this JVM");
+            }
+            try {
+                SET_OPTION.invoke(socket, OPTION, Boolean.TRUE);
+            } catch (IllegalAccessException e) {
+                throw new IOException("Cannot set SO_REUSEPORT", e);
+            } catch (InvocationTargetException e) {
+                throw new IOException("Cannot set SO_REUSEPORT", e.getCause());
+            }
+        }
+
+        private ReusePort() {
+        }
+    }
+
+    private class Receiver implements Runnable {
+
+        @Override
+        public void run() {
+            // one more byte to detect truncated datagrams
+            DatagramPacket packet = new DatagramPacket(new byte[datagramSize + 1], datagramSize + 1);
+            while (running) {
+                try {
+                    packet.setLength(datagramSize + 1);
+                    socket.receive(packet);
+                    if (packet.getLength() > datagramSize) {
+                        LOGGER.fine("Dropping oversized datagram from " + packet.getSocketAddress());
+                        continue;
+                    }
+                    byte[] bytes = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+                    RawDataChannel channel = receiver;
+                    if (channel != null) {
+                        channel.receiveData(new RawData(bytes, packet.getAddress(), packet.getPort()));
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        LOGGER.log(Level.WARNING, "Cannot receive on " + effectiveAddress, e);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Cannot process datagram from " + packet.getSocketAddress(), e);
+                }
+            }
+        }
+    }
+
+    private class Sender implements Runnable {
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    RawData raw = outbound.take();
+                    byte[] bytes = raw.getBytes();
+                    socket.send(new DatagramPacket(bytes, bytes.length, raw.getAddress(), raw.getPort()));
+                } catch (InterruptedException e) {
+                    // stopped
+                    return;
+                } catch (IOException e) {
+                    if (running) {
+                        LOGGER.log(Level.WARNING, "Cannot send on " + effectiveAddress, e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.http2coap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.californium.proxy.TranslationException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the notification history of the resources observed through
+ * {@link ObServlet}, addressed like there: {@code /history/host:port/path}.
+ * <ul>
+ * <li>{@code ?since=<etag>} returns the notifications after the one with
+ * that ETag; {@code complete} is false if some have already been dropped.</li>
+ * <li>{@code ?from=<ms>&to=<ms>} returns the notifications in the time range
+ * (epoch milliseconds, both optional).</li>
+ * </ul>
+ * {@code limit} caps the number of notifications, oldest first.
+ */
+@WebServlet(urlPatterns = "/history/*", description = "观察资源的通知历史")
+public class HistoryServlet extends HttpServlet {
+
+    private static final long serialVersionUID = -3206749138252917015L;
+    private static final String PROXY_RESOURCE_NAME = "/history/";
+    private static final int DEFAULT_LIMIT = 1000;
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String resource;
+        try {
+            resource = MyHttpTranslator.getCoapRequest(req, PROXY_RESOURCE_NAME).getOptions().getProxyUri();
+        } catch (TranslationException e) {
+            e.printStackTrace();
+            resp.sendError(MyHttpTranslator.STATUS_TRANSLATION_ERROR);
+            return;
+        }
+        NotificationHistory history = ObServlet.historyOf(resource);
+        if (history == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, resource + " is not observed");
+            return;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("resource", resource);
+        List<NotificationHistory.Notification> notifications;
+        try {
+            int limit = (int) param(req, "limit", DEFAULT_LIMIT);
+            String since = req.getParameter("since");
+            if (since != null) {
+                NotificationHistory.Page page = history.since(Long.parseLong(since.replace("\"", "").trim()), limit);
+                notifications = page.getNotifications();
+                result.put("complete", page.isComplete());
+            } else {
+                notifications = history.range(param(req, "from", 0), param(req, "to", Long.MAX_VALUE), limit);
+            }
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "since, from, to and limit must be numbers");
+            return;
+        }
+
+        List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+        for (NotificationHistory.Notification notification : notifications) {
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("etag", String.valueOf(notification.getEtag()));
+            entry.put("time", notification.getTime());
+            entry.put("data", notification.getData());
+            entries.add(entry);
+        }
+        result.put("notifications", entries);
+
+        resp.setContentType("application/json; charset=UTF-8");
+        resp.setHeader("cache-control", "no-cache");
+        resp.getWriter().write(JSON.writeValueAsString(result));
+    }
+
+    private static long param(HttpServletRequest req, String name, long fallback) {
+        String value = req.getParameter(name);
+        return value == null ? fallback : Long.parseLong(value.trim());
+    }
+}
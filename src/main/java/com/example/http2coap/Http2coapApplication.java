@@ -10,9 +10,17 @@ import org.springframework.boot.web.servlet.ServletComponentScan;
 @ServletComponentScan
 public class Http2coapApplication implements CommandLineRunner {
 
+    static {
+        // Californium.properties selects DEDUPLICATOR_BOUNDED for every endpoint
+        BoundedDeduplicatorFactory.install();
+    }
+
     @Autowired
     Coap2HttpServer coap2HttpServer;
 
+    @Autowired
+    WarmUp warmUp;
+
     public static void main(String[] args) {
         SpringApplication.run(Http2coapApplication.class, args);
     }
@@ -20,6 +28,9 @@ public class Http2coapApplication implements CommandLineRunner {
 
     @Override
     public void run(String... args) throws Exception {
+        // no-op when the fast-startup path has already brought the server up
         coap2HttpServer.start();
+        // /ready answers 503 until this returns
+        warmUp.run();
     }
 }
@@ -0,0 +1,31 @@
+package com.example.http2coap;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process {@link ClusterBus}. Delivers synchronously on the publishing
+ * thread. Several nodes sharing one instance behave like a cluster, which is
+ * how the cluster logic is exercised in tests.
+ */
+public class LoopbackClusterBus implements ClusterBus {
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    @Override
+    public void publish(ClusterMessage message) {
+        for (Listener listener : listeners) {
+            listener.onMessage(message);
+        }
+    }
+
+    @Override
+    public void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unsubscribe(Listener listener) {
+        listeners.remove(listener);
+    }
+}
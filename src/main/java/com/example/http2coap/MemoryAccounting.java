@@ -0,0 +1,175 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Option;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live accounting of the memory retained by the gateway's subsystems.
+ * <p>
+ * Each subsystem updates its {@link Account} when it takes or lets go of an
+ * entry, so reading the totals is as cheap as reading a few counters and
+ * never walks the heap. The byte figures are estimates: payloads, tokens and
+ * options are counted exactly, object headers and references as a fixed
+ * overhead per entry.
+ * <p>
+ * An account with a soft limit refuses new entries once its bytes reach the
+ * limit ({@link #tryReserve}); entries already held are not affected, so the
+ * account drains back below the limit as they are released.
+ */
+public final class MemoryAccounting {
+
+    /* Exchange, request and response objects and their option sets */
+    static final int EXCHANGE_OVERHEAD = 1024;
+    /* ObserveRelation, its exchange and the map entries holding it */
+    static final int RELATION_OVERHEAD = 1536;
+    /* Subject, its strings and the map entry holding it */
+    static final int SUBJECT_OVERHEAD = 256;
+
+    /**
+     * The entries and bytes retained by one subsystem.
+     */
+    public static final class Account {
+
+        private final String name;
+        private final AtomicLong entries = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong shed = new AtomicLong();
+        private volatile long softLimit;
+
+        Account(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Accounts for entries regardless of the soft limit.
+         */
+        public void reserve(long entries, long bytes) {
+            this.entries.addAndGet(entries);
+            this.bytes.addAndGet(bytes);
+        }
+
+        /**
+         * Accounts for entries unless the soft limit has been reached.
+         *
+         * @return false if the caller has to shed the work instead
+         */
+        public boolean tryReserve(long entries, long bytes) {
+            if (isOverLimit()) {
+                shed.incrementAndGet();
+                return false;
+            }
+            reserve(entries, bytes);
+            return true;
+        }
+
+        public void release(long entries, long bytes) {
+            this.entries.addAndGet(-entries);
+            this.bytes.addAndGet(-bytes);
+        }
+
+        /**
+         * Counts work refused for this account outside of
+         * {@link #tryReserve}.
+         */
+        public void shed() {
+            shed.incrementAndGet();
+        }
+
+        public boolean isOverLimit() {
+            long limit = softLimit;
+            return limit > 0 && bytes.get() >= limit;
+        }
+
+        public long getEntries() {
+            return entries.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getShed() {
+            return shed.get();
+        }
+
+        public long getSoftLimit() {
+            return softLimit;
+        }
+
+        /**
+         * @param softLimit the bytes at which new entries are refused, 0 for
+         *        no limit
+         */
+        public void setSoftLimit(long softLimit) {
+            this.softLimit = Math.max(0, softLimit);
+        }
+    }
+
+    /** Proxied CoAP exchanges in flight, with their requests and responses. */
+    public static final Account EXCHANGES = new Account("exchanges");
+    /** Observe relations of CoAP clients in {@link ProxyMessageDeliverer}. */
+    public static final Account RELATIONS = new Account("relations");
+    /** Observed resources of {@link ObServlet} with their notification history. */
+    public static final Account SUBSCRIBERS = new Account("subscribers");
+    /** HTTP request entities buffered by {@link MyHttpTranslator#getCoapPayload}. */
+    public static final Account PAYLOADS = new Account("payloads");
+
+    private static final List<Account> ACCOUNTS =
+            Collections.unmodifiableList(Arrays.asList(EXCHANGES, RELATIONS, SUBSCRIBERS, PAYLOADS));
+
+    public static List<Account> accounts() {
+        return ACCOUNTS;
+    }
+
+    /**
+     * @return the account of the subsystem, null if there is none
+     */
+    public static Account account(String name) {
+        for (Account account : ACCOUNTS) {
+            if (account.name.equals(name)) {
+                return account;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reports the accounts as {@link GatewayMetrics}.
+     */
+    static void collect(Map<String, Number> metrics) {
+        for (Account account : ACCOUNTS) {
+            metrics.put(account.name + ".entries", account.getEntries());
+            metrics.put(account.name + ".bytes", account.getBytes());
+            metrics.put(account.name + ".shed", account.getShed());
+        }
+    }
+
+    /**
+     * @return the estimated bytes a message retains besides its exchange, 0
+     *         for null
+     */
+    public static long sizeOf(Message message) {
+        if (message == null) {
+            return 0;
+        }
+        long size = message.getPayloadSize() + (message.getToken() == null ? 0 : message.getToken().length);
+        for (Option option : message.getOptions().asSortedList()) {
+            // option number and length besides the value
+            size += option.getLength() + 8;
+        }
+        return size;
+    }
+
+    private MemoryAccounting() {
+    }
+}
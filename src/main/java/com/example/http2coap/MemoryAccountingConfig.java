@@ -0,0 +1,35 @@
+package com.example.http2coap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Sets the soft limits of the {@link MemoryAccounting} and publishes it
+ * under {@code memory} in the {@link GatewayMetrics}.
+ */
+@Configuration
+public class MemoryAccountingConfig {
+
+    @Value("${memory.limits.exchanges:67108864}")
+    private long exchanges;
+
+    @Value("${memory.limits.relations:33554432}")
+    private long relations;
+
+    @Value("${memory.limits.subscribers:268435456}")
+    private long subscribers;
+
+    @Value("${memory.limits.payloads:67108864}")
+    private long payloads;
+
+    @PostConstruct
+    void applyLimits() {
+        MemoryAccounting.EXCHANGES.setSoftLimit(exchanges);
+        MemoryAccounting.RELATIONS.setSoftLimit(relations);
+        MemoryAccounting.SUBSCRIBERS.setSoftLimit(subscribers);
+        MemoryAccounting.PAYLOADS.setSoftLimit(payloads);
+        GatewayMetrics.register("memory", MemoryAccounting::collect);
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.http2coap;
+
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Accounts for the request entities the proxy servlets buffer in
+ * {@link MyHttpTranslator#getCoapPayload} and answers proxy requests with
+ * 503 while the {@link MemoryAccounting#PAYLOADS} or
+ * {@link MemoryAccounting#EXCHANGES} are over their soft limits.
+ */
+@Component
+@Order(2)
+public class MemoryLimitFilter implements Filter {
+
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        if (RateLimitFilter.destinationOf(req.getRequestURI()) == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        if (MemoryAccounting.EXCHANGES.isOverLimit()) {
+            MemoryAccounting.EXCHANGES.shed();
+            reject((HttpServletResponse) response);
+            return;
+        }
+        long length = Math.max(0, req.getContentLengthLong());
+        if (!MemoryAccounting.PAYLOADS.tryReserve(1, length)) {
+            reject((HttpServletResponse) response);
+            return;
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            MemoryAccounting.PAYLOADS.release(1, length);
+        }
+    }
+
+    private static void reject(HttpServletResponse response) throws IOException {
+        response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.http2coap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the {@link MemoryAccounting} of the subsystems as JSON, next to
+ * the heap in use: {@code /memory} for all of them, e.g.
+ * {@code /memory/relations} for one.
+ */
+@WebServlet(urlPatterns = {"/memory", "/memory/*"}, description = "各子系统的内存占用")
+public class MemoryServlet extends HttpServlet {
+
+    private static final long serialVersionUID = -6092447370163829171L;
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String name = req.getPathInfo() == null || req.getPathInfo().length() <= 1 ? null : req.getPathInfo().substring(1);
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        if (name == null) {
+            Runtime runtime = Runtime.getRuntime();
+            Map<String, Object> heap = new LinkedHashMap<String, Object>();
+            heap.put("used", runtime.totalMemory() - runtime.freeMemory());
+            heap.put("max", runtime.maxMemory());
+            result.put("heap", heap);
+            for (MemoryAccounting.Account account : MemoryAccounting.accounts()) {
+                result.put(account.getName(), toMap(account));
+            }
+        } else {
+            MemoryAccounting.Account account = MemoryAccounting.account(name);
+            if (account == null) {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND, "no subsystem " + name);
+                return;
+            }
+            result = toMap(account);
+        }
+        resp.setContentType("application/json; charset=UTF-8");
+        resp.setHeader("cache-control", "no-cache");
+        JSON.writeValue(resp.getOutputStream(), result);
+    }
+
+    private static Map<String, Object> toMap(MemoryAccounting.Account account) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("entries", account.getEntries());
+        values.put("bytes", account.getBytes());
+        values.put("softLimit", account.getSoftLimit());
+        values.put("overLimit", account.isOverLimit());
+        values.put("shed", account.getShed());
+        return values;
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.http2coap;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Serves the {@link GatewayMetrics} as plain text, one {@code name value}
+ * pair per line. An optional path filters by name prefix, e.g.
+ * {@code /metrics/udp.5683.scheduler} for the outbound queue of the CoAP
+ * listener on port 5683, or {@code /metrics/udp} for all UDP connectors.
+ */
+@WebServlet(urlPatterns = {"/metrics", "/metrics/*"}, description = "网关运行指标")
+public class MetricsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 4183327016354470437L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String prefix = req.getPathInfo() == null ? "" : req.getPathInfo().substring(1);
+
+        resp.setContentType("text/plain; charset=UTF-8");
+        resp.setHeader("cache-control", "no-cache");
+        PrintWriter writer = resp.getWriter();
+        for (Map.Entry<String, Number> metric : GatewayMetrics.snapshot().entrySet()) {
+            if (metric.getKey().startsWith(prefix)) {
+                writer.print(metric.getKey());
+                writer.print(' ');
+                writer.println(metric.getValue());
+            }
+        }
+    }
+}
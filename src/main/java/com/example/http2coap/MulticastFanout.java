@@ -0,0 +1,241 @@
+package com.example.http2coap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.serialization.DataParser;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Sends a request to a CoAP group (RFC 7252, section 8) and collects the
+ * responses of all members within a time window.
+ * <p>
+ * Californium's matcher completes a NON exchange with the first response,
+ * so the group request is sent and the responses received on a socket of
+ * its own. Configured through Californium.properties: MULTICAST_WINDOW and
+ * MULTICAST_MAX_WINDOW in milliseconds, MULTICAST_TTL and
+ * MULTICAST_INTERFACE (e.g. {@code lo} for tests on the loopback interface).
+ */
+public class MulticastFanout {
+
+    private static final Logger LOGGER = Logger.getLogger(MulticastFanout.class.getCanonicalName());
+
+    public static final String WINDOW = "MULTICAST_WINDOW";
+    public static final String MAX_WINDOW = "MULTICAST_MAX_WINDOW";
+    public static final String TTL = "MULTICAST_TTL";
+    public static final String INTERFACE = "MULTICAST_INTERFACE";
+
+    /** HTTP header overriding the collection window, in milliseconds */
+    public static final String WINDOW_HEADER = "X-Multicast-Window";
+
+    private static final long DEFAULT_WINDOW = 2000;
+    private static final long DEFAULT_MAX_WINDOW = 10000;
+    private static final int MAX_DATAGRAM = 65535;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    /**
+     * The response of one group member.
+     */
+    public static class Member {
+
+        private final InetSocketAddress address;
+        private final Response response;
+        private final long latencyMicros;
+
+        Member(InetSocketAddress address, Response response, long latencyMicros) {
+            this.address = address;
+            this.response = response;
+            this.latencyMicros = latencyMicros;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public Response getResponse() {
+            return response;
+        }
+
+        public long getLatencyMicros() {
+            return latencyMicros;
+        }
+    }
+
+    private final int ttl;
+    private final NetworkInterface networkInterface;
+    private final long defaultWindow;
+    private final long maxWindow;
+
+    /**
+     * @param networkInterface the interface to send on, null for the
+     *        system default
+     */
+    public MulticastFanout(int ttl, NetworkInterface networkInterface, long defaultWindow, long maxWindow) {
+        this.ttl = ttl;
+        this.networkInterface = networkInterface;
+        this.defaultWindow = defaultWindow;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * @return a fan-out configured from the standard NetworkConfig
+     */
+    public static MulticastFanout standard() {
+        NetworkConfig config = NetworkConfig.getStandard();
+        String name = config.getString(INTERFACE);
+        NetworkInterface networkInterface = null;
+        if (name != null && !name.isEmpty()) {
+            try {
+                networkInterface = NetworkInterface.getByName(name);
+            } catch (SocketException e) {
+                e.printStackTrace();
+            }
+            if (networkInterface == null) {
+                LOGGER.warning("No network interface " + name + ", sending multicast on the default interface");
+            }
+        }
+        int ttl = config.getInt(TTL);
+        long window = config.getLong(WINDOW);
+        long maxWindow = config.getLong(MAX_WINDOW);
+        return new MulticastFanout(ttl > 0 ? ttl : 1, networkInterface,
+                window > 0 ? window : DEFAULT_WINDOW, maxWindow > 0 ? maxWindow : DEFAULT_MAX_WINDOW);
+    }
+
+    /**
+     * @param header the value of {@link #WINDOW_HEADER}, may be null
+     * @return the collection window, limited to the configured maximum
+     */
+    public long window(String header) {
+        if (header == null) {
+            return defaultWindow;
+        }
+        try {
+            return Math.max(0, Math.min(maxWindow, Long.parseLong(header.trim())));
+        } catch (NumberFormatException e) {
+            return defaultWindow;
+        }
+    }
+
+    /**
+     * Sends the request as NON to its destination group and collects the
+     * responses until the window has passed. A member answering more than
+     * once is only reported with its first response.
+     */
+    public List<Member> collect(Request request, long windowMillis) throws IOException {
+        byte[] token = new byte[8];
+        RANDOM.nextBytes(token);
+        request.setType(Type.NON);
+        request.setToken(token);
+        request.setMID(RANDOM.nextInt(1 << 16));
+        DataSerializer serializer = new DataSerializer();
+        byte[] bytes = serializer.serializeRequest(request);
+
+        List<Member> members = new ArrayList<Member>();
+        Set<InetSocketAddress> seen = new HashSet<InetSocketAddress>();
+        MulticastSocket socket = new MulticastSocket(0);
+        try {
+            socket.setTimeToLive(ttl);
+            if (networkInterface != null) {
+                socket.setNetworkInterface(networkInterface);
+            }
+            long st = System.nanoTime();
+            long deadline = st + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+            socket.send(new DatagramPacket(bytes, bytes.length, request.getDestination(), request.getDestinationPort()));
+
+            DatagramPacket packet = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+            long remaining;
+            while ((remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+                socket.setSoTimeout((int) remaining);
+                try {
+                    packet.setLength(MAX_DATAGRAM);
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                Response response = parseResponse(packet);
+                if (response == null || !Arrays.equals(token, response.getToken())) {
+                    continue;
+                }
+                InetSocketAddress member = new InetSocketAddress(packet.getAddress(), packet.getPort());
+                if (response.getType() == Type.CON) {
+                    byte[] ack = serializer.serializeEmptyMessage(EmptyMessage.newACK(response));
+                    socket.send(new DatagramPacket(ack, ack.length, member));
+                }
+                if (seen.add(member)) {
+                    members.add(new Member(member, response, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - st)));
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        LOGGER.info(String.format("multicast %s: %d responses within %d ms", request.getURI(), members.size(), windowMillis));
+        return members;
+    }
+
+    private static Response parseResponse(DatagramPacket packet) {
+        DataParser parser = new DataParser(Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength()));
+        if (!parser.isWellFormed() || !parser.isResponse()) {
+            return null;
+        }
+        Response response = parser.parseResponse();
+        response.setSource(packet.getAddress());
+        response.setSourcePort(packet.getPort());
+        return response;
+    }
+
+    /**
+     * Renders the responses as a JSON object with one entry per member;
+     * printable payloads as text, others base64 encoded.
+     */
+    public static String toJson(List<Member> members, long windowMillis) throws IOException {
+        List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+        for (Member member : members) {
+            Response response = member.getResponse();
+            Map<String, Object> entry = new LinkedHashMap<String, Object>();
+            entry.put("address", member.getAddress().getAddress().getHostAddress() + ":" + member.getAddress().getPort());
+            entry.put("code", response.getCode().toString());
+            entry.put("latency", member.getLatencyMicros() / 1000.0);
+            int format = response.getOptions().getContentFormat();
+            if (format != MediaTypeRegistry.UNDEFINED) {
+                entry.put("contentFormat", format);
+            }
+            if (format == MediaTypeRegistry.UNDEFINED || MediaTypeRegistry.isPrintable(format)) {
+                entry.put("payload", new String(response.getPayload(), StandardCharsets.UTF_8));
+            } else {
+                entry.put("payloadBase64", Base64.getEncoder().encodeToString(response.getPayload()));
+            }
+            entries.add(entry);
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("window", windowMillis);
+        result.put("responses", entries.size());
+        result.put("members", entries);
+        return JSON.writeValueAsString(result);
+    }
+}
@@ -26,7 +26,6 @@ import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.OptionNumberRegistry.optionFormats;
 import org.eclipse.californium.proxy.InvalidFieldException;
 import org.eclipse.californium.proxy.InvalidMethodException;
-import org.eclipse.californium.proxy.MappingProperties;
 import org.eclipse.californium.proxy.TranslationException;
 
 import javax.servlet.http.HttpServletRequest;
@@ -47,19 +46,11 @@ import static java.nio.charset.StandardCharsets.ISO_8859_1;
  */
 public final class MyHttpTranslator {
 
-    private static final String KEY_COAP_CODE = "coap.response.code.";
-    private static final String KEY_COAP_OPTION = "coap.message.option.";
-    private static final String KEY_COAP_MEDIA = "coap.message.media.";
-    private static final String KEY_HTTP_CODE = "http.response.code.";
-    private static final String KEY_HTTP_METHOD = "http.request.method.";
-    private static final String KEY_HTTP_HEADER = "http.message.header.";
-    private static final String KEY_HTTP_CONTENT_TYPE = "http.message.content-type.";
-
     /**
      * Property file containing the mappings between coap messages and http
      * messages.
      */
-    public static final Properties HTTP_TRANSLATION_PROPERTIES = new MappingProperties("Proxy.properties");
+    public static final Properties HTTP_TRANSLATION_PROPERTIES = TranslationTables.PROPERTIES;
 
     // Error constants
     public static final int STATUS_TIMEOUT = HttpServletResponse.SC_GATEWAY_TIMEOUT;
@@ -67,6 +58,7 @@ public final class MyHttpTranslator {
     public static final int STATUS_TRANSLATION_ERROR = HttpServletResponse.SC_BAD_GATEWAY;
     public static final int STATUS_URI_MALFORMED = HttpServletResponse.SC_BAD_REQUEST;
     public static final int STATUS_WRONG_METHOD = HttpServletResponse.SC_NOT_IMPLEMENTED;
+    public static final int STATUS_CONDITION_UNSUPPORTED = HttpServletResponse.SC_NOT_IMPLEMENTED;
 
     public static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
 
@@ -100,10 +92,10 @@ public final class MyHttpTranslator {
             httpContentTypeString = httpContentTypeString.split(";")[0];
 
             // retrieve the mapping from the property file
-            String coapContentTypeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_CONTENT_TYPE + httpContentTypeString);
+            Integer mappedContentType = TranslationTables.coapMediaType(httpContentTypeString);
 
-            if (coapContentTypeString != null) {
-                coapContentType = Integer.parseInt(coapContentTypeString);
+            if (mappedContentType != null) {
+                coapContentType = mappedContentType;
             } else {
                 // try to parse the media type if the property file has given to
                 // mapping
@@ -131,9 +123,10 @@ public final class MyHttpTranslator {
      * the headers content is translated with the appropriate format required by
      * the mapped option.
      *
-     *
+     * @throws UnsupportedConditionException for a precondition CoAP cannot
+     *         express, which must not be dropped
      */
-    public static List<Option> getCoapOptions(HttpServletRequest req) {
+    public static List<Option> getCoapOptions(HttpServletRequest req) throws TranslationException {
         Enumeration<String> headers = req.getHeaderNames();
         if (!headers.hasMoreElements()) {
             throw new IllegalArgumentException("httpMessage == null");
@@ -153,23 +146,16 @@ public final class MyHttpTranslator {
                 if (headerName.startsWith("accept"))
                     continue;
 
-                // get the mapping from the property file
-                String optionCodeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_HEADER + headerName);
+                // get the mapping from the translation tables
+                Integer mappedOption = TranslationTables.coapOption(headerName);
 
                 // ignore the header if not found in the properties file
-                if (optionCodeString == null || optionCodeString.isEmpty()) {
+                if (mappedOption == null) {
                     continue;
                 }
 
                 // get the option number
-                int optionNumber = OptionNumberRegistry.RESERVED_0;
-                try {
-                    optionNumber = Integer.parseInt(optionCodeString.trim());
-                } catch (Exception e) {
-                    LOGGER.warning("Problems in the parsing: " + e.getMessage());
-                    // ignore the option if not recognized
-                    continue;
-                }
+                int optionNumber = mappedOption;
 
                 // ignore the content-type because it will be handled in the payload processing
                 if (optionNumber == OptionNumberRegistry.CONTENT_FORMAT) {
@@ -179,6 +165,26 @@ public final class MyHttpTranslator {
                 // get the value of the current header
                 String headerValue = req.getHeader(header).trim();
 
+                // conditional requests: the entity tags of If-None-Match
+                // become ETag options, which the server validates with 2.03;
+                // that is a GET validator only, a conditional write with tags
+                // has no CoAP equivalent
+                if (optionNumber == OptionNumberRegistry.IF_NONE_MATCH || optionNumber == OptionNumberRegistry.IF_MATCH) {
+                    if (EntityTags.isWildcard(headerValue)) {
+                        optionList.add(new Option(optionNumber));
+                    } else if (optionNumber == OptionNumberRegistry.IF_NONE_MATCH && !isSafeMethod(req.getMethod())) {
+                        throw new UnsupportedConditionException("If-None-Match with entity tags on " + req.getMethod());
+                    } else {
+                        int tagOption = optionNumber == OptionNumberRegistry.IF_NONE_MATCH ? OptionNumberRegistry.ETAG : optionNumber;
+                        // the tags may be spread over several header lines
+                        String tags = String.join(",", Collections.list(req.getHeaders(header)));
+                        for (byte[] etag : EntityTags.fromHttp(tags)) {
+                            optionList.add(new Option(tagOption, etag));
+                        }
+                    }
+                    continue;
+                }
+
                 // if the option is accept, it needs to translate the
                 // values
                 if (optionNumber == OptionNumberRegistry.ACCEPT) {
@@ -321,21 +327,13 @@ public final class MyHttpTranslator {
         String httpMethod = httpRequest.getMethod().toLowerCase();
 
         // get the coap method
-        String coapMethodString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_METHOD + httpMethod);
-        if (coapMethodString == null || coapMethodString.contains("error")) {
+        Code coapMethod = TranslationTables.coapMethod(httpMethod);
+        if (coapMethod == null) {
             throw new InvalidMethodException(httpMethod + " method not mapped");
         }
 
-        int coapMethod = 0;
-        try {
-            coapMethod = Integer.parseInt(coapMethodString.trim());
-        } catch (NumberFormatException e) {
-            LOGGER.warning("Cannot convert the http method in coap method: " + e);
-            throw new TranslationException("Cannot convert the http method in coap method", e);
-        }
-
         // create the request -- since HTTP is reliable use CON
-        Request coapRequest = new Request(Code.valueOf(coapMethod), Type.CON);
+        Request coapRequest = new Request(coapMethod, Type.CON);
 
         // get the uri
         String uriString = httpRequest.getRequestURI();
@@ -365,8 +363,11 @@ public final class MyHttpTranslator {
             // extract embedded URI
             uriString = uriString.substring(proxyResource.length());
 
+            // the decoder turned the '+' of coap+tcp:// and coap+ws:// into a space
+            uriString = uriString.replaceFirst("^(coaps?) (tcp|ws)://", "$1+$2://");
+
             // if the uri hasn't the indication of the scheme, add it
-            if (!uriString.matches("^coaps?://.*")) {
+            if (!uriString.matches("^coaps?(\\+(tcp|ws))?://.*")) {
                 uriString = "coap://" + uriString;
             }
 
@@ -429,7 +430,7 @@ public final class MyHttpTranslator {
             } else {
                 int coapContentType = coapMessage.getOptions().getContentFormat();
                 // search for the media type inside the property file
-                String coapContentTypeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_MEDIA + coapContentType);
+                String coapContentTypeString = TranslationTables.httpContentType(coapContentType);
 
                 // if the content-type has not been found in the property file,
                 // try to get its string value (expressed in mime type)
@@ -518,7 +519,7 @@ public final class MyHttpTranslator {
             int optionNumber = option.getNumber();
             if (optionNumber != OptionNumberRegistry.CONTENT_FORMAT && optionNumber != OptionNumberRegistry.ETAG) {
                 // get the mapping from the property file
-                String headerName = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_OPTION + optionNumber);
+                String headerName = TranslationTables.httpHeader(optionNumber);
 
                 // set the header
                 if (headerName != null && !headerName.isEmpty()) {
@@ -544,7 +545,7 @@ public final class MyHttpTranslator {
                     httpResponse.setHeader(headerName, stringOptionValue);
                 }
             } else if (optionNumber == OptionNumberRegistry.ETAG) {
-                httpResponse.setHeader("etag", "\"" + option.toValueString().substring(2) + "\"");
+                httpResponse.setHeader("etag", EntityTags.toHttp(option.getValue()));
             }
         }
     }
@@ -576,20 +577,12 @@ public final class MyHttpTranslator {
 
         // get/set the response code
         ResponseCode coapCode = coapResponse.getCode();
-        String httpCodeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_CODE + coapCode.value);
+        int httpCode = TranslationTables.httpStatus(coapCode.value);
 
-        if (httpCodeString == null || httpCodeString.isEmpty()) {
+        if (httpCode == 0) {
             LOGGER.warning("httpCodeString == null");
             throw new TranslationException("httpCodeString == null");
         }
-
-        int httpCode = 0;
-        try {
-            httpCode = Integer.parseInt(httpCodeString.trim());
-        } catch (NumberFormatException e) {
-            LOGGER.warning("Cannot convert the coap code in http status code" + e);
-            throw new TranslationException("Cannot convert the coap code in http status code", e);
-        }
         // create the http response and set the status line
         httpResponse.setStatus(httpCode);
         // set the headers
@@ -600,8 +593,9 @@ public final class MyHttpTranslator {
             httpResponse.setHeader("cache-control", "max-age=" + Long.toString(OptionNumberRegistry.Defaults.MAX_AGE));
         }
 
-        // get the http entity if the request was not HEAD
-        if (!httpRequest.getMethod().equalsIgnoreCase("head")) {
+        // get the http entity if the request was not HEAD and the response
+        // not a 304 Not Modified (from 2.03 Valid), which has no body
+        if (!httpRequest.getMethod().equalsIgnoreCase("head") && httpCode != HttpServletResponse.SC_NOT_MODIFIED) {
 
             // if the content-type is not set in the coap response and if the
             // response contains an error, then the content-type should set to
@@ -627,6 +621,10 @@ public final class MyHttpTranslator {
      * @param toCharset   the to charset
      * @return the byte[] the translation
      */
+    private static boolean isSafeMethod(String method) {
+        return "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method);
+    }
+
     private static byte[] changeCharset(byte[] payload, Charset fromCharset, Charset toCharset) {
         return new String(payload, fromCharset).getBytes(toCharset);
     }
@@ -639,4 +637,17 @@ public final class MyHttpTranslator {
 
     }
 
+
+    /**
+     * An HTTP precondition without a CoAP equivalent; forwarding the request
+     * without it would turn a conditional request into an unconditional one.
+     */
+    public static class UnsupportedConditionException extends TranslationException {
+
+        private static final long serialVersionUID = 4127835017749136271L;
+
+        public UnsupportedConditionException(String message) {
+            super(message);
+        }
+    }
 }
@@ -1,7 +1,10 @@
 package com.example.http2coap;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
 import org.eclipse.californium.proxy.TranslationException;
 
 import javax.servlet.ServletException;
@@ -10,6 +13,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.logging.Logger;
 
 @WebServlet(urlPatterns="/proxy/*", description="HTTP转发到CoAP")
@@ -20,6 +25,8 @@ public class MyServlet extends HttpServlet{
 
     private final static Logger LOGGER = Logger.getLogger(MyServlet.class.getCanonicalName());
 
+    private static final Supplier<MulticastFanout> MULTICAST = Suppliers.memoize(MulticastFanout::standard);
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         doPost(req, resp);
@@ -29,25 +36,98 @@ public class MyServlet extends HttpServlet{
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         try {
             long st = System.currentTimeMillis();
+            long stNanos = System.nanoTime();
             Request coapRequest = MyHttpTranslator.getCoapRequest(req, PROXY_RESOURCE_NAME);
             long et1 = System.currentTimeMillis();
-            coapRequest.setURI(coapRequest.getOptions().getProxyUri());
-            coapRequest.send();
-            Response coapResponse = coapRequest.waitForResponse();
-            long et2 = System.currentTimeMillis();
-            MyHttpTranslator.getHttpResponse(req, coapResponse, resp);
-            long et3 = System.currentTimeMillis();
-
-            LOGGER.info(String.format("http->coap cost: %d ms, coap request-response cost: %d ms, coap->http: %d ms", et1 - st, et2-et1, et3-et2));
+            // released when the response has been translated, whatever the outcome
+            long held = MemoryAccounting.EXCHANGE_OVERHEAD + MemoryAccounting.sizeOf(coapRequest);
+            MemoryAccounting.EXCHANGES.reserve(1, held);
+            try {
+                String proxyUri = coapRequest.getOptions().getProxyUri();
+                Response coapResponse;
+                if (CoapTcpTransport.handles(proxyUri)) {
+                    // coap+tcp:// and coap+ws:// destinations, reliable transport without retransmissions
+                    try {
+                        coapResponse = CoapTcpTransport.get().send(coapRequest, proxyUri);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        resp.sendError(MyHttpTranslator.STATUS_TRANSLATION_ERROR);
+                        return;
+                    } catch (IllegalArgumentException e) {
+                        // e.g. coap+tcp:// without a host
+                        e.printStackTrace();
+                        resp.sendError(MyHttpTranslator.STATUS_URI_MALFORMED);
+                        return;
+                    }
+                } else {
+                    coapRequest.setURI(proxyUri);
+                    if (coapRequest.getDestination().isMulticastAddress()) {
+                        fanOut(req, coapRequest, resp);
+                        return;
+                    }
+                    TrafficClass trafficClass = TrafficClass.fromHeader(req.getHeader(TrafficClass.HEADER), TrafficClass.INTERACTIVE);
+                    TrafficClassifier.tag(coapRequest, trafficClass);
+                    Endpoint endpoint = OutboundEndpoints.forRequest(coapRequest);
+                    NonConfirmableSender nonConfirmable = NonConfirmableSender.get();
+                    if (nonConfirmable != null && nonConfirmable.matches(coapRequest)) {
+                        coapResponse = nonConfirmable.send(coapRequest, endpoint, trafficClass);
+                    } else {
+                        coapRequest.send(endpoint);
+                        coapResponse = coapRequest.waitForResponse();
+                    }
+                }
+                long et2 = System.currentTimeMillis();
+                long responseSize = MemoryAccounting.sizeOf(coapResponse);
+                MemoryAccounting.EXCHANGES.reserve(0, responseSize);
+                held += responseSize;
+                if (TrafficRecorder.isRecording()) {
+                    TrafficRecorder.record(TrafficRecord.Source.HTTP,
+                            new InetSocketAddress(coapRequest.getDestination(), coapRequest.getDestinationPort()),
+                            coapRequest, coapResponse, st, System.nanoTime() - stNanos);
+                }
+                if (coapResponse == null) {
+                    resp.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    return;
+                }
+                MyHttpTranslator.getHttpResponse(req, coapResponse, resp);
+                long et3 = System.currentTimeMillis();
+
+                LOGGER.info(String.format("http->coap cost: %d ms, coap request-response cost: %d ms, coap->http: %d ms", et1 - st, et2-et1, et3-et2));
+            } finally {
+                MemoryAccounting.EXCHANGES.release(1, held);
+            }
+        } catch (MyHttpTranslator.UnsupportedConditionException e) {
+            LOGGER.info(e.getMessage());
+            resp.sendError(MyHttpTranslator.STATUS_CONDITION_UNSUPPORTED, e.getMessage());
         } catch (TranslationException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
             e.printStackTrace();
+        } catch (IllegalStateException e) {
+            // no endpoint for the scheme, e.g. coaps:// without a key
+            e.printStackTrace();
+            resp.sendError(MyHttpTranslator.STATUS_TRANSLATION_ERROR);
         }
 //        OutputStream outputStream = resp.getOutputStream();
 //        outputStream.write("hehehhe".getBytes());
     }
 
+    /**
+     * Sends the request to a CoAP group and answers with the responses of
+     * all members as one JSON document.
+     */
+    private void fanOut(HttpServletRequest req, Request coapRequest, HttpServletResponse resp) throws IOException {
+        MulticastFanout fanout = MULTICAST.get();
+        // the members are addressed through the Uri options
+        coapRequest.getOptions().removeProxyUri();
+        long window = fanout.window(req.getHeader(MulticastFanout.WINDOW_HEADER));
+        List<MulticastFanout.Member> members = fanout.collect(coapRequest, window);
+        resp.setStatus(members.isEmpty() ? HttpServletResponse.SC_GATEWAY_TIMEOUT : HttpServletResponse.SC_OK);
+        resp.setContentType("application/json; charset=UTF-8");
+        resp.setHeader("cache-control", "no-cache");
+        resp.getWriter().write(MulticastFanout.toJson(members, window));
+    }
+
     @Override
     protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         doPost(req, resp);
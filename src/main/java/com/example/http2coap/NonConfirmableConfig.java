@@ -0,0 +1,36 @@
+package com.example.http2coap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+
+/**
+ * Sends reads on the routes listed in {@code nonconfirmable.routes} through
+ * the {@link NonConfirmableSender}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "nonconfirmable.routes")
+public class NonConfirmableConfig {
+
+    @Value("${nonconfirmable.routes}")
+    private String[] routes;
+
+    @Value("${nonconfirmable.attempts:3}")
+    private int attempts;
+
+    @Value("${nonconfirmable.attempt-timeout:300}")
+    private long attemptTimeout;
+
+    @Value("${nonconfirmable.deadline:2000}")
+    private long deadline;
+
+    @Bean
+    NonConfirmableSender nonConfirmableSender() {
+        NonConfirmableSender sender = new NonConfirmableSender(Arrays.asList(routes), attempts, attemptTimeout, deadline);
+        NonConfirmableSender.install(sender);
+        return sender;
+    }
+}
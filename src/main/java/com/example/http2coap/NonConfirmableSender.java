@@ -0,0 +1,203 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the GET requests of marked routes as NON messages and retries them
+ * itself instead of relying on the CON retransmission schedule.
+ * <p>
+ * Every attempt is a new request with its own token, so the responses are
+ * matched to attempts by token and a late response to an earlier attempt is
+ * as good as one to the latest: the first response wins, the remaining
+ * attempts are cancelled. The time between attempts starts at the attempt
+ * timeout and doubles, but the last attempt is cut short by the deadline of
+ * the whole request.
+ * <p>
+ * Routes are Proxy-Uri prefixes that end on a path segment, e.g.
+ * {@code coap://10.0.0.7:5683/telemetry} covers {@code /telemetry} and
+ * {@code /telemetry/temp} but not {@code /telemetry2}. Requests without a
+ * Proxy-Uri are matched by their own URI.
+ */
+public class NonConfirmableSender implements GatewayMetrics.Source {
+
+    private static volatile NonConfirmableSender installed;
+
+    private final List<String> routes;
+    private final int attempts;
+    private final long attemptTimeout;
+    private final long deadline;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param routes the Proxy-Uri prefixes, a missing scheme means coap://
+     * @param attempts the maximum number of attempts per request
+     * @param attemptTimeout the time in milliseconds to wait for the first
+     *                       attempt
+     * @param deadline the time in milliseconds after which a request fails
+     */
+    public NonConfirmableSender(List<String> routes, int attempts, long attemptTimeout, long deadline) {
+        if (attempts <= 0 || attemptTimeout <= 0 || deadline <= 0) {
+            throw new IllegalArgumentException("attempts, attemptTimeout and deadline must be positive");
+        }
+        this.routes = new ArrayList<String>();
+        for (String route : routes) {
+            route = route.trim();
+            if (!route.isEmpty()) {
+                this.routes.add(route.matches("^coaps?(\\+(tcp|ws))?://.*") ? route : "coap://" + route);
+            }
+        }
+        this.attempts = attempts;
+        this.attemptTimeout = attemptTimeout;
+        this.deadline = deadline;
+    }
+
+    static void install(NonConfirmableSender sender) {
+        installed = sender;
+        GatewayMetrics.register("nonconfirmable", sender);
+    }
+
+    /**
+     * @return the installed sender, null if no route is marked
+     */
+    static NonConfirmableSender get() {
+        return installed;
+    }
+
+    /**
+     * @return true if the request is an idempotent read on a marked route
+     */
+    public boolean matches(Request request) {
+        if (request.getCode() != Code.GET || request.getOptions().hasObserve()) {
+            return false;
+        }
+        String uri = request.getOptions().getProxyUri();
+        if (uri == null) {
+            uri = request.getURI();
+        }
+        for (String route : routes) {
+            if (covers(route, uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the uri starts with the route and the route ends on a
+     *         path segment of the uri
+     */
+    static boolean covers(String route, String uri) {
+        if (!uri.startsWith(route)) {
+            return false;
+        }
+        if (uri.length() == route.length() || route.endsWith("/")) {
+            return true;
+        }
+        char next = uri.charAt(route.length());
+        return next == '/' || next == '?' || next == '#';
+    }
+
+    /**
+     * Sends the request until a response arrives or the deadline passes.
+     *
+     * @param trafficClass the class of the retries, see
+     *                     {@link TrafficClassifier#tag(Request, TrafficClass)}
+     * @return the first response, null if there was none in time
+     */
+    public Response send(Request request, Endpoint endpoint, TrafficClass trafficClass) throws InterruptedException {
+        requests.increment();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+        FirstResponse first = new FirstResponse();
+        List<Request> sent = new ArrayList<Request>();
+        long wait = attemptTimeout;
+        try {
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                Request current = attempt == 0 ? request : copy(request, trafficClass);
+                current.setType(Type.NON);
+                current.addMessageObserver(first);
+                sent.add(current);
+                if (attempt > 0) {
+                    retries.increment();
+                }
+                current.send(endpoint);
+
+                long remaining = end - System.nanoTime();
+                // the last attempt waits for the rest of the deadline
+                long timeout = attempt == attempts - 1 ? remaining : Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(wait));
+                Response response = first.responses.poll(Math.max(0, timeout), TimeUnit.NANOSECONDS);
+                if (response != null) {
+                    return response;
+                }
+                if (end - System.nanoTime() <= 0) {
+                    break;
+                }
+                wait *= 2;
+            }
+            failures.increment();
+            return null;
+        } finally {
+            for (Request attempt : sent) {
+                if (attempt.getResponse() == null) {
+                    attempt.cancel();
+                }
+            }
+        }
+    }
+
+    private static Request copy(Request request, TrafficClass trafficClass) {
+        Request copy = new Request(request.getCode(), Type.NON);
+        copy.setOptions(new OptionSet(request.getOptions()));
+        copy.setPayload(request.getPayload());
+        copy.setDestination(request.getDestination());
+        copy.setDestinationPort(request.getDestinationPort());
+        // tagging assigns a new token, otherwise the matcher does
+        TrafficClassifier.tag(copy, trafficClass);
+        return copy;
+    }
+
+    @Override
+    public void collect(Map<String, Number> metrics) {
+        metrics.put("routes", routes.size());
+        metrics.put("requests", requests.sum());
+        metrics.put("retries", retries.sum());
+        metrics.put("responses.late", late.sum());
+        metrics.put("failures", failures.sum());
+    }
+
+    /**
+     * Hands the response of any attempt to the waiting request.
+     */
+    private class FirstResponse extends MessageObserverAdapter {
+
+        private final BlockingQueue<Response> responses = new ArrayBlockingQueue<Response>(1);
+        private final AtomicBoolean answered = new AtomicBoolean();
+
+        @Override
+        public void onResponse(Response response) {
+            if (answered.compareAndSet(false, true)) {
+                responses.offer(response);
+            } else {
+                late.increment();
+            }
+        }
+    }
+}
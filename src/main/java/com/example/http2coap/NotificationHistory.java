@@ -0,0 +1,198 @@
+package com.example.http2coap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-capacity history of the recent notifications of one observed
+ * resource.
+ * <p>
+ * Payloads are stored back to back in a direct (off-heap) byte ring, their
+ * time, ETag, position and length in primitive arrays indexed by sequence
+ * number modulo the entry capacity. An entry is dropped when its slot is
+ * reused or its payload bytes have been overwritten, so the heap cost per
+ * resource is a few small arrays regardless of the payload sizes. The ring
+ * is allocated with the first notification, a resource that never notifies
+ * holds no off-heap memory.
+ * <p>
+ * ETags are expected to increase with every notification.
+ */
+public class NotificationHistory {
+
+    /**
+     * A notification read from the history.
+     */
+    public static class Notification {
+
+        private final long time;
+        private final long etag;
+        private final String data;
+
+        Notification(long time, long etag, String data) {
+            this.time = time;
+            this.etag = etag;
+            this.data = data;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getEtag() {
+            return etag;
+        }
+
+        public String getData() {
+            return data;
+        }
+    }
+
+    /**
+     * The result of a since-ETag read.
+     */
+    public static class Page {
+
+        private final List<Notification> notifications;
+        private final boolean complete;
+
+        Page(List<Notification> notifications, boolean complete) {
+            this.notifications = notifications;
+            this.complete = complete;
+        }
+
+        public List<Notification> getNotifications() {
+            return notifications;
+        }
+
+        /**
+         * @return false if notifications after the given ETag have already
+         *         been dropped from the history
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    private final int capacity;
+    private ByteBuffer ring;
+    private final long[] times;
+    private final long[] etags;
+    private final long[] starts;
+    private final int[] lengths;
+
+    /* sequence numbers of the oldest retained and the next notification */
+    private long oldest;
+    private long next;
+    /* ETag of the newest notification dropped so far */
+    private long dropped = Long.MIN_VALUE;
+    /* number of payload bytes ever written */
+    private long written;
+
+    /**
+     * @param entries the maximum number of notifications kept
+     * @param bytes the size of the payload ring
+     */
+    public NotificationHistory(int entries, int bytes) {
+        if (entries <= 0 || bytes <= 0) {
+            throw new IllegalArgumentException("entries and bytes must be positive");
+        }
+        capacity = bytes;
+        times = new long[entries];
+        etags = new long[entries];
+        starts = new long[entries];
+        lengths = new int[entries];
+    }
+
+    /**
+     * @return the bytes held by the history, on and off the heap, which
+     *         grow by the ring with the first notification only
+     */
+    public synchronized long retainedBytes() {
+        return (ring == null ? 0 : capacity) + times.length * (8L + 8 + 8 + 4);
+    }
+
+    /**
+     * Appends a notification; payloads larger than the ring are cut to its
+     * size.
+     */
+    public synchronized void append(long time, long etag, String data) {
+        if (ring == null) {
+            ring = ByteBuffer.allocateDirect(capacity);
+        }
+        byte[] payload = data.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(payload.length, ring.capacity());
+        int slot = (int) (next % times.length);
+        if (next - oldest == times.length) {
+            drop();
+        }
+        times[slot] = time;
+        etags[slot] = etag;
+        starts[slot] = written;
+        lengths[slot] = length;
+
+        int position = (int) (written % ring.capacity());
+        int first = Math.min(length, ring.capacity() - position);
+        for (int i = 0; i < first; i++) {
+            ring.put(position + i, payload[i]);
+        }
+        for (int i = first; i < length; i++) {
+            ring.put(i - first, payload[i]);
+        }
+        written += length;
+        next++;
+        while (oldest < next && starts[(int) (oldest % times.length)] < written - ring.capacity()) {
+            drop();
+        }
+    }
+
+    /**
+     * @return the retained notifications with from &lt;= time &lt; to, oldest
+     *         first, at most limit
+     */
+    public synchronized List<Notification> range(long from, long to, int limit) {
+        List<Notification> result = new ArrayList<Notification>();
+        for (long seq = oldest; seq < next && result.size() < limit; seq++) {
+            int slot = (int) (seq % times.length);
+            if (times[slot] >= from && times[slot] < to) {
+                result.add(read(slot));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the retained notifications newer than the one with the ETag,
+     *         oldest first, at most limit
+     */
+    public synchronized Page since(long etag, int limit) {
+        List<Notification> result = new ArrayList<Notification>();
+        for (long seq = oldest; seq < next && result.size() < limit; seq++) {
+            int slot = (int) (seq % times.length);
+            if (etags[slot] > etag) {
+                result.add(read(slot));
+            }
+        }
+        // no gap if the client has seen everything dropped so far
+        return new Page(result, dropped <= etag);
+    }
+
+    public synchronized int size() {
+        return (int) (next - oldest);
+    }
+
+    private void drop() {
+        dropped = etags[(int) (oldest % times.length)];
+        oldest++;
+    }
+
+    private Notification read(int slot) {
+        byte[] payload = new byte[lengths[slot]];
+        int position = (int) (starts[slot] % ring.capacity());
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = ring.get((position + i) % ring.capacity());
+        }
+        return new Notification(times[slot], etags[slot], new String(payload, StandardCharsets.UTF_8));
+    }
+}
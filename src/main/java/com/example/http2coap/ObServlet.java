@@ -1,9 +1,5 @@
 package com.example.http2coap;
 
-import org.eclipse.californium.core.CoapClient;
-import org.eclipse.californium.core.CoapHandler;
-import org.eclipse.californium.core.CoapResponse;
-import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.proxy.TranslationException;
 
 import javax.servlet.ServletException;
@@ -13,61 +9,229 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.Logger;
 
 @WebServlet(urlPatterns = "/proxy-ob/*", description = "HTTP转发到CoAP")
 public class ObServlet extends HttpServlet {
-    private final static Logger LOGGER = Logger.getLogger(ObServlet.class.getCanonicalName());
     private static final String PROXY_RESOURCE_NAME = "/proxy-ob/";
 
     private static String Result = "";
-    private static Subject subject;
+    private static final ConcurrentHashMap<String, Subject> subjects = new ConcurrentHashMap<String, Subject>();
+    private static volatile ObserveCluster cluster;
+    private static volatile int historyEntries = 256;
+    private static volatile int historyBytes = 64 * 1024;
+    /* milliseconds a subject is kept without being read, 0 to keep it forever */
+    private static volatile long idleTimeout;
+    private static volatile long nextSweep;
+
+    static void setCluster(ObserveCluster observeCluster) {
+        cluster = observeCluster;
+    }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String resource;
+        try {
+            resource = MyHttpTranslator.getCoapRequest(req, PROXY_RESOURCE_NAME).getOptions().getProxyUri();
+        } catch (TranslationException e) {
+            e.printStackTrace();
+            resp.sendError(MyHttpTranslator.STATUS_TRANSLATION_ERROR);
+            return;
+        }
+
+        evictIdle(System.currentTimeMillis());
+        Subject subject = subjects.get(resource);
         if (subject == null) {
-            subject = new Subject();
-            createObserver(req);
+            if (MemoryAccounting.SUBSCRIBERS.isOverLimit()) {
+                // keep serving the observed resources, but take on no new ones
+                MemoryAccounting.SUBSCRIBERS.shed();
+                resp.setHeader("Retry-After", "1");
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            subject = subjectFor(resource);
+            // the owner node, possibly this one, sets up the observation
+            cluster.interest(resource);
         }
+        subject.lastRead = System.currentTimeMillis();
         resp.setHeader("eTag", subject.etag);
         PrintWriter writer = resp.getWriter();
         writer.println(subject.data);
 
     }
 
-    private void createObserver(HttpServletRequest req) {
-        try {
-            Request coapReq = MyHttpTranslator.getCoapRequest(req, PROXY_RESOURCE_NAME);
-            CoapClient client = new CoapClient(coapReq.getOptions().getProxyUri());
-            client.observe(
-                    new CoapHandler() {
-                        @Override
-                        public void onLoad(CoapResponse response) {
-                            String content = response.getResponseText();
-                            LOGGER.info(content);
-
-                            subject.data = content;
-                            subject.date = new Date();
-                            subject.etag = String.valueOf(new Date().getTime());
-                        }
-
-                        @Override
-                        public void onError() {
-                            System.err.println("-Failed--------");
-                        }
-                    });
-        } catch (TranslationException e) {
-            e.printStackTrace();
+    /**
+     * Called for every notification of an observed resource, either from
+     * the local observation or republished by the owning cluster node.
+     * Notifications of resources no client of this node reads are ignored.
+     */
+    static void onNotification(String resource, String content) {
+        Subject subject = subjects.get(resource);
+        if (subject == null) {
+            return;
+        }
+        synchronized (subject) {
+            if (subject.evicted) {
+                return;
+            }
+            Date date = new Date();
+            // ETags must grow with every notification for the history queries
+            long etag = Math.max(date.getTime(), subject.lastEtag + 1);
+            subject.lastEtag = etag;
+            subject.data = content;
+            subject.date = date;
+            subject.etag = String.valueOf(etag);
+            subject.history.append(date.getTime(), etag, content);
+            subject.account();
+        }
+    }
+
+    /**
+     * Sets the size of the notification history kept for each resource
+     * observed afterwards.
+     *
+     * @param entries the number of notifications
+     * @param bytes the payload bytes
+     */
+    static void setHistorySize(int entries, int bytes) {
+        historyEntries = entries;
+        historyBytes = bytes;
+    }
+
+    /**
+     * Sets how long the subject and history of a resource are kept after
+     * its last read; then this node withdraws its interest, which ends the
+     * upstream observation unless other nodes still have clients for it. A
+     * resource read again afterwards starts over.
+     *
+     * @param millis the idle time, 0 to keep them as long as the gateway runs
+     */
+    static void setIdleTimeout(long millis) {
+        idleTimeout = Math.max(0, millis);
+    }
+
+    /**
+     * @return the notification history of the resource, null if it is not
+     *         observed
+     */
+    static NotificationHistory historyOf(String resource) {
+        evictIdle(System.currentTimeMillis());
+        Subject subject = subjects.get(resource);
+        if (subject == null) {
+            return null;
+        }
+        subject.lastRead = System.currentTimeMillis();
+        return subject.history;
+    }
+
+    /**
+     * Drops the subjects not read for the idle timeout, at most once per
+     * tenth of it.
+     *
+     * @return the number of subjects dropped
+     */
+    static int evictIdle(long now) {
+        long timeout = idleTimeout;
+        if (timeout <= 0 || now < nextSweep) {
+            return 0;
+        }
+        nextSweep = now + Math.max(1, timeout / 10);
+        int evicted = 0;
+        for (Map.Entry<String, Subject> entry : subjects.entrySet()) {
+            Subject subject = entry.getValue();
+            if (now - subject.lastRead >= timeout && subjects.remove(entry.getKey(), subject)) {
+                synchronized (subject) {
+                    subject.evicted = true;
+                    MemoryAccounting.SUBSCRIBERS.release(1, subject.accounted);
+                    subject.accounted = 0;
+                }
+                withdraw(entry.getKey());
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the observed resources and their last notification
+     */
+    static Map<String, Subject> getSubjects() {
+        return Collections.unmodifiableMap(subjects);
+    }
+
+    /**
+     * Restores the last notification of a resource from before a restart.
+     * Notifications that arrived in the meantime are kept.
+     */
+    static void restore(String resource, String content, String etag) {
+        Subject subject = subjectFor(resource);
+        synchronized (subject) {
+            if (subject.date == null && !subject.evicted) {
+                subject.data = content == null ? "" : content;
+                subject.etag = etag == null ? "" : etag;
+                subject.date = new Date();
+                try {
+                    subject.lastEtag = Long.parseLong(subject.etag);
+                } catch (NumberFormatException e) {
+                    // not one of ours, the next notification starts over
+                }
+                subject.account();
+            }
         }
+    }
 
+    private static void withdraw(String resource) {
+        ObserveCluster current = cluster;
+        if (current == null) {
+            return;
+        }
+        current.withdraw(resource);
+        if (subjects.containsKey(resource)) {
+            // read again while being evicted
+            current.interest(resource);
+        }
     }
 
-    class Subject {
-        private String data = "";
-        private Date date;
-        private String etag = "";
+    private static Subject subjectFor(String resource) {
+        // each subject holds an off-heap history, create it once only
+        return subjects.computeIfAbsent(resource, key -> {
+            Subject subject = new Subject();
+            MemoryAccounting.SUBSCRIBERS.reserve(1, 0);
+            synchronized (subject) {
+                subject.account();
+            }
+            return subject;
+        });
+    }
+
+    static class Subject {
+        private volatile String data = "";
+        private volatile Date date;
+        private volatile String etag = "";
+        private long lastEtag;
+        /* when a client last read the resource or its history */
+        private volatile long lastRead = System.currentTimeMillis();
+        /* removed from the subjects, no longer accounted */
+        private boolean evicted;
+        private final NotificationHistory history = new NotificationHistory(historyEntries, historyBytes);
+        /* bytes reported to the memory accounting so far */
+        private long accounted;
+
+        /**
+         * Updates the memory accounting with the current size, called with
+         * the subject locked.
+         */
+        private void account() {
+            if (evicted) {
+                return;
+            }
+            long bytes = MemoryAccounting.SUBJECT_OVERHEAD + history.retainedBytes() + 2L * (data.length() + etag.length());
+            MemoryAccounting.SUBSCRIBERS.reserve(0, bytes - accounted);
+            accounted = bytes;
+        }
 
         public String getData() {
             return data;
@@ -0,0 +1,389 @@
+package com.example.http2coap;
+
+import com.example.http2coap.ClusterMessage.Type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares upstream observations between the gateway nodes of a cluster.
+ * <p>
+ * Every node learns about the resources the others have clients for and
+ * about which nodes are alive (heartbeats over the {@link ClusterBus}). The
+ * owner of a resource is picked by rendezvous hashing over the live nodes,
+ * so all nodes agree on it without coordination. Only the owner registers
+ * the upstream observation and republishes its notifications to the peers.
+ * When the member set changes ownership is recomputed; new owners register
+ * the observation and former owners cancel theirs. Once no live node has
+ * clients for a resource any more, its owner cancels the observation.
+ * <p>
+ * Bus messages are always published outside of the lock, so synchronous bus
+ * implementations may deliver on the publishing thread.
+ */
+public class ObserveCluster implements ClusterBus.Listener {
+
+    private static final Logger LOGGER = Logger.getLogger(ObserveCluster.class.getCanonicalName());
+
+    /* missed heartbeats after which a peer is considered gone */
+    private static final int FAILURE_HEARTBEATS = 3;
+
+    private static final Object PENDING = new Object();
+
+    /**
+     * Registers and cancels the upstream observations owned by this node.
+     */
+    public interface Upstream {
+
+        /**
+         * Starts observing the resource, notifications are passed to
+         * {@link ObserveCluster#publishNotification(String, String)}.
+         *
+         * @return a handle for {@link #cancel(Object)}
+         */
+        Object observe(String resource, ObserveCluster cluster);
+
+        void cancel(Object handle);
+    }
+
+    /**
+     * Receives the notifications of all observed resources, local or
+     * republished by the owner.
+     */
+    public interface NotificationSink {
+
+        void onNotification(String resource, String payload);
+    }
+
+    private final String nodeId;
+    private final ClusterBus bus;
+    private final Upstream upstream;
+    private final NotificationSink sink;
+
+    /* peers and the time they were last heard of */
+    private final Map<String, Long> members = new HashMap<String, Long>();
+    /* resources any node has clients for, with those nodes */
+    private final Map<String, Set<String>> interests = new HashMap<String, Set<String>>();
+    /* resources this node has clients for */
+    private final Set<String> localInterests = new HashSet<String>();
+    /* upstream observations of this node */
+    private final Map<String, Object> owned = new HashMap<String, Object>();
+
+    private long failureTimeout = Long.MAX_VALUE;
+    private ScheduledExecutorService scheduler;
+
+    public ObserveCluster(String nodeId, ClusterBus bus, Upstream upstream, NotificationSink sink) {
+        this.nodeId = nodeId;
+        this.bus = bus;
+        this.upstream = upstream;
+        this.sink = sink;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Joins the cluster and starts sending heartbeats.
+     */
+    public void start(long heartbeatMillis) {
+        synchronized (this) {
+            failureTimeout = heartbeatMillis * FAILURE_HEARTBEATS;
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "observe-cluster");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        join();
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                heartbeat(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Cluster heartbeat failed", e);
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leaves the cluster, the peers take over the observations of this node.
+     */
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        leave();
+    }
+
+    void join() {
+        bus.subscribe(this);
+        bus.publish(new ClusterMessage(Type.HEARTBEAT, nodeId, null, null));
+    }
+
+    void leave() {
+        List<Object> handles;
+        synchronized (this) {
+            handles = new ArrayList<Object>(owned.values());
+            owned.clear();
+            interests.clear();
+            members.clear();
+        }
+        bus.unsubscribe(this);
+        bus.publish(new ClusterMessage(Type.LEAVE, nodeId, null, null));
+        cancel(handles);
+    }
+
+    void heartbeat(long now) {
+        bus.publish(new ClusterMessage(Type.HEARTBEAT, nodeId, null, null));
+        boolean changed = false;
+        List<Object> handles = new ArrayList<Object>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Long>> it = members.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Long> member = it.next();
+                if (now - member.getValue() > failureTimeout) {
+                    LOGGER.info("Cluster node " + member.getKey() + " timed out");
+                    it.remove();
+                    dropInterests(member.getKey(), handles);
+                    changed = true;
+                }
+            }
+        }
+        cancel(handles);
+        if (changed) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Announces that this node has clients for the resource. The owner, which
+     * may be this node, starts observing it if it does not already.
+     */
+    public void interest(String resource) {
+        boolean added;
+        synchronized (this) {
+            added = localInterests.add(resource);
+            if (added) {
+                addInterest(resource, nodeId);
+            }
+        }
+        if (added) {
+            bus.publish(new ClusterMessage(Type.INTEREST, nodeId, resource, null));
+            rebalance();
+        }
+    }
+
+    /**
+     * Announces that this node has no clients for the resource any more. The
+     * owner, which may be this node, cancels the observation if no other
+     * node has clients for it.
+     */
+    public void withdraw(String resource) {
+        Object handle;
+        synchronized (this) {
+            if (!localInterests.remove(resource)) {
+                return;
+            }
+            handle = removeInterest(resource, nodeId);
+        }
+        bus.publish(new ClusterMessage(Type.WITHDRAW, nodeId, resource, null));
+        cancel(Collections.singletonList(handle));
+    }
+
+    /**
+     * @return true if the resource is new to the cluster
+     */
+    private boolean addInterest(String resource, String node) {
+        Set<String> nodes = interests.get(resource);
+        boolean added = nodes == null;
+        if (added) {
+            nodes = new HashSet<String>();
+            interests.put(resource, nodes);
+        }
+        nodes.add(node);
+        return added;
+    }
+
+    /**
+     * @return the handle of the observation to cancel once no node is
+     *         interested in the resource, null if there is none
+     */
+    private Object removeInterest(String resource, String node) {
+        Set<String> nodes = interests.get(resource);
+        if (nodes == null || !nodes.remove(node) || !nodes.isEmpty()) {
+            return null;
+        }
+        interests.remove(resource);
+        Object handle = owned.remove(resource);
+        if (handle != null) {
+            LOGGER.info("Node " + nodeId + " stops observing " + resource + ", no clients left");
+        }
+        return handle;
+    }
+
+    /**
+     * Forgets the interests of a node that is gone.
+     */
+    private void dropInterests(String node, List<Object> handles) {
+        for (String resource : new ArrayList<String>(interests.keySet())) {
+            Object handle = removeInterest(resource, node);
+            if (handle != null) {
+                handles.add(handle);
+            }
+        }
+    }
+
+    /**
+     * Hands a notification of an owned observation to the local sink and
+     * republishes it to the peers.
+     */
+    public void publishNotification(String resource, String payload) {
+        sink.onNotification(resource, payload);
+        bus.publish(new ClusterMessage(Type.NOTIFY, nodeId, resource, payload));
+    }
+
+    @Override
+    public void onMessage(ClusterMessage message) {
+        if (nodeId.equals(message.getNode())) {
+            return;
+        }
+        if (message.getType() == Type.LEAVE) {
+            boolean removed;
+            List<Object> handles = new ArrayList<Object>();
+            synchronized (this) {
+                removed = members.remove(message.getNode()) != null;
+                dropInterests(message.getNode(), handles);
+            }
+            cancel(handles);
+            if (removed) {
+                LOGGER.info("Cluster node " + message.getNode() + " left");
+                rebalance();
+            }
+            return;
+        }
+
+        boolean joined;
+        boolean newInterest = false;
+        Object withdrawn = null;
+        List<String> announce = null;
+        synchronized (this) {
+            joined = members.put(message.getNode(), System.currentTimeMillis()) == null;
+            if (joined) {
+                announce = new ArrayList<String>(localInterests);
+            }
+            if (message.getType() == Type.INTEREST) {
+                newInterest = addInterest(message.getResource(), message.getNode());
+            } else if (message.getType() == Type.WITHDRAW) {
+                withdrawn = removeInterest(message.getResource(), message.getNode());
+            }
+        }
+        if (withdrawn != null) {
+            cancel(Collections.singletonList(withdrawn));
+        }
+        if (joined) {
+            LOGGER.info("Cluster node " + message.getNode() + " joined");
+            // the new node does not know about us nor what our clients observe
+            bus.publish(new ClusterMessage(Type.HEARTBEAT, nodeId, null, null));
+            for (String resource : announce) {
+                bus.publish(new ClusterMessage(Type.INTEREST, nodeId, resource, null));
+            }
+        }
+        if (joined || newInterest) {
+            rebalance();
+        }
+        if (message.getType() == Type.NOTIFY) {
+            sink.onNotification(message.getResource(), message.getPayload());
+        }
+    }
+
+    /**
+     * @return the node responsible for observing the resource
+     */
+    public synchronized String ownerOf(String resource) {
+        String owner = nodeId;
+        long best = weight(nodeId, resource);
+        for (String member : members.keySet()) {
+            long weight = weight(member, resource);
+            if (weight > best || (weight == best && member.compareTo(owner) < 0)) {
+                best = weight;
+                owner = member;
+            }
+        }
+        return owner;
+    }
+
+    public synchronized boolean isObserving(String resource) {
+        return owned.containsKey(resource);
+    }
+
+    /**
+     * @return true if any live node, this one included, has clients for the
+     *         resource
+     */
+    public synchronized boolean isInterested(String resource) {
+        return interests.containsKey(resource);
+    }
+
+    public synchronized Set<String> getMembers() {
+        Set<String> all = new HashSet<String>(members.keySet());
+        all.add(nodeId);
+        return all;
+    }
+
+    private void rebalance() {
+        List<String> start = new ArrayList<String>();
+        List<Object> cancel = new ArrayList<Object>();
+        synchronized (this) {
+            for (String resource : interests.keySet()) {
+                boolean mine = nodeId.equals(ownerOf(resource));
+                if (mine && !owned.containsKey(resource)) {
+                    owned.put(resource, PENDING);
+                    start.add(resource);
+                } else if (!mine && owned.containsKey(resource)) {
+                    cancel.add(owned.remove(resource));
+                }
+            }
+        }
+        cancel(cancel);
+        for (String resource : start) {
+            LOGGER.info("Node " + nodeId + " takes over observation of " + resource);
+            Object handle = upstream.observe(resource, this);
+            boolean keep;
+            synchronized (this) {
+                keep = owned.get(resource) == PENDING;
+                if (keep) {
+                    owned.put(resource, handle);
+                }
+            }
+            if (!keep) {
+                // ownership moved on while registering
+                upstream.cancel(handle);
+            }
+        }
+    }
+
+    private void cancel(List<Object> handles) {
+        for (Object handle : handles) {
+            if (handle != PENDING && handle != null) {
+                upstream.cancel(handle);
+            }
+        }
+    }
+
+    private static long weight(String node, String resource) {
+        long h = node.hashCode() * 0x9E3779B97F4A7C15L + resource.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
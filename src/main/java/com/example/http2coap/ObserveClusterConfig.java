@@ -0,0 +1,38 @@
+package com.example.http2coap;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Wires the {@link ObserveCluster} used by {@link ObServlet}. Without a
+ * {@link ClusterBus} bean the gateway runs as a single node cluster on a
+ * {@link LoopbackClusterBus}.
+ */
+@Configuration
+public class ObserveClusterConfig {
+
+    @Value("${cluster.node-id:}")
+    private String nodeId;
+
+    @Value("${cluster.heartbeat:1000}")
+    private long heartbeat;
+
+    @Bean
+    CoapObserveUpstream coapObserveUpstream() {
+        return new CoapObserveUpstream();
+    }
+
+    @Bean(destroyMethod = "stop")
+    ObserveCluster observeCluster(ObjectProvider<ClusterBus> bus, CoapObserveUpstream upstream) {
+        String id = nodeId.isEmpty() ? ManagementFactory.getRuntimeMXBean().getName() : nodeId;
+        ObserveCluster cluster = new ObserveCluster(id, bus.getIfAvailable(LoopbackClusterBus::new),
+                upstream, ObServlet::onNotification);
+        cluster.start(heartbeat);
+        ObServlet.setCluster(cluster);
+        return cluster;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.http2coap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Sizes the notification history {@link ObServlet} keeps per observed
+ * resource and how long it keeps resources nobody reads.
+ */
+@Configuration
+public class ObserveHistoryConfig {
+
+    @Value("${observe.history.entries:256}")
+    private int historyEntries;
+
+    @Value("${observe.history.bytes:65536}")
+    private int historyBytes;
+
+    @Value("${observe.idle-timeout:600000}")
+    private long idleTimeout;
+
+    @PostConstruct
+    void configure() {
+        ObServlet.setHistorySize(historyEntries, historyBytes);
+        ObServlet.setIdleTimeout(idleTimeout);
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.http2coap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Compact snapshot of the observe state, kept in a memory-mapped file.
+ * <p>
+ * The file holds two slots written alternately. Each slot starts with a
+ * header (magic, generation, payload length, CRC32) that is written after
+ * the payload, so a crash while writing leaves the previous generation in
+ * the other slot intact. {@link #read()} returns the entries of the newest
+ * valid slot.
+ */
+public class ObserveSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(ObserveSnapshot.class.getCanonicalName());
+
+    private static final int MAGIC = 0x4F425331; // "OBS1"
+    private static final int HEADER = 4 + 8 + 4 + 4;
+
+    public enum Kind {
+        /** an observation of a device made by this gateway */
+        UPSTREAM,
+        /** a client observing a resource of the CoAP server */
+        RELATION
+    }
+
+    public static class Entry {
+
+        private final Kind kind;
+        private final String resource;
+        private final byte[] token;
+        private final InetSocketAddress peer;
+        private final String etag;
+        private final String value;
+
+        public Entry(Kind kind, String resource, byte[] token, InetSocketAddress peer, String etag, String value) {
+            this.kind = kind;
+            this.resource = resource;
+            this.token = token == null ? new byte[0] : token;
+            this.peer = peer;
+            this.etag = etag;
+            this.value = value;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getResource() {
+            return resource;
+        }
+
+        public byte[] getToken() {
+            return token;
+        }
+
+        /**
+         * @return the observing client of a RELATION, null for UPSTREAM
+         */
+        public InetSocketAddress getPeer() {
+            return peer;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    private final File file;
+    private final int slotSize;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private long generation;
+
+    /**
+     * @param slotSize the size of each of the two slots in bytes
+     */
+    public ObserveSnapshot(File file, int slotSize) throws IOException {
+        if (slotSize <= HEADER) {
+            throw new IllegalArgumentException("slot size must exceed " + HEADER + " bytes");
+        }
+        this.file = file;
+        this.slotSize = slotSize;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * slotSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        generation = Math.max(generation(0), generation(1));
+    }
+
+    /**
+     * @return the entries of the newest valid slot, empty if there is none
+     */
+    public synchronized List<Entry> read() {
+        int slot = generation(0) >= generation(1) ? 0 : 1;
+        if (generation(slot) < 0) {
+            return Collections.emptyList();
+        }
+        byte[] payload = new byte[buffer.getInt(slot * slotSize + 12)];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = buffer.get(slot * slotSize + HEADER + i);
+        }
+        try {
+            return decode(payload);
+        } catch (IOException e) {
+            LOGGER.warning("Cannot decode observe snapshot " + file + ": " + e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Writes the entries into the older slot. Entries that do not fit are
+     * dropped.
+     */
+    public synchronized void write(List<Entry> entries) throws IOException {
+        byte[] payload = encode(entries, slotSize - HEADER);
+        int slot = (int) ((generation + 1) & 1);
+        int base = slot * slotSize;
+
+        // invalidate the slot first, then payload, then header
+        buffer.putInt(base, 0);
+        for (int i = 0; i < payload.length; i++) {
+            buffer.put(base + HEADER + i, payload[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        buffer.putLong(base + 4, generation + 1);
+        buffer.putInt(base + 12, payload.length);
+        buffer.putInt(base + 16, (int) crc.getValue());
+        buffer.force();
+        buffer.putInt(base, MAGIC);
+        buffer.force();
+        generation++;
+    }
+
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the generation of a valid slot, -1 otherwise
+     */
+    private long generation(int slot) {
+        int base = slot * slotSize;
+        if (buffer.getInt(base) != MAGIC) {
+            return -1;
+        }
+        int length = buffer.getInt(base + 12);
+        if (length < 0 || length > slotSize - HEADER) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < length; i++) {
+            crc.update(buffer.get(base + HEADER + i));
+        }
+        if ((int) crc.getValue() != buffer.getInt(base + 16)) {
+            return -1;
+        }
+        return buffer.getLong(base + 4);
+    }
+
+    static byte[] encode(List<Entry> entries, int limit) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = 0;
+        for (Entry entry : entries) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream rec = new DataOutputStream(record);
+            rec.writeByte(entry.getKind().ordinal());
+            writeString(rec, entry.getResource());
+            rec.writeByte(entry.getToken().length);
+            rec.write(entry.getToken());
+            if (entry.getPeer() == null) {
+                rec.writeByte(0);
+            } else {
+                byte[] address = entry.getPeer().getAddress().getAddress();
+                rec.writeByte(address.length);
+                rec.write(address);
+                rec.writeShort(entry.getPeer().getPort());
+            }
+            writeString(rec, entry.getEtag());
+            writeString(rec, entry.getValue());
+            if (4 + bytes.size() + record.size() > limit) {
+                LOGGER.warning("Observe snapshot full, " + (entries.size() - count) + " entries dropped");
+                break;
+            }
+            record.writeTo(out);
+            count++;
+        }
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(4 + bytes.size());
+        new DataOutputStream(framed).writeInt(count);
+        bytes.writeTo(framed);
+        return framed.toByteArray();
+    }
+
+    static List<Entry> decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            Kind kind = Kind.values()[in.readUnsignedByte()];
+            String resource = readString(in);
+            byte[] token = new byte[in.readUnsignedByte()];
+            in.readFully(token);
+            InetSocketAddress peer = null;
+            int addressLength = in.readUnsignedByte();
+            if (addressLength > 0) {
+                byte[] address = new byte[addressLength];
+                in.readFully(address);
+                peer = new InetSocketAddress(InetAddress.getByAddress(address), in.readUnsignedShort());
+            }
+            entries.add(new Entry(kind, resource, token, peer, readString(in), readString(in)));
+        }
+        return entries;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
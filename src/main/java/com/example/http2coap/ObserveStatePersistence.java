@@ -0,0 +1,156 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.network.Endpoint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the observe state to an {@link ObserveSnapshot} periodically and
+ * restores it on startup: the last notification of every resource observed
+ * for {@link ObServlet} is served again right away, the upstream
+ * observations are registered again with their old tokens, spread over
+ * {@code observe.snapshot.restore-spread}, and the observe relations of the
+ * CoAP server are re-established once it is up.
+ */
+@Component
+// restored resources get the configured history size
+@DependsOn("observeHistoryConfig")
+public class ObserveStatePersistence {
+
+    private final static Logger LOGGER = Logger.getLogger(ObserveStatePersistence.class.getCanonicalName());
+
+    /** an empty file name disables the snapshot */
+    @Value("${observe.snapshot.file:observe.snapshot}")
+    private String fileName;
+
+    @Value("${observe.snapshot.slot-size:4194304}")
+    private int slotSize;
+
+    @Value("${observe.snapshot.interval:10000}")
+    private long interval;
+
+    @Value("${observe.snapshot.restore-spread:30000}")
+    private long restoreSpread;
+
+    @Autowired
+    private ObserveCluster cluster;
+
+    @Autowired
+    private CoapObserveUpstream upstream;
+
+    private ObserveSnapshot snapshot;
+    private ScheduledExecutorService scheduler;
+    private List<ObserveSnapshot.Entry> restoredRelations = Collections.emptyList();
+    private volatile ProxyMessageDeliverer deliverer;
+
+    @PostConstruct
+    void restore() {
+        upstream.setRestoreSpread(restoreSpread);
+        if (fileName.isEmpty()) {
+            return;
+        }
+        try {
+            snapshot = new ObserveSnapshot(new File(fileName), slotSize);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot open observe snapshot " + fileName, e);
+            return;
+        }
+
+        List<ObserveSnapshot.Entry> relations = new ArrayList<ObserveSnapshot.Entry>();
+        int upstreams = 0;
+        for (ObserveSnapshot.Entry entry : snapshot.read()) {
+            if (entry.getKind() == ObserveSnapshot.Kind.UPSTREAM) {
+                ObServlet.restore(entry.getResource(), entry.getValue(), entry.getEtag());
+                if (entry.getToken().length > 0) {
+                    upstream.restore(entry.getResource(), entry.getToken());
+                }
+                cluster.interest(entry.getResource());
+                upstreams++;
+            } else {
+                relations.add(entry);
+            }
+        }
+        synchronized (this) {
+            restoredRelations = relations;
+        }
+        LOGGER.info("Restored " + upstreams + " observed resources from " + fileName);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "observe-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::write, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the CoAP server once it is started; restores its observe
+     * relations and includes them in later snapshots.
+     */
+    public void attach(ProxyMessageDeliverer deliverer, Endpoint endpoint) {
+        List<ObserveSnapshot.Entry> relations;
+        synchronized (this) {
+            relations = restoredRelations;
+            restoredRelations = Collections.emptyList();
+        }
+        if (!relations.isEmpty()) {
+            LOGGER.info("Restored " + deliverer.restoreRelations(relations, endpoint) + " of " + relations.size() + " observe relations");
+        }
+        this.deliverer = deliverer;
+    }
+
+    @PreDestroy
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (snapshot != null) {
+            write();
+            try {
+                snapshot.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void write() {
+        List<ObserveSnapshot.Entry> entries = new ArrayList<ObserveSnapshot.Entry>();
+        Map<String, byte[]> tokens = upstream.getTokens();
+        for (Map.Entry<String, ObServlet.Subject> subject : ObServlet.getSubjects().entrySet()) {
+            ObServlet.Subject value = subject.getValue();
+            entries.add(new ObserveSnapshot.Entry(ObserveSnapshot.Kind.UPSTREAM, subject.getKey(),
+                    tokens.get(subject.getKey()), null, value.getEtag(), value.getData()));
+        }
+        ProxyMessageDeliverer current = deliverer;
+        if (current != null) {
+            entries.addAll(current.snapshotRelations());
+        } else {
+            // server not up yet, keep what was restored
+            synchronized (this) {
+                entries.addAll(restoredRelations);
+            }
+        }
+        try {
+            snapshot.write(entries);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot write observe snapshot " + fileName, e);
+        }
+    }
+}
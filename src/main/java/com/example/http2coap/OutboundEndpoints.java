@@ -0,0 +1,144 @@
+package com.example.http2coap;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.InMemoryConnectionStore;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+import org.eclipse.californium.scandium.dtls.pskstore.StaticPskStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The client endpoints used for all requests the gateway sends to CoAP
+ * devices. Created on first use and installed as Californium's default
+ * endpoints, so the proxy resources and CoapClients share them with the
+ * servlets: a {@link GatewayUdpConnector} for coap:// and, for coaps://, a
+ * DTLS connector with a bounded session cache wrapped in a
+ * {@link SingleFlightConnector}.
+ * <p>
+ * The DTLS endpoint is configured through Californium.properties:
+ * DTLS_PSK_IDENTITY and DTLS_PSK_KEY, DTLS_SESSION_CACHE_SIZE,
+ * DTLS_SESSION_STALE_THRESHOLD (seconds) and DTLS_HANDSHAKE_TIMEOUT
+ * (milliseconds).
+ * <p>
+ * Both endpoints pick the Block2 size per device through the
+ * {@link BlockSizeAdvisor}.
+ */
+public final class OutboundEndpoints {
+
+    public static final String PSK_IDENTITY = "DTLS_PSK_IDENTITY";
+    public static final String PSK_KEY = "DTLS_PSK_KEY";
+    public static final String SESSION_CACHE_SIZE = "DTLS_SESSION_CACHE_SIZE";
+    public static final String SESSION_STALE_THRESHOLD = "DTLS_SESSION_STALE_THRESHOLD";
+    public static final String HANDSHAKE_TIMEOUT = "DTLS_HANDSHAKE_TIMEOUT";
+
+    /**
+     * Local port of the coap:// endpoint, 0 for an ephemeral one. Devices
+     * know an observer by address and token, so observations restored after a
+     * restart only keep their notifications with a fixed port.
+     */
+    public static final String OUTBOUND_PORT = "OUTBOUND_COAP_PORT";
+
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 10000;
+    private static final long DEFAULT_SESSION_STALE_THRESHOLD = 24 * 60 * 60;
+    private static final long DEFAULT_HANDSHAKE_TIMEOUT = 10000;
+
+    private static final Supplier<Endpoint> DEFAULT = Suppliers.memoize(new Supplier<Endpoint>() {
+        @Override
+        public Endpoint get() {
+            NetworkConfig config = NetworkConfig.getStandard();
+            BoundedDeduplicatorFactory.install();
+            GatewayUdpConnector connector = new GatewayUdpConnector(new InetSocketAddress(Math.max(0, config.getInt(OUTBOUND_PORT))), config);
+            CoapEndpoint endpoint = new CoapEndpoint(connector, config);
+            TransportMetrics.instrument(endpoint, connector, config);
+            endpoint.addInterceptor(BlockSizeAdvisor.get());
+            try {
+                endpoint.start();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot start the outbound endpoint", e);
+            }
+            EndpointManager.getEndpointManager().setDefaultEndpoint(endpoint);
+            return endpoint;
+        }
+    });
+
+    private static final Supplier<Endpoint> SECURE = Suppliers.memoize(new Supplier<Endpoint>() {
+        @Override
+        public Endpoint get() {
+            NetworkConfig config = NetworkConfig.getStandard();
+            String identity = config.getString(PSK_IDENTITY);
+            String key = config.getString(PSK_KEY);
+            if (!isSecureConfigured()) {
+                throw new IllegalStateException("coaps:// needs " + PSK_IDENTITY + " and " + PSK_KEY + " in Californium.properties");
+            }
+            int cacheSize = config.getInt(SESSION_CACHE_SIZE);
+            if (cacheSize <= 0) {
+                cacheSize = DEFAULT_SESSION_CACHE_SIZE;
+            }
+            long staleThreshold = config.getLong(SESSION_STALE_THRESHOLD);
+            long handshakeTimeout = config.getLong(HANDSHAKE_TIMEOUT);
+
+            DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder(new InetSocketAddress(0));
+            builder.setPskStore(new StaticPskStore(identity, key.getBytes(StandardCharsets.UTF_8)));
+            builder.setSupportedCipherSuites(new CipherSuite[]{CipherSuite.TLS_PSK_WITH_AES_128_CCM_8});
+            InMemoryConnectionStore sessions = new InMemoryConnectionStore(cacheSize,
+                    staleThreshold > 0 ? staleThreshold : DEFAULT_SESSION_STALE_THRESHOLD);
+            SingleFlightConnector connector = new SingleFlightConnector(new DTLSConnector(builder.build(), sessions),
+                    sessions, cacheSize, handshakeTimeout > 0 ? handshakeTimeout : DEFAULT_HANDSHAKE_TIMEOUT);
+
+            BoundedDeduplicatorFactory.install();
+            CoapEndpoint endpoint = new CoapEndpoint(connector, config);
+            TransportMetrics.instrument(endpoint, connector, config);
+            endpoint.addInterceptor(BlockSizeAdvisor.get());
+            try {
+                endpoint.start();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot start the secure outbound endpoint", e);
+            }
+            EndpointManager.getEndpointManager().setDefaultSecureEndpoint(endpoint);
+            return endpoint;
+        }
+    });
+
+    public static Endpoint get() {
+        return DEFAULT.get();
+    }
+
+    /**
+     * @return the DTLS endpoint for coaps:// requests
+     * @throws IllegalStateException if no pre-shared key is configured
+     */
+    public static Endpoint secure() {
+        return SECURE.get();
+    }
+
+    /**
+     * @return true if a pre-shared key for coaps:// is configured
+     */
+    public static boolean isSecureConfigured() {
+        NetworkConfig config = NetworkConfig.getStandard();
+        String identity = config.getString(PSK_IDENTITY);
+        String key = config.getString(PSK_KEY);
+        return identity != null && !identity.isEmpty() && key != null && !key.isEmpty();
+    }
+
+    /**
+     * @return the endpoint matching the scheme of the request
+     */
+    public static Endpoint forRequest(Request request) {
+        return CoAP.COAP_SECURE_URI_SCHEME.equals(request.getScheme()) ? secure() : get();
+    }
+
+    private OutboundEndpoints() {
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.elements.RawData;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound datagram queue of the {@link GatewayUdpConnector}, one FIFO per
+ * {@link TrafficClass}. {@link #take()} serves the classes in weighted round
+ * robin: within a round each class may send up to its weight, higher classes
+ * first, and a new round starts when no class with credit has work left.
+ * Background traffic therefore still gets its share under sustained
+ * interactive load.
+ * <p>
+ * Each class queue holds at most {@code capacity} datagrams; further ones are
+ * dropped and counted, and confirmable messages among them are retransmitted
+ * by the CoAP layer.
+ */
+public class PriorityOutboundQueue implements GatewayMetrics.Source {
+
+    private static final TrafficClass[] CLASSES = TrafficClass.values();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private final ArrayDeque<Entry>[] queues;
+    private final int capacity;
+    private final int[] credits = new int[CLASSES.length];
+    private int size;
+
+    /* per class statistics, guarded by the lock */
+    private final long[] sent = new long[CLASSES.length];
+    private final long[] dropped = new long[CLASSES.length];
+    private final long[] waitNanos = new long[CLASSES.length];
+    private final long[] maxWaitNanos = new long[CLASSES.length];
+
+    public PriorityOutboundQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity the datagrams queued per traffic class, 0 or less for
+     *        no limit
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityOutboundQueue(int capacity) {
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+        queues = new ArrayDeque[CLASSES.length];
+        for (int i = 0; i < CLASSES.length; i++) {
+            queues[i] = new ArrayDeque<Entry>();
+            credits[i] = CLASSES[i].getWeight();
+        }
+    }
+
+    /**
+     * @return false if the queue of the class is full and the datagram was
+     *         dropped
+     */
+    public boolean offer(RawData raw, TrafficClass trafficClass) {
+        int index = trafficClass.ordinal();
+        lock.lock();
+        try {
+            if (queues[index].size() >= capacity) {
+                dropped[index]++;
+                return false;
+            }
+            queues[index].add(new Entry(raw, System.nanoTime()));
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a datagram is available.
+     */
+    public RawData take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            int index = next();
+            Entry entry = queues[index].poll();
+            size--;
+
+            long wait = System.nanoTime() - entry.enqueued;
+            sent[index]++;
+            waitNanos[index] += wait;
+            if (wait > maxWaitNanos[index]) {
+                maxWaitNanos[index] = wait;
+            }
+            return entry.raw;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int next() {
+        while (true) {
+            for (int i = 0; i < CLASSES.length; i++) {
+                if (credits[i] > 0 && !queues[i].isEmpty()) {
+                    credits[i]--;
+                    return i;
+                }
+            }
+            for (int i = 0; i < CLASSES.length; i++) {
+                credits[i] = CLASSES[i].getWeight();
+            }
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void collect(Map<String, Number> metrics) {
+        lock.lock();
+        try {
+            for (TrafficClass trafficClass : CLASSES) {
+                int i = trafficClass.ordinal();
+                String name = trafficClass.name().toLowerCase();
+                metrics.put(name + ".depth", queues[i].size());
+                metrics.put(name + ".sent", sent[i]);
+                metrics.put(name + ".dropped", dropped[i]);
+                metrics.put(name + ".wait.total.ms", TimeUnit.NANOSECONDS.toMillis(waitNanos[i]));
+                metrics.put(name + ".wait.avg.us", sent[i] == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(waitNanos[i] / sent[i]));
+                metrics.put(name + ".wait.max.us", TimeUnit.NANOSECONDS.toMicros(maxWaitNanos[i]));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Entry {
+
+        private final RawData raw;
+        private final long enqueued;
+
+        private Entry(RawData raw, long enqueued) {
+            this.raw = raw;
+            this.enqueued = enqueued;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
 import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.observe.ObserveManager;
 import org.eclipse.californium.core.observe.ObserveRelation;
@@ -13,8 +14,11 @@ import org.eclipse.californium.core.server.resources.Resource;
 import org.eclipse.californium.proxy.resources.ForwardingResource;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,6 +27,9 @@ public final class ProxyMessageDeliverer implements MessageDeliverer {
 
 	private static final Logger LOGGER = Logger.getLogger(ProxyMessageDeliverer.class.getCanonicalName());
 
+	/* Max-Age of the 5.03 sent while proxy requests are shed */
+	private static final int OVERLOAD_RETRY_SECONDS = 2;
+
 	/* The root of all resources */
 	private final Resource root;
 	
@@ -32,6 +39,9 @@ public final class ProxyMessageDeliverer implements MessageDeliverer {
 	/* The manager of the observe mechanism for this server */
 	private final ObserveManager observeManager = new ObserveManager();
 
+	/* The observe relations by client and token, for the observe snapshot */
+	private final ConcurrentHashMap<String, ObserveRelation> relations = new ConcurrentHashMap<String, ObserveRelation>();
+
 	/**
 	 * Constructs a default message deliverer that delivers requests to the
 	 * resources rooted at the specified root.
@@ -74,6 +84,20 @@ public final class ProxyMessageDeliverer implements MessageDeliverer {
 			resource = findResource(path);
 		}
 		
+		if (resource != null && isSheddable(resource, request)) {
+			if (BoundedDeduplicatorFactory.isOverloaded()) {
+				// shed new proxy work while message IDs arrive too fast
+				sendOverloaded(exchange);
+				return;
+			}
+			if (MemoryAccounting.EXCHANGES.isOverLimit()) {
+				// or until the exchanges in flight are back below their soft limit
+				MemoryAccounting.EXCHANGES.shed();
+				sendOverloaded(exchange);
+				return;
+			}
+		}
+		
 		if (resource != null) {
 			checkForObserveOption(exchange, resource);
 			
@@ -83,10 +107,10 @@ public final class ProxyMessageDeliverer implements MessageDeliverer {
 				exchange.setCustomExecutor();
 				executor.execute(new Runnable() {
 					public void run() {
-						resource.handleRequest(exchange);
+						handle(resource, exchange);
 					} });
 			} else {
-				resource.handleRequest(exchange);
+				handle(resource, exchange);
 			}
 		} else {
 			LOGGER.log(Level.INFO, "Did not find resource {0} requested by {1}:{2}",
@@ -95,6 +119,67 @@ public final class ProxyMessageDeliverer implements MessageDeliverer {
 		}
 	}
 
+	/**
+	 * Only new forwarding work is shed; observe cancellations and the local
+	 * resources are always served.
+	 */
+	private boolean isSheddable(Resource resource, Request request) {
+		if (resource != coap2coap && resource != coap2http) {
+			return false;
+		}
+		return !(request.getOptions().hasObserve() && request.getOptions().getObserve() == 1);
+	}
+
+	private static void sendOverloaded(Exchange exchange) {
+		Response response = new Response(ResponseCode.SERVICE_UNAVAILABLE);
+		response.getOptions().setMaxAge(OVERLOAD_RETRY_SECONDS);
+		exchange.sendResponse(response);
+	}
+
+	/**
+	 * Lets the resource process the request and forgets an observe relation
+	 * that the response did not establish.
+	 */
+	private void handle(Resource resource, Exchange exchange) {
+		try {
+			process(resource, exchange);
+		} finally {
+			ObserveRelation relation = exchange.getRelation();
+			// refused, or the resource (like the forwarding ones) does not keep relations
+			if (relation instanceof TrackedRelation && !relation.isEstablished() && exchange.getResponse() != null) {
+				((TrackedRelation) relation).forget();
+			}
+		}
+	}
+
+	/**
+	 * The forwarding resources answer synchronously, so their request and
+	 * response pairs can be recorded and their exchanges accounted for here.
+	 */
+	private void process(Resource resource, Exchange exchange) {
+		if (resource != coap2coap && resource != coap2http) {
+			resource.handleRequest(exchange);
+			return;
+		}
+		Request request = exchange.getRequest();
+		long held = MemoryAccounting.EXCHANGE_OVERHEAD + MemoryAccounting.sizeOf(request);
+		MemoryAccounting.EXCHANGES.reserve(1, held);
+		try {
+			if (!TrafficRecorder.isRecording()) {
+				resource.handleRequest(exchange);
+				return;
+			}
+			long timestamp = System.currentTimeMillis();
+			long st = System.nanoTime();
+			resource.handleRequest(exchange);
+			TrafficRecorder.record(TrafficRecord.Source.COAP,
+					new InetSocketAddress(request.getSource(), request.getSourcePort()),
+					request, exchange.getResponse(), timestamp, System.nanoTime() - st);
+		} finally {
+			MemoryAccounting.EXCHANGES.release(1, held);
+		}
+	}
+
 	/**
 	 * Checks whether an observe relationship has to be established or canceled.
 	 * This is done here to have a server-global observeManager that holds the
@@ -119,19 +204,27 @@ public final class ProxyMessageDeliverer implements MessageDeliverer {
 		if (request.getOptions().hasObserve() && resource.isObservable()) {
 			
 			if (request.getOptions().getObserve()==0) {
+				if (MemoryAccounting.RELATIONS.isOverLimit()) {
+					// over the soft limit: answered once, without a relation
+					MemoryAccounting.RELATIONS.shed();
+					LOGGER.log(Level.FINE, "Not observing {0} for {1}:{2}, relations over their soft limit",
+							new Object[]{resource.getURI(), request.getSource(), request.getSourcePort()});
+					return;
+				}
 				// Requests wants to observe and resource allows it :-)
 				LOGGER.log(Level.FINER,
 						"Initiate an observe relation between {0}:{1} and resource {2}",
 						new Object[]{request.getSource(), request.getSourcePort(), resource.getURI()});
 				ObservingEndpoint remote = observeManager.findObservingEndpoint(source);
-				ObserveRelation relation = new ObserveRelation(remote, resource, exchange);
+				TrackedRelation relation = new TrackedRelation(remote, resource, exchange, relationKey(source, request.getToken()));
 				remote.addObserveRelation(relation);
 				exchange.setRelation(relation);
+				relation.track();
 				// all that's left is to add the relation to the resource which
 				// the resource must do itself if the response is successful
 				
 			} else if (request.getOptions().getObserve() == 1) {
-				// Observe defines 1 for canceling
+				// Observe defines 1 for canceling, which also forgets the relation
 				ObserveRelation relation = observeManager.getRelation(source, request.getToken());
 				if (relation != null) {
 					relation.cancel();
@@ -140,6 +233,89 @@ public final class ProxyMessageDeliverer implements MessageDeliverer {
 		}
 	}
 
+	/**
+	 * Returns the established observe relations for the observe snapshot.
+	 * Relations still waiting for the first response are skipped.
+	 * 
+	 * @return one RELATION entry per relation
+	 */
+	public List<ObserveSnapshot.Entry> snapshotRelations() {
+		List<ObserveSnapshot.Entry> entries = new ArrayList<ObserveSnapshot.Entry>();
+		for (ObserveRelation relation : relations.values()) {
+			if (!relation.isEstablished()) {
+				continue;
+			}
+			Request request = relation.getExchange().getRequest();
+			entries.add(new ObserveSnapshot.Entry(ObserveSnapshot.Kind.RELATION, relation.getResource().getURI(),
+					request.getToken(), relation.getSource(), null, null));
+		}
+		return entries;
+	}
+
+	/**
+	 * Re-establishes the observe relations of a snapshot, so the clients
+	 * keep receiving notifications with their tokens after a restart
+	 * without having to register again. Only relations on observable local
+	 * resources are restored; the forwarding resources never hold one, and
+	 * the gateway's own resources are not observable, so this restores
+	 * nothing unless an observable resource is added to the server.
+	 * 
+	 * @param entries the RELATION entries of the snapshot
+	 * @param endpoint the endpoint notifications are sent through
+	 * @return the number of restored relations
+	 */
+	public int restoreRelations(List<ObserveSnapshot.Entry> entries, Endpoint endpoint) {
+		int restored = 0;
+		for (ObserveSnapshot.Entry entry : entries) {
+			if (entry.getKind() != ObserveSnapshot.Kind.RELATION || entry.getPeer() == null) {
+				continue;
+			}
+			Request request = Request.newGet();
+			request.getOptions().setUriPath(entry.getResource());
+			request.getOptions().setObserve(0);
+			request.setToken(entry.getToken());
+			request.setSource(entry.getPeer().getAddress());
+			request.setSourcePort(entry.getPeer().getPort());
+			// the client's original CON was acknowledged before the restart, so the
+			// notifications must go out as new messages rather than piggy-backed
+			// on an ACK with a MID the client never used
+			request.setAcknowledged(true);
+			
+			Resource resource = findResource(request.getOptions().getUriPath());
+			if (resource == null || !resource.isObservable()) {
+				LOGGER.log(Level.FINE, "Not restoring observe relation of {0} to {1}",
+						new Object[]{entry.getPeer(), entry.getResource()});
+				continue;
+			}
+			Exchange exchange = new Exchange(request, Exchange.Origin.REMOTE);
+			exchange.setEndpoint(endpoint);
+			ObservingEndpoint remote = observeManager.findObservingEndpoint(entry.getPeer());
+			TrackedRelation relation = new TrackedRelation(remote, resource, exchange, relationKey(entry.getPeer(), entry.getToken()));
+			remote.addObserveRelation(relation);
+			exchange.setRelation(relation);
+			relation.setEstablished(true);
+			resource.addObserveRelation(relation);
+			relation.track();
+			restored++;
+		}
+		return restored;
+	}
+
+	/**
+	 * @return the number of relations kept for the observe snapshot
+	 */
+	int trackedRelations() {
+		return relations.size();
+	}
+
+	private static long relationBytes(byte[] token) {
+		return MemoryAccounting.RELATION_OVERHEAD + (token == null ? 0 : token.length);
+	}
+
+	private static String relationKey(InetSocketAddress source, byte[] token) {
+		return source + "#" + Arrays.toString(token);
+	}
+
 	/**
 	 * Searches in the resource tree for the specified path. A parent resource
 	 * may accept requests to subresources, e.g., to allow addresses with
@@ -173,5 +349,51 @@ public final class ProxyMessageDeliverer implements MessageDeliverer {
 			exchange.getRequest().setResponse(response);
 		}
 	}
-}
 
+	/**
+	 * Observe relation that is kept in {@link #relations} from registration
+	 * until it ends: canceled by the client (deregistration, RST), by
+	 * Californium (notification timeout, error notification, orphaned
+	 * resource), or not established by the first response.
+	 */
+	private final class TrackedRelation extends ObserveRelation {
+
+		private final ObservingEndpoint remote;
+		private final String key;
+
+		TrackedRelation(ObservingEndpoint remote, Resource resource, Exchange exchange, String key) {
+			super(remote, resource, exchange);
+			this.remote = remote;
+			this.key = key;
+		}
+
+		/**
+		 * Adds the relation and accounts for it; a relation it replaces is
+		 * released. The bytes are accounted exactly while the relation is in
+		 * the map, so they are released wherever the relation ends.
+		 */
+		void track() {
+			MemoryAccounting.RELATIONS.reserve(1, relationBytes(getExchange().getRequest().getToken()));
+			ObserveRelation previous = relations.put(key, this);
+			if (previous != null) {
+				MemoryAccounting.RELATIONS.release(1, relationBytes(previous.getExchange().getRequest().getToken()));
+			}
+		}
+
+		/**
+		 * Removes the relation, unless it has been replaced already.
+		 */
+		void forget() {
+			remote.removeObserveRelation(this);
+			if (relations.remove(key, this)) {
+				MemoryAccounting.RELATIONS.release(1, relationBytes(getExchange().getRequest().getToken()));
+			}
+		}
+
+		@Override
+		public void cancel() {
+			forget();
+			super.cancel();
+		}
+	}
+}
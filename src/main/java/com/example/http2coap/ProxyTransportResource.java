@@ -0,0 +1,76 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.proxy.resources.ForwardingResource;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * coap2coap forwarding resource that sends requests for coap+tcp://,
+ * coaps+tcp://, coap+ws:// and coaps+ws:// destinations through the
+ * {@link CoapTcpTransport} and leaves all others to the UDP forwarder.
+ */
+public class ProxyTransportResource extends ForwardingResource {
+
+    private final static Logger LOGGER = Logger.getLogger(ProxyTransportResource.class.getCanonicalName());
+
+    private final ForwardingResource udp;
+
+    public ProxyTransportResource(String name, ForwardingResource udp) {
+        super(name);
+        this.udp = udp;
+    }
+
+    @Override
+    public Response forwardRequest(Request incomingRequest) {
+        String uri = targetUri(incomingRequest);
+        if (!CoapTcpTransport.handles(uri)) {
+            return udp.forwardRequest(incomingRequest);
+        }
+
+        Request outgoingRequest = new Request(incomingRequest.getCode());
+        OptionSet options = new OptionSet(incomingRequest.getOptions());
+        options.removeProxyUri();
+        options.removeProxyScheme();
+        outgoingRequest.setOptions(options);
+        outgoingRequest.setPayload(incomingRequest.getPayload());
+        try {
+            Response response = CoapTcpTransport.get().send(outgoingRequest, uri);
+            if (response == null) {
+                return new Response(ResponseCode.GATEWAY_TIMEOUT);
+            }
+            Response outgoingResponse = new Response(response.getCode());
+            outgoingResponse.setOptions(new OptionSet(response.getOptions()));
+            outgoingResponse.setPayload(response.getPayload());
+            return outgoingResponse;
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Cannot forward to " + uri + ": " + e.getMessage());
+            return new Response(ResponseCode.BAD_OPTION);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot forward to " + uri, e);
+            return new Response(ResponseCode.BAD_GATEWAY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Response(ResponseCode.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * @return the Proxy-Uri, with the scheme of the Proxy-Scheme option if
+     *         the request had one
+     */
+    private static String targetUri(Request request) {
+        String uri = request.getOptions().getProxyUri();
+        if (uri == null || !request.getOptions().hasProxyScheme()) {
+            return uri;
+        }
+        // the deliverer builds the Proxy-Uri from the Uri options, always as coap://
+        int colon = uri.indexOf("://");
+        return colon < 0 ? uri : request.getOptions().getProxyScheme() + uri.substring(colon);
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.http2coap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Rate limits the proxy servlets per HTTP client and per CoAP destination,
+ * with separate budgets for reads (GET, HEAD) and writes, so that a single
+ * client cannot push a constrained device into retransmission collapse.
+ * Only {@code /proxy/} requests reach the device and count against its
+ * destination budget; {@code /proxy-ob/} reads are served from the observed
+ * state and are limited per client only. Limited requests are answered with
+ * 429 and a Retry-After header. Off unless {@code ratelimit.enabled} is set.
+ */
+@Component
+@Order(1)
+public class RateLimitFilter implements Filter {
+
+    private final static Logger LOGGER = Logger.getLogger(RateLimitFilter.class.getCanonicalName());
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final String FORWARDING_PREFIX = "/proxy/";
+    private static final String[] PROXY_PREFIXES = {FORWARDING_PREFIX, "/proxy-ob/"};
+
+    @Value("${ratelimit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${ratelimit.stripes:64}")
+    private int stripes;
+
+    @Value("${ratelimit.max-keys:1000000}")
+    private int maxKeys;
+
+    @Value("${ratelimit.client.read.rate:50}")
+    private double clientReadRate;
+    @Value("${ratelimit.client.read.burst:100}")
+    private int clientReadBurst;
+    @Value("${ratelimit.client.write.rate:10}")
+    private double clientWriteRate;
+    @Value("${ratelimit.client.write.burst:20}")
+    private int clientWriteBurst;
+
+    @Value("${ratelimit.destination.read.rate:20}")
+    private double destinationReadRate;
+    @Value("${ratelimit.destination.read.burst:40}")
+    private int destinationReadBurst;
+    @Value("${ratelimit.destination.write.rate:5}")
+    private double destinationWriteRate;
+    @Value("${ratelimit.destination.write.burst:10}")
+    private int destinationWriteBurst;
+
+    private TokenBucketRateLimiter clientReads;
+    private TokenBucketRateLimiter clientWrites;
+    private TokenBucketRateLimiter destinationReads;
+    private TokenBucketRateLimiter destinationWrites;
+
+    private final AtomicLong limitedByClient = new AtomicLong();
+    private final AtomicLong limitedByDestination = new AtomicLong();
+
+    @PostConstruct
+    void createLimiters() {
+        int keysPerStripe = Math.max(1, maxKeys / stripes);
+        clientReads = new TokenBucketRateLimiter(clientReadRate, clientReadBurst, stripes, keysPerStripe);
+        clientWrites = new TokenBucketRateLimiter(clientWriteRate, clientWriteBurst, stripes, keysPerStripe);
+        destinationReads = new TokenBucketRateLimiter(destinationReadRate, destinationReadBurst, stripes, keysPerStripe);
+        destinationWrites = new TokenBucketRateLimiter(destinationWriteRate, destinationWriteBurst, stripes, keysPerStripe);
+
+        GatewayMetrics.register("ratelimit", metrics -> {
+            metrics.put("limited.client", limitedByClient.get());
+            metrics.put("limited.destination", limitedByDestination.get());
+            metrics.put("keys.client", clientReads.size() + clientWrites.size());
+            metrics.put("keys.destination", destinationReads.size() + destinationWrites.size());
+        });
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        String destination = enabled ? destinationOf(req.getRequestURI()) : null;
+        if (destination == null || WarmUp.isWarmUpRequest(req.getRemoteAddr(), destination)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        boolean read = "GET".equals(req.getMethod()) || "HEAD".equals(req.getMethod());
+        long now = System.nanoTime();
+
+        long wait = (read ? clientReads : clientWrites).tryAcquire(req.getRemoteAddr(), now);
+        if (wait > 0) {
+            limitedByClient.incrementAndGet();
+            reject((HttpServletResponse) response, wait);
+            return;
+        }
+        if (!reachesDevice(req.getRequestURI())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        wait = (read ? destinationReads : destinationWrites).tryAcquire(destination, now);
+        if (wait > 0) {
+            limitedByDestination.incrementAndGet();
+            LOGGER.fine("Rate limited request to " + destination + " from " + req.getRemoteAddr());
+            reject((HttpServletResponse) response, wait);
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    private static void reject(HttpServletResponse response, long waitNanos) throws IOException {
+        long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        response.setHeader("Retry-After", Long.toString(seconds));
+        response.sendError(SC_TOO_MANY_REQUESTS);
+    }
+
+    /**
+     * @return the CoAP authority a proxy request is addressed to, or null if
+     *         the request is not a proxy request
+     */
+    static String destinationOf(String requestUri) {
+        for (String prefix : PROXY_PREFIXES) {
+            if (requestUri.startsWith(prefix)) {
+                String target = requestUri.substring(prefix.length());
+                int scheme = target.indexOf("://");
+                if (scheme >= 0) {
+                    target = target.substring(scheme + 3);
+                }
+                int path = target.indexOf('/');
+                return (path >= 0 ? target.substring(0, path) : target).toLowerCase();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the request is forwarded to the device rather than
+     *         served from the gateway's state
+     */
+    static boolean reachesDevice(String requestUri) {
+        return requestUri.startsWith(FORWARDING_PREFIX);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.http2coap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Readiness probe: 503 while the gateway starts and {@link WarmUp} runs,
+ * then 200 with the warm-up report.
+ */
+@WebServlet(urlPatterns = "/ready", description = "就绪检查")
+public class ReadinessServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 4410839561327265021L;
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        Map<String, Object> report = WarmUp.getReport();
+        if (report == null) {
+            resp.setHeader("Retry-After", "1");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "warming up");
+            return;
+        }
+        resp.setContentType("application/json; charset=UTF-8");
+        JSON.writeValue(resp.getOutputStream(), report);
+    }
+}
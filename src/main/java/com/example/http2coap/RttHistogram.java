@@ -0,0 +1,75 @@
+package com.example.http2coap;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free round-trip time histogram with power-of-two millisecond
+ * buckets: bucket 0 counts samples below 1 ms, bucket i samples in
+ * [2^(i-1), 2^i) ms, the last bucket everything above.
+ */
+public class RttHistogram {
+
+    private static final int BUCKETS = 17;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sumMillis = new LongAdder();
+
+    public void record(long millis) {
+        int bucket = millis <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        counts.incrementAndGet(bucket);
+        total.increment();
+        sumMillis.add(Math.max(0, millis));
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : sumMillis.sum() / count;
+    }
+
+    public long percentile(double fraction) {
+        return percentile(counts(), fraction);
+    }
+
+    /**
+     * @return a copy of the bucket counts, e.g. to compute percentiles of
+     *         the samples between two copies
+     */
+    public long[] counts() {
+        long[] copy = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            copy[bucket] = counts.get(bucket);
+        }
+        return copy;
+    }
+
+    /**
+     * @param counts bucket counts as returned by {@link #counts()}
+     * @param fraction e.g. 0.99
+     * @return the upper bound in milliseconds of the bucket holding the
+     *         percentile, 0 without samples
+     */
+    public static long percentile(long[] counts, double fraction) {
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return 1L << bucket;
+            }
+        }
+        return 1L << (counts.length - 1);
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.dtls.Connection;
+import org.eclipse.californium.scandium.dtls.ResumptionSupportingConnectionStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wraps the DTLS connector of the secure outbound endpoint.
+ * <ul>
+ * <li>Handshakes are single-flight per peer: while a handshake is running,
+ * further datagrams to that peer are held back and sent once the session is
+ * established, instead of each starting a handshake of its own. At most
+ * {@code MAX_PENDING} datagrams are held back per peer.</li>
+ * <li>Sessions live in a bounded connection store.</li>
+ * </ul>
+ * Handshake counts and latency are served under {@code /metrics/dtls}.
+ */
+public class SingleFlightConnector implements Connector, GatewayMetrics.Source {
+
+    private static final Logger LOGGER = Logger.getLogger(SingleFlightConnector.class.getCanonicalName());
+
+    /* how often pending handshakes are checked for completion */
+    private static final long POLL_MILLIS = 10;
+    /* datagrams held back per peer while its handshake runs, the rest is dropped */
+    private static final int MAX_PENDING = 64;
+
+    private final DTLSConnector connector;
+    private final ResumptionSupportingConnectionStore sessions;
+    private final int sessionCapacity;
+    private final long handshakeTimeout;
+
+    private final Map<InetSocketAddress, Flight> flights = new ConcurrentHashMap<InetSocketAddress, Flight>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dtls-handshakes");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final RttHistogram handshakeLatency = new RttHistogram();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile RawDataChannel receiver;
+
+    /**
+     * @param sessions the connection store the connector was created with
+     * @param handshakeTimeout milliseconds after which a handshake is given up
+     */
+    public SingleFlightConnector(DTLSConnector connector, ResumptionSupportingConnectionStore sessions, int sessionCapacity,
+                                 long handshakeTimeout) {
+        this.connector = connector;
+        this.sessions = sessions;
+        this.sessionCapacity = sessionCapacity;
+        this.handshakeTimeout = handshakeTimeout;
+        connector.setRawDataReceiver(raw -> {
+            InetSocketAddress peer = raw.getInetSocketAddress();
+            // data from the peer proves the session is up
+            completeIfEstablished(peer, true);
+            RawDataChannel channel = receiver;
+            if (channel != null) {
+                channel.receiveData(raw);
+            }
+        });
+    }
+
+    @Override
+    public void start() throws IOException {
+        connector.start();
+        scheduler.scheduleWithFixedDelay(this::poll, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        GatewayMetrics.register("dtls", this);
+    }
+
+    @Override
+    public void stop() {
+        GatewayMetrics.unregister("dtls");
+        scheduler.shutdownNow();
+        connector.stop();
+    }
+
+    @Override
+    public void destroy() {
+        stop();
+        connector.destroy();
+    }
+
+    @Override
+    public void send(RawData msg) {
+        InetSocketAddress peer = msg.getInetSocketAddress();
+        Flight flight;
+        synchronized (this) {
+            flight = flights.get(peer);
+            if (flight != null) {
+                // a handshake with the peer is running, wait for it
+                if (flight.pending.size() < MAX_PENDING) {
+                    flight.pending.add(msg);
+                    coalesced.incrementAndGet();
+                } else {
+                    // confirmable requests are retransmitted by the CoAP layer
+                    dropped.incrementAndGet();
+                }
+                return;
+            }
+            if (!isEstablished(peer)) {
+                flights.put(peer, new Flight());
+            }
+        }
+        // starts the handshake if there is no session
+        connector.send(msg);
+    }
+
+    @Override
+    public void setRawDataReceiver(RawDataChannel messageHandler) {
+        this.receiver = messageHandler;
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return connector.getAddress();
+    }
+
+    private boolean isEstablished(InetSocketAddress peer) {
+        Connection connection = sessions.get(peer);
+        return connection != null && connection.getEstablishedSession() != null && connection.getOngoingHandshake() == null;
+    }
+
+    private void poll() {
+        try {
+            for (InetSocketAddress peer : flights.keySet()) {
+                completeIfEstablished(peer, false);
+            }
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<InetSocketAddress, Flight>> it = flights.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<InetSocketAddress, Flight> entry = it.next();
+                if (now - entry.getValue().started > TimeUnit.MILLISECONDS.toNanos(handshakeTimeout)) {
+                    it.remove();
+                    failures.incrementAndGet();
+                    LOGGER.warning("DTLS handshake with " + entry.getKey() + " timed out, dropping "
+                            + entry.getValue().pending.size() + " datagrams");
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "DTLS handshake check failed", e);
+        }
+    }
+
+    private void completeIfEstablished(InetSocketAddress peer, boolean received) {
+        Flight flight;
+        synchronized (this) {
+            flight = flights.get(peer);
+            if (flight == null) {
+                return;
+            }
+            if (!received && !isEstablished(peer)) {
+                return;
+            }
+            flights.remove(peer);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - flight.started);
+        handshakeLatency.record(millis);
+        handshakes.incrementAndGet();
+        LOGGER.fine("Established DTLS session with " + peer + " in " + millis + " ms");
+        // retransmissions of held back requests are handled by the CoAP layer
+        for (RawData raw : flight.pending) {
+            connector.send(raw);
+        }
+    }
+
+    @Override
+    public void collect(Map<String, Number> metrics) {
+        metrics.put("handshakes.full", handshakes.get());
+        metrics.put("handshakes.failed", failures.get());
+        metrics.put("handshakes.running", flights.size());
+        metrics.put("handshakes.coalesced", coalesced.get());
+        metrics.put("handshakes.dropped", dropped.get());
+        metrics.put("handshake.mean.ms", handshakeLatency.mean());
+        metrics.put("handshake.p50.ms", handshakeLatency.percentile(0.5));
+        metrics.put("handshake.p99.ms", handshakeLatency.percentile(0.99));
+        metrics.put("sessions", sessionCapacity - sessions.remainingCapacity());
+        metrics.put("sessions.capacity", sessionCapacity);
+    }
+
+    private static class Flight {
+
+        private final long started = System.nanoTime();
+        private final List<RawData> pending = new ArrayList<RawData>();
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.serialization.DataParser;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Message framing of CoAP over TCP, TLS and WebSockets (RFC 8323).
+ * <p>
+ * The reliable transports drop the type and message ID of the UDP header
+ * and prefix the message with its length instead; options and payload are
+ * encoded as over UDP. Requests are therefore serialized with Californium's
+ * DataSerializer and reframed, received frames are turned back into a UDP
+ * datagram for the DataParser. Over WebSockets the length is implied by the
+ * WebSocket message and the length nibble is always 0.
+ */
+final class TcpFrames {
+
+    /** signaling codes, RFC 8323 section 5 */
+    static final int CSM = 0xE1;
+    static final int PING = 0xE2;
+    static final int PONG = 0xE3;
+    static final int RELEASE = 0xE4;
+    static final int ABORT = 0xE5;
+
+    /** Max-Message-Size option of the CSM message */
+    static final int MAX_MESSAGE_SIZE = 2;
+
+    /* UDP header: version 1, NON, message ID 0 */
+    private static final int UDP_HEADER = 0x50;
+
+    /**
+     * A received frame.
+     */
+    static final class Frame {
+
+        final int code;
+        final byte[] token;
+        /* options and payload */
+        final byte[] body;
+
+        Frame(int code, byte[] token, byte[] body) {
+            this.code = code;
+            this.token = token;
+            this.body = body;
+        }
+
+        boolean isSignal() {
+            return code >>> 5 == 7;
+        }
+
+        boolean isResponse() {
+            int codeClass = code >>> 5;
+            return codeClass >= 2 && codeClass <= 5;
+        }
+
+        Response toResponse() {
+            byte[] datagram = new byte[4 + token.length + body.length];
+            datagram[0] = (byte) (UDP_HEADER | token.length);
+            datagram[1] = (byte) code;
+            System.arraycopy(token, 0, datagram, 4, token.length);
+            System.arraycopy(body, 0, datagram, 4 + token.length, body.length);
+            return new DataParser(datagram).parseResponse();
+        }
+    }
+
+    /**
+     * @return the frame of the request, which must have a token
+     */
+    static byte[] encode(Request request, boolean websocket) {
+        Type type = request.getType();
+        int mid = request.getMID();
+        request.setType(Type.NON);
+        request.setMID(0);
+        byte[] datagram;
+        try {
+            datagram = new DataSerializer().serializeRequest(request);
+        } finally {
+            request.setType(type);
+            request.setMID(mid);
+        }
+        int tokenLength = datagram[0] & 0x0F;
+        return encode(datagram[1] & 0xFF, request.getToken(),
+                Arrays.copyOfRange(datagram, 4 + tokenLength, datagram.length), websocket);
+    }
+
+    /**
+     * @return a signaling message, with at most one uint option
+     */
+    static byte[] signal(int code, byte[] token, int option, long value, boolean websocket) {
+        if (option <= 0) {
+            return encode(code, token, new byte[0], websocket);
+        }
+        int length = value == 0 ? 0 : (64 - Long.numberOfLeadingZeros(value) + 7) / 8;
+        // options below 13 with values below 13 bytes need no extended fields
+        byte[] body = new byte[1 + length];
+        body[0] = (byte) (option << 4 | length);
+        for (int i = 0; i < length; i++) {
+            body[1 + i] = (byte) (value >>> (8 * (length - 1 - i)));
+        }
+        return encode(code, token, body, websocket);
+    }
+
+    static byte[] encode(int code, byte[] token, byte[] body, boolean websocket) {
+        if (token.length > 8) {
+            throw new IllegalArgumentException("token longer than 8 bytes");
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(6 + token.length + body.length);
+        int length = body.length;
+        if (websocket) {
+            frame.write(token.length);
+        } else if (length < 13) {
+            frame.write(length << 4 | token.length);
+        } else if (length < 269) {
+            frame.write(13 << 4 | token.length);
+            frame.write(length - 13);
+        } else if (length < 65805) {
+            frame.write(14 << 4 | token.length);
+            writeInt(frame, length - 269, 2);
+        } else {
+            frame.write(15 << 4 | token.length);
+            writeInt(frame, length - 65805, 4);
+        }
+        frame.write(code);
+        frame.write(token, 0, token.length);
+        frame.write(body, 0, body.length);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Reads the next frame of a TCP or TLS stream.
+     *
+     * @param maxLength the largest frame body accepted
+     * @return null at the end of the stream
+     * @throws IOException also if the frame is larger than maxLength
+     */
+    static Frame read(InputStream in, int maxLength) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = first >>> 4;
+        if (length == 13) {
+            length = readInt(in, 1) + 13;
+        } else if (length == 14) {
+            length = readInt(in, 2) + 269;
+        } else if (length == 15) {
+            long extended = readInt(in, 4) & 0xFFFFFFFFL;
+            if (extended + 65805 > maxLength) {
+                throw new IOException("frame of " + (extended + 65805) + " bytes exceeds " + maxLength);
+            }
+            length = (int) extended + 65805;
+        }
+        if (length > maxLength) {
+            throw new IOException("frame of " + length + " bytes exceeds " + maxLength);
+        }
+        int code = readInt(in, 1);
+        byte[] token = readFully(in, tokenLength(first));
+        return new Frame(code, token, readFully(in, length));
+    }
+
+    /**
+     * Decodes a frame received as one WebSocket message.
+     */
+    static Frame decode(byte[] message) throws IOException {
+        if (message.length < 2) {
+            throw new IOException("truncated frame");
+        }
+        if ((message[0] & 0xFF) >>> 4 != 0) {
+            throw new IOException("length nibble must be 0 over WebSockets");
+        }
+        int tokenLength = tokenLength(message[0]);
+        if (message.length < 2 + tokenLength) {
+            throw new IOException("truncated frame");
+        }
+        return new Frame(message[1] & 0xFF, Arrays.copyOfRange(message, 2, 2 + tokenLength),
+                Arrays.copyOfRange(message, 2 + tokenLength, message.length));
+    }
+
+    private static int tokenLength(int first) throws IOException {
+        int tokenLength = first & 0x0F;
+        if (tokenLength > 8) {
+            throw new IOException("invalid token length " + tokenLength);
+        }
+        return tokenLength;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.write(value >>> (8 * i));
+        }
+    }
+
+    private static int readInt(InputStream in, int bytes) throws IOException {
+        int value = 0;
+        for (int i = 0; i < bytes; i++) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("stream ended within a frame");
+            }
+            value = value << 8 | b;
+        }
+        return value;
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new EOFException("stream ended within a frame");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    private TcpFrames() {
+    }
+}
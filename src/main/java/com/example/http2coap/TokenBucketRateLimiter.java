@@ -0,0 +1,133 @@
+package com.example.http2coap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets keyed by string, e.g. a client address or a CoAP destination.
+ * <p>
+ * The keys are spread over lock stripes, each holding its buckets in access
+ * order. A bucket that has refilled completely carries no state worth
+ * keeping, so every acquire drops a few such idle buckets from the cold end
+ * of its stripe, and each stripe is additionally capped at a fixed number of
+ * keys. Memory therefore follows the number of recently active keys, not the
+ * number of keys ever seen.
+ */
+public class TokenBucketRateLimiter {
+
+    /* idle buckets dropped per acquire */
+    private static final int EVICTIONS_PER_ACQUIRE = 2;
+
+    private final double tokensPerNano;
+    private final double burst;
+    private final long refillNanos;
+    private final Stripe[] stripes;
+    private final int mask;
+
+    /**
+     * @param ratePerSecond the sustained rate per key
+     * @param burst the bucket size per key
+     * @param stripes the number of locks, rounded up to a power of two
+     * @param maxKeysPerStripe the hard limit of buckets per lock
+     */
+    public TokenBucketRateLimiter(double ratePerSecond, int burst, int stripes, final int maxKeysPerStripe) {
+        if (ratePerSecond <= 0 || burst <= 0 || stripes <= 0 || maxKeysPerStripe <= 0) {
+            throw new IllegalArgumentException("rate, burst, stripes and keys must be positive");
+        }
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.refillNanos = (long) Math.ceil(burst / tokensPerNano);
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe(maxKeysPerStripe);
+        }
+    }
+
+    /**
+     * Takes a token for the key.
+     *
+     * @return 0 if the request is admitted, otherwise the nanoseconds until
+     *         the next token is available
+     */
+    public long tryAcquire(String key, long nowNanos) {
+        int hash = key.hashCode();
+        Stripe stripe = stripes[(hash ^ hash >>> 16) & mask];
+        synchronized (stripe) {
+            stripe.evictIdle(nowNanos);
+
+            Bucket bucket = stripe.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(burst, nowNanos);
+                stripe.put(key, bucket);
+            } else {
+                bucket.tokens = Math.min(burst, bucket.tokens + (nowNanos - bucket.updated) * tokensPerNano);
+                bucket.updated = nowNanos;
+            }
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - bucket.tokens) / tokensPerNano);
+        }
+    }
+
+    /**
+     * @return the number of buckets currently held
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private static final class Bucket {
+
+        private double tokens;
+        private long updated;
+
+        private Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+
+    private final class Stripe extends LinkedHashMap<String, Bucket> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxKeys;
+
+        private Stripe(int maxKeys) {
+            super(16, 0.75f, true);
+            this.maxKeys = maxKeys;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > maxKeys;
+        }
+
+        private void evictIdle(long nowNanos) {
+            Iterator<Bucket> buckets = values().iterator();
+            for (int i = 0; i < EVICTIONS_PER_ACQUIRE && buckets.hasNext(); i++) {
+                Bucket bucket = buckets.next();
+                // a full bucket is the same as a fresh one
+                if (nowNanos - bucket.updated < refillNanos) {
+                    return;
+                }
+                buckets.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.http2coap;
+
+/**
+ * Scheduling classes of outbound CoAP messages. Under load the sender serves
+ * the classes in weighted round robin, so a class gets at least its share of
+ * {@code weight / sum of weights} of the sends and none can starve.
+ */
+public enum TrafficClass {
+
+    /** user facing requests, empty ACKs and RSTs */
+    INTERACTIVE(8),
+    /** forwarding on behalf of CoAP clients and everything untagged */
+    NORMAL(3),
+    /** bulk observation setup */
+    BACKGROUND(1);
+
+    /** request header to pick the class of a proxied request */
+    public static final String HEADER = "X-Priority";
+
+    private final int weight;
+
+    TrafficClass(int weight) {
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @param value the value of the {@link #HEADER} header, may be null
+     * @param fallback the class of the route
+     */
+    public static TrafficClass fromHeader(String value, TrafficClass fallback) {
+        if (value != null) {
+            for (TrafficClass trafficClass : values()) {
+                if (trafficClass.name().equalsIgnoreCase(value.trim())) {
+                    return trafficClass;
+                }
+            }
+        }
+        return fallback;
+    }
+}
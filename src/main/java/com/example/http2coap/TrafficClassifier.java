@@ -0,0 +1,95 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Assigns outbound requests to a {@link TrafficClass}.
+ * <p>
+ * The connector only sees serialized datagrams, so requests are tagged by
+ * their token: {@link #tag(Request, TrafficClass)} gives the request a token
+ * up front and remembers its class until the exchange is over, and
+ * {@link #classify(byte[])} reads the token back from the datagram. This also
+ * covers retransmissions. Empty messages (ACK, RST) are always interactive.
+ */
+public final class TrafficClassifier {
+
+    private static final ConcurrentHashMap<Long, TrafficClass> TAGS = new ConcurrentHashMap<Long, TrafficClass>();
+
+    public static void tag(final Request request, TrafficClass trafficClass) {
+        if (trafficClass == TrafficClass.NORMAL) {
+            return;
+        }
+        if (request.getToken() == null || request.getToken().length == 0) {
+            byte[] token = new byte[8];
+            ThreadLocalRandom.current().nextBytes(token);
+            request.setToken(token);
+        }
+        final long key = key(request.getToken(), 0, request.getToken().length);
+        TAGS.put(key, trafficClass);
+        request.addMessageObserver(new MessageObserverAdapter() {
+            @Override
+            public void onResponse(Response response) {
+                // observations keep their class for the notifications
+                if (!request.getOptions().hasObserve()) {
+                    TAGS.remove(key);
+                }
+            }
+
+            @Override
+            public void onTimeout() {
+                TAGS.remove(key);
+            }
+
+            @Override
+            public void onCancel() {
+                TAGS.remove(key);
+            }
+
+            @Override
+            public void onReject() {
+                TAGS.remove(key);
+            }
+        });
+    }
+
+    /**
+     * @param datagram a serialized CoAP message
+     * @return the class to send the message with
+     */
+    public static TrafficClass classify(byte[] datagram) {
+        if (datagram.length < 4) {
+            return TrafficClass.NORMAL;
+        }
+        if (datagram[1] == 0) {
+            // empty message
+            return TrafficClass.INTERACTIVE;
+        }
+        int tokenLength = datagram[0] & 0x0F;
+        if (tokenLength == 0 || tokenLength > 8 || datagram.length < 4 + tokenLength) {
+            return TrafficClass.NORMAL;
+        }
+        TrafficClass trafficClass = TAGS.get(key(datagram, 4, tokenLength));
+        return trafficClass != null ? trafficClass : TrafficClass.NORMAL;
+    }
+
+    static int size() {
+        return TAGS.size();
+    }
+
+    private static long key(byte[] bytes, int offset, int length) {
+        // exact for tokens of the same length
+        long key = 0;
+        for (int i = 0; i < length; i++) {
+            key = key << 8 | (bytes[offset + i] & 0xFF);
+        }
+        return key ^ (long) length * 0x9E3779B97F4A7C15L;
+    }
+
+    private TrafficClassifier() {
+    }
+}
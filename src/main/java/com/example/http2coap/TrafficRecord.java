@@ -0,0 +1,121 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.serialization.DataParser;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * A recorded request and response pair, as written by the
+ * {@link TrafficRecorder}. Both messages are kept in their CoAP wire format.
+ * <p>
+ * Layout: record length (int, excluding itself), source (byte), start time
+ * in epoch milliseconds (long), duration in microseconds (int), peer address
+ * length (byte), address, port (short), request length (int), request,
+ * response length (int, 0 without response), response.
+ */
+public class TrafficRecord {
+
+    public enum Source {
+        /** translated by {@link MyServlet}, the peer is the CoAP device */
+        HTTP,
+        /** forwarded by {@link ProxyMessageDeliverer}, the peer is the CoAP client */
+        COAP
+    }
+
+    private final Source source;
+    private final long timestamp;
+    private final int durationMicros;
+    private final InetSocketAddress peer;
+    private final byte[] request;
+    private final byte[] response;
+
+    public TrafficRecord(Source source, long timestamp, int durationMicros, InetSocketAddress peer, byte[] request, byte[] response) {
+        this.source = source;
+        this.timestamp = timestamp;
+        this.durationMicros = durationMicros;
+        this.peer = peer;
+        this.request = request;
+        this.response = response == null ? new byte[0] : response;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getDurationMicros() {
+        return durationMicros;
+    }
+
+    public InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    public Request parseRequest() {
+        return new DataParser(request).parseRequest();
+    }
+
+    /**
+     * @return the response, null if the request was not answered
+     */
+    public Response parseResponse() {
+        return response.length == 0 ? null : new DataParser(response).parseResponse();
+    }
+
+    public int size() {
+        return 4 + 1 + 8 + 4 + 1 + peer.getAddress().getAddress().length + 2 + 4 + request.length + 4 + response.length;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        byte[] address = peer.getAddress().getAddress();
+        buffer.putInt(size() - 4);
+        buffer.put((byte) source.ordinal());
+        buffer.putLong(timestamp);
+        buffer.putInt(durationMicros);
+        buffer.put((byte) address.length);
+        buffer.put(address);
+        buffer.putShort((short) peer.getPort());
+        buffer.putInt(request.length);
+        buffer.put(request);
+        buffer.putInt(response.length);
+        buffer.put(response);
+    }
+
+    /**
+     * Reads the record at the position of the buffer.
+     *
+     * @return null at the end of the written part of a segment
+     */
+    public static TrafficRecord readFrom(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            return null;
+        }
+        Source source = Source.values()[buffer.get()];
+        long timestamp = buffer.getLong();
+        int duration = buffer.getInt();
+        byte[] address = new byte[buffer.get()];
+        buffer.get(address);
+        int port = buffer.getShort() & 0xFFFF;
+        byte[] request = new byte[buffer.getInt()];
+        buffer.get(request);
+        byte[] response = new byte[buffer.getInt()];
+        buffer.get(response);
+        try {
+            return new TrafficRecord(source, timestamp, duration, new InetSocketAddress(InetAddress.getByAddress(address), port), request, response);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Corrupt traffic record", e);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the proxied request and response pairs into a rotating set of
+ * memory-mapped segment files ({@code traffic-<n>.rec}), for replay with
+ * the TrafficReplay tool.
+ * <p>
+ * The request threads only serialize the messages and hand the record to a
+ * bounded queue; a single writer thread appends them to the current segment.
+ * Records are dropped rather than slowing down the proxy when the queue is
+ * full. Only the newest {@code maxSegments} segments are kept.
+ */
+public class TrafficRecorder {
+
+    private static final Logger LOGGER = Logger.getLogger(TrafficRecorder.class.getCanonicalName());
+
+    private static final String PREFIX = "traffic-";
+    private static final String SUFFIX = ".rec";
+
+    private static volatile TrafficRecorder installed;
+    private static volatile boolean suspended;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final BlockingQueue<TrafficRecord> queue;
+    private final Thread writer;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean running = true;
+    private long segment;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+
+    /**
+     * @param segmentSize the size of a segment file in bytes
+     * @param maxSegments the number of segment files kept
+     * @param queueSize the number of records waiting for the writer
+     */
+    public TrafficRecorder(File directory, int segmentSize, int maxSegments, int queueSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new FileNotFoundException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.queue = new ArrayBlockingQueue<TrafficRecord>(queueSize);
+        List<File> existing = segments(directory);
+        segment = existing.isEmpty() ? 0 : number(existing.get(existing.size() - 1)) + 1;
+        openSegment();
+
+        writer = new Thread(this::drain, "traffic-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Makes the recorder receive the {@link #record} calls, null stops
+     * recording.
+     */
+    public static void install(TrafficRecorder recorder) {
+        installed = recorder;
+        if (recorder == null) {
+            GatewayMetrics.unregister("recorder");
+        } else {
+            GatewayMetrics.register("recorder", metrics -> {
+                metrics.put("recorded", recorder.recorded.get());
+                metrics.put("dropped", recorder.dropped.get());
+                metrics.put("queued", recorder.queue.size());
+            });
+        }
+    }
+
+    public static boolean isRecording() {
+        return installed != null && !suspended;
+    }
+
+    /**
+     * Stops or resumes recording without closing the installed recorder,
+     * e.g. while the gateway sends its own {@link WarmUp} traffic.
+     */
+    static void suspend(boolean suspend) {
+        suspended = suspend;
+    }
+
+    /**
+     * Records a request and its response if a recorder is installed.
+     *
+     * @param peer the CoAP device for {@link TrafficRecord.Source#HTTP}, the
+     *        CoAP client for {@link TrafficRecord.Source#COAP}
+     * @param response null if the request was not answered
+     * @param timestamp the start time in epoch milliseconds
+     * @param durationNanos the time taken to answer
+     */
+    public static void record(TrafficRecord.Source source, InetSocketAddress peer, Request request, Response response,
+                              long timestamp, long durationNanos) {
+        TrafficRecorder recorder = installed;
+        if (recorder == null || suspended || request == null) {
+            return;
+        }
+        try {
+            DataSerializer serializer = new DataSerializer();
+            byte[] requestBytes = serializer.serializeRequest(request);
+            byte[] responseBytes = response == null ? null : serializer.serializeResponse(response);
+            int micros = (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(durationNanos));
+            recorder.offer(new TrafficRecord(source, timestamp, micros, peer, requestBytes, responseBytes));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Cannot record request", e);
+        }
+    }
+
+    void offer(TrafficRecord record) {
+        if (record.size() > segmentSize) {
+            dropped.incrementAndGet();
+        } else if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops recording, writes the queued records and closes the current
+     * segment.
+     */
+    public void close() throws InterruptedException {
+        if (installed == this) {
+            install(null);
+        }
+        // no interrupt, it would close the mapped segment's channel
+        running = false;
+        writer.join();
+    }
+
+    private void drain() {
+        List<TrafficRecord> batch = new ArrayList<TrafficRecord>();
+        try {
+            while (running || !queue.isEmpty()) {
+                TrafficRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                write(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warning("Traffic recorder interrupted, " + queue.size() + " records lost");
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private void write(List<TrafficRecord> batch) {
+        for (TrafficRecord record : batch) {
+            try {
+                if (record.size() > buffer.remaining()) {
+                    closeSegment();
+                    segment++;
+                    openSegment();
+                }
+                record.writeTo(buffer);
+                recorded.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                dropped.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Cannot write traffic segment " + segment, e);
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        file = new RandomAccessFile(new File(directory, PREFIX + segment + SUFFIX), "rw");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        List<File> existing = segments(directory);
+        for (int i = 0; i < existing.size() - maxSegments; i++) {
+            if (!existing.get(i).delete()) {
+                LOGGER.warning("Cannot delete old traffic segment " + existing.get(i));
+            }
+        }
+    }
+
+    private void closeSegment() {
+        if (file == null) {
+            return;
+        }
+        try {
+            // the unwritten rest stays zero, which ends the segment for readers
+            buffer.force();
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file = null;
+    }
+
+    /**
+     * @return the segment files of the directory, oldest first
+     */
+    public static List<File> segments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        List<File> segments = new ArrayList<File>(files == null ? new ArrayList<File>() : Arrays.asList(files));
+        segments.sort((a, b) -> Long.compare(number(a), number(b)));
+        return segments;
+    }
+
+    /**
+     * @return all records of a segment file
+     */
+    public static List<TrafficRecord> read(File segment) throws IOException {
+        List<TrafficRecord> records = new ArrayList<TrafficRecord>();
+        RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        try {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            TrafficRecord record;
+            while ((record = TrafficRecord.readFrom(buffer)) != null) {
+                records.add(record);
+            }
+        } finally {
+            raf.close();
+        }
+        return records;
+    }
+
+    private static long number(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.http2coap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Starts the {@link TrafficRecorder} when {@code recorder.enabled} is set.
+ */
+@Configuration
+@ConditionalOnProperty(name = "recorder.enabled", havingValue = "true")
+public class TrafficRecorderConfig {
+
+    @Value("${recorder.directory:recordings}")
+    private String directory;
+
+    @Value("${recorder.segment-size:67108864}")
+    private int segmentSize;
+
+    @Value("${recorder.max-segments:16}")
+    private int maxSegments;
+
+    @Value("${recorder.queue:65536}")
+    private int queueSize;
+
+    @Bean(destroyMethod = "close")
+    TrafficRecorder trafficRecorder() throws IOException {
+        TrafficRecorder recorder = new TrafficRecorder(new File(directory), segmentSize, maxSegments, queueSize);
+        TrafficRecorder.install(recorder);
+        return recorder;
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pre-decoded lookup tables for the HTTP/CoAP mappings of Proxy.properties.
+ * <p>
+ * The property file is bundled into the jar at build time, so the tables are
+ * parsed from the classpath instead of being generated (and written to disk)
+ * by {@link org.eclipse.californium.proxy.MappingProperties} on the first
+ * request. A Proxy.properties in the working directory still overrides the
+ * bundled entries. All string parsing happens once, when the class is
+ * initialized; the request path only does array and map look-ups.
+ */
+final class TranslationTables {
+
+    private static final Logger LOGGER = Logger.getLogger(TranslationTables.class.getName());
+
+    static final String FILE_NAME = "Proxy.properties";
+
+    private static final String KEY_COAP_CODE = "coap.response.code.";
+    private static final String KEY_COAP_OPTION = "coap.message.option.";
+    private static final String KEY_COAP_MEDIA = "coap.message.media.";
+    private static final String KEY_HTTP_METHOD = "http.request.method.";
+    private static final String KEY_HTTP_HEADER = "http.message.header.";
+    private static final String KEY_HTTP_CONTENT_TYPE = "http.message.content-type.";
+
+    static final Properties PROPERTIES = load();
+
+    private static final int[] HTTP_STATUS_BY_COAP_CODE = new int[256];
+    private static final Map<String, Code> COAP_METHOD_BY_HTTP_METHOD = new HashMap<String, Code>();
+    private static final Map<String, Integer> COAP_OPTION_BY_HTTP_HEADER = new HashMap<String, Integer>();
+    private static final Map<Integer, String> HTTP_HEADER_BY_COAP_OPTION = new HashMap<Integer, String>();
+    private static final Map<String, Integer> COAP_MEDIA_BY_HTTP_CONTENT_TYPE = new HashMap<String, Integer>();
+    private static final Map<Integer, String> HTTP_CONTENT_TYPE_BY_COAP_MEDIA = new HashMap<Integer, String>();
+
+    static {
+        for (String key : PROPERTIES.stringPropertyNames()) {
+            String value = PROPERTIES.getProperty(key).trim();
+            try {
+                if (key.startsWith(KEY_COAP_CODE)) {
+                    int coapCode = Integer.parseInt(key.substring(KEY_COAP_CODE.length()));
+                    if (coapCode >= 0 && coapCode < HTTP_STATUS_BY_COAP_CODE.length) {
+                        HTTP_STATUS_BY_COAP_CODE[coapCode] = Integer.parseInt(value);
+                    }
+                } else if (key.startsWith(KEY_HTTP_METHOD)) {
+                    // methods mapped to "error.xxx" stay unmapped
+                    if (!value.contains("error")) {
+                        COAP_METHOD_BY_HTTP_METHOD.put(key.substring(KEY_HTTP_METHOD.length()), Code.valueOf(Integer.parseInt(value)));
+                    }
+                } else if (key.startsWith(KEY_HTTP_HEADER)) {
+                    COAP_OPTION_BY_HTTP_HEADER.put(key.substring(KEY_HTTP_HEADER.length()), Integer.parseInt(value));
+                } else if (key.startsWith(KEY_COAP_OPTION)) {
+                    HTTP_HEADER_BY_COAP_OPTION.put(Integer.parseInt(key.substring(KEY_COAP_OPTION.length())), value);
+                } else if (key.startsWith(KEY_HTTP_CONTENT_TYPE)) {
+                    COAP_MEDIA_BY_HTTP_CONTENT_TYPE.put(key.substring(KEY_HTTP_CONTENT_TYPE.length()), Integer.parseInt(value));
+                } else if (key.startsWith(KEY_COAP_MEDIA)) {
+                    HTTP_CONTENT_TYPE_BY_COAP_MEDIA.put(Integer.parseInt(key.substring(KEY_COAP_MEDIA.length())), value);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warning("Ignoring unparsable mapping " + key + "=" + value);
+            }
+        }
+    }
+
+    private static Properties load() {
+        Properties properties = new Properties();
+        InputStream bundled = TranslationTables.class.getClassLoader().getResourceAsStream(FILE_NAME);
+        if (bundled != null) {
+            try {
+                properties.load(bundled);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read bundled " + FILE_NAME, e);
+            } finally {
+                closeQuietly(bundled);
+            }
+        }
+
+        File override = new File(FILE_NAME);
+        if (override.isFile()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(override);
+                properties.load(in);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read " + override.getAbsolutePath(), e);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        if (properties.isEmpty()) {
+            LOGGER.warning(FILE_NAME + " not found on the classpath nor in the working directory");
+        }
+        return properties;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Forces the tables to be built. Lets the startup path pay the parsing
+     * cost on a background thread instead of the first proxied request.
+     */
+    static void preload() {
+        LOGGER.fine("Translation tables ready, " + PROPERTIES.size() + " mappings");
+    }
+
+    /**
+     * @param httpMethod the lower case http method
+     * @return the mapped coap method or null if the method is not supported
+     */
+    static Code coapMethod(String httpMethod) {
+        return COAP_METHOD_BY_HTTP_METHOD.get(httpMethod);
+    }
+
+    /**
+     * @param coapCode the raw coap response code
+     * @return the mapped http status or 0 if no mapping exists
+     */
+    static int httpStatus(int coapCode) {
+        if (coapCode < 0 || coapCode >= HTTP_STATUS_BY_COAP_CODE.length) {
+            return 0;
+        }
+        return HTTP_STATUS_BY_COAP_CODE[coapCode];
+    }
+
+    /**
+     * @param headerName the lower case header name
+     * @return the coap option number or null if the header is not mapped
+     */
+    static Integer coapOption(String headerName) {
+        return COAP_OPTION_BY_HTTP_HEADER.get(headerName);
+    }
+
+    static String httpHeader(int optionNumber) {
+        return HTTP_HEADER_BY_COAP_OPTION.get(optionNumber);
+    }
+
+    static Integer coapMediaType(String httpContentType) {
+        return COAP_MEDIA_BY_HTTP_CONTENT_TYPE.get(httpContentType);
+    }
+
+    static String httpContentType(int coapMediaType) {
+        return HTTP_CONTENT_TYPE_BY_COAP_MEDIA.get(coapMediaType);
+    }
+
+    private TranslationTables() {
+    }
+}
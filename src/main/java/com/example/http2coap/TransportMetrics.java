@@ -0,0 +1,270 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.MessageObserver;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
+import org.eclipse.californium.elements.Connector;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of the CoAP transport of all gateway endpoints: messages
+ * sent and received, retransmissions, timeouts, duplicates, exchanges in
+ * flight, connector and protocol stage queue depths and the round-trip time
+ * distribution per peer. Served under {@code /metrics/transport}.
+ * <p>
+ * Retransmissions pass through the interceptors like first transmissions;
+ * they are told apart by the observer attached on the first send.
+ */
+public final class TransportMetrics implements MessageInterceptor, GatewayMetrics.Source {
+
+    /* peers with an own RTT histogram, the rest is aggregated */
+    private static final int MAX_PEERS = 1024;
+    private static final String OTHER_PEERS = "other";
+
+    private static final TransportMetrics INSTANCE = new TransportMetrics();
+
+    static {
+        GatewayMetrics.register("transport", INSTANCE);
+    }
+
+    final LongAdder requestsSent = new LongAdder();
+    final LongAdder responsesSent = new LongAdder();
+    final LongAdder emptySent = new LongAdder();
+    final LongAdder requestsReceived = new LongAdder();
+    final LongAdder responsesReceived = new LongAdder();
+    final LongAdder emptyReceived = new LongAdder();
+    final LongAdder retransmissions = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final AtomicLong inflight = new AtomicLong();
+
+    private final List<GatewayUdpConnector> connectors = new CopyOnWriteArrayList<GatewayUdpConnector>();
+    private final List<ScheduledThreadPoolExecutor> stages = new CopyOnWriteArrayList<ScheduledThreadPoolExecutor>();
+    private final ConcurrentHashMap<String, RttHistogram> rtt = new ConcurrentHashMap<String, RttHistogram>();
+
+    public static TransportMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Counts the traffic of an endpoint and gives it an own protocol stage
+     * executor, whose queue is the receiver side backlog. Must be called
+     * after the endpoint has been added to a server and before it is started.
+     *
+     * @param connector the connector of the endpoint
+     */
+    public static void instrument(Endpoint endpoint, Connector connector, NetworkConfig config) {
+        InetSocketAddress address = connector.getAddress();
+        final int port = address == null ? 0 : address.getPort();
+        ScheduledThreadPoolExecutor stage = new ScheduledThreadPoolExecutor(
+                Math.max(1, config.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT)), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "coap-stage-" + port + "-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        endpoint.setExecutor(stage);
+        endpoint.addInterceptor(INSTANCE);
+        if (connector instanceof GatewayUdpConnector) {
+            INSTANCE.connectors.add((GatewayUdpConnector) connector);
+        }
+        INSTANCE.stages.add(stage);
+    }
+
+    @Override
+    public void sendRequest(final Request request) {
+        if (isRetransmission(request)) {
+            return;
+        }
+        requestsSent.increment();
+        inflight.incrementAndGet();
+        final long sent = System.nanoTime();
+        request.addMessageObserver(new TransmissionObserver() {
+            @Override
+            public void onResponse(Response response) {
+                // Karn's algorithm: only unambiguous samples
+                if (!retransmitted) {
+                    histogram(request.getDestination() + ":" + request.getDestinationPort())
+                            .record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent));
+                }
+                if (!request.getOptions().hasObserve()) {
+                    done();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+        if (isRetransmission(response)) {
+            return;
+        }
+        responsesSent.increment();
+        response.addMessageObserver(new TransmissionObserver() {
+            @Override
+            protected void done() {
+                // responses are not counted in flight
+            }
+        });
+    }
+
+    @Override
+    public void sendEmptyMessage(EmptyMessage message) {
+        emptySent.increment();
+    }
+
+    @Override
+    public void receiveRequest(Request request) {
+        requestsReceived.increment();
+    }
+
+    @Override
+    public void receiveResponse(Response response) {
+        responsesReceived.increment();
+    }
+
+    @Override
+    public void receiveEmptyMessage(EmptyMessage message) {
+        emptyReceived.increment();
+    }
+
+    private static boolean isRetransmission(Message message) {
+        for (MessageObserver observer : message.getMessageObservers()) {
+            if (observer instanceof TransmissionObserver) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private RttHistogram histogram(String peer) {
+        RttHistogram histogram = rtt.get(peer);
+        if (histogram == null) {
+            if (rtt.size() >= MAX_PEERS) {
+                peer = OTHER_PEERS;
+            }
+            RttHistogram created = new RttHistogram();
+            histogram = rtt.putIfAbsent(peer, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    long duplicates() {
+        long duplicates = 0;
+        for (BoundedDeduplicator deduplicator : BoundedDeduplicatorFactory.getDeduplicators()) {
+            duplicates += deduplicator.getDuplicates();
+        }
+        return duplicates;
+    }
+
+    long sendQueueDepth() {
+        long depth = 0;
+        for (GatewayUdpConnector connector : connectors) {
+            depth += connector.getOutboundQueueSize();
+        }
+        return depth;
+    }
+
+    long stageQueueDepth() {
+        long depth = 0;
+        for (ScheduledThreadPoolExecutor stage : stages) {
+            depth += stage.getQueue().size();
+        }
+        return depth;
+    }
+
+    Map<String, RttHistogram> rttByPeer() {
+        return rtt;
+    }
+
+    @Override
+    public void collect(Map<String, Number> metrics) {
+        metrics.put("sent.requests", requestsSent.sum());
+        metrics.put("sent.responses", responsesSent.sum());
+        metrics.put("sent.empty", emptySent.sum());
+        metrics.put("received.requests", requestsReceived.sum());
+        metrics.put("received.responses", responsesReceived.sum());
+        metrics.put("received.empty", emptyReceived.sum());
+        metrics.put("retransmissions", retransmissions.sum());
+        metrics.put("timeouts", timeouts.sum());
+        metrics.put("duplicates", duplicates());
+        metrics.put("exchanges.inflight", inflight.get());
+        int deduplicated = 0;
+        for (BoundedDeduplicator deduplicator : BoundedDeduplicatorFactory.getDeduplicators()) {
+            deduplicated += deduplicator.size();
+        }
+        metrics.put("exchanges.deduplication", deduplicated);
+        metrics.put("exchanges.deduplication.evicted", BoundedDeduplicatorFactory.getEvictions());
+        metrics.put("queue.sender", sendQueueDepth());
+        metrics.put("queue.stage", stageQueueDepth());
+        for (Map.Entry<String, RttHistogram> peer : rtt.entrySet()) {
+            String prefix = "rtt." + peer.getKey().replace("/", "") + ".";
+            RttHistogram histogram = peer.getValue();
+            metrics.put(prefix + "count", histogram.count());
+            metrics.put(prefix + "mean.ms", histogram.mean());
+            metrics.put(prefix + "p50.ms", histogram.percentile(0.5));
+            metrics.put(prefix + "p99.ms", histogram.percentile(0.99));
+        }
+    }
+
+    /**
+     * Tracks retransmissions and the end of an outbound exchange.
+     */
+    private class TransmissionObserver extends MessageObserverAdapter {
+
+        protected volatile boolean retransmitted;
+        private volatile boolean done;
+
+        @Override
+        public void onRetransmission() {
+            retransmitted = true;
+            retransmissions.increment();
+        }
+
+        @Override
+        public void onTimeout() {
+            timeouts.increment();
+            done();
+        }
+
+        @Override
+        public void onCancel() {
+            done();
+        }
+
+        @Override
+        public void onReject() {
+            done();
+        }
+
+        protected void done() {
+            if (!done) {
+                done = true;
+                inflight.decrementAndGet();
+            }
+        }
+    }
+}
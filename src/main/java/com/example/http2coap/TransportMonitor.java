@@ -0,0 +1,209 @@
+package com.example.http2coap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks the {@link TransportMetrics} against thresholds once per interval
+ * and raises an {@link Event} when a threshold is crossed and again when it
+ * is cleared. Events are attributed to the network (round-trip times,
+ * retransmissions) or to the gateway (sender and protocol stage backlog,
+ * deduplicator overload), which tells whether slow proxied requests wait on
+ * the devices or on the gateway itself.
+ */
+@Component
+public class TransportMonitor {
+
+    private final static Logger LOGGER = Logger.getLogger(TransportMonitor.class.getCanonicalName());
+
+    public enum Origin {
+        NETWORK, GATEWAY
+    }
+
+    public static class Event {
+
+        private final Origin origin;
+        private final String name;
+        private final double value;
+        private final double threshold;
+        private final boolean raised;
+
+        Event(Origin origin, String name, double value, double threshold, boolean raised) {
+            this.origin = origin;
+            this.name = name;
+            this.value = value;
+            this.threshold = threshold;
+            this.raised = raised;
+        }
+
+        public Origin getOrigin() {
+            return origin;
+        }
+
+        /**
+         * @return the checked quantity, e.g. {@code rtt.10.0.0.1:5683}
+         */
+        public String getName() {
+            return name;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public double getThreshold() {
+            return threshold;
+        }
+
+        /**
+         * @return true when the threshold was crossed, false when cleared
+         */
+        public boolean isRaised() {
+            return raised;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %s: %.3f (threshold %.3f)",
+                    origin, name, raised ? "raised" : "cleared", value, threshold);
+        }
+    }
+
+    public interface Listener {
+
+        void onEvent(Event event);
+    }
+
+    private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<Listener>();
+
+    @Value("${transport.check-interval:5000}")
+    private long checkInterval;
+
+    @Value("${transport.threshold.rtt-p99-ms:2000}")
+    private long rttThreshold;
+
+    @Value("${transport.threshold.retransmission-ratio:0.1}")
+    private double retransmissionThreshold;
+
+    @Value("${transport.threshold.sender-queue:1000}")
+    private long senderQueueThreshold;
+
+    @Value("${transport.threshold.stage-queue:1000}")
+    private long stageQueueThreshold;
+
+    private final TransportMetrics metrics = TransportMetrics.get();
+    private final AtomicLong networkEvents = new AtomicLong();
+    private final AtomicLong gatewayEvents = new AtomicLong();
+
+    /* names of the thresholds currently exceeded */
+    private final Set<String> active = new HashSet<String>();
+    private final Map<String, long[]> lastRtt = new HashMap<String, long[]>();
+    private long lastRequests;
+    private long lastRetransmissions;
+
+    private ScheduledExecutorService scheduler;
+
+    public static void addListener(Listener listener) {
+        LISTENERS.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    @PostConstruct
+    void start() {
+        GatewayMetrics.register("transport.events", values -> {
+            values.put("network", networkEvents.get());
+            values.put("gateway", gatewayEvents.get());
+            synchronized (this) {
+                values.put("active", active.size());
+            }
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transport-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Transport check failed", e);
+            }
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        scheduler.shutdownNow();
+        GatewayMetrics.unregister("transport.events");
+    }
+
+    /**
+     * Compares the samples since the previous check with the thresholds.
+     */
+    synchronized void check() {
+        long requests = metrics.requestsSent.sum();
+        long retransmissions = metrics.retransmissions.sum();
+        long sent = requests - lastRequests;
+        double ratio = sent == 0 ? 0 : (double) (retransmissions - lastRetransmissions) / sent;
+        lastRequests = requests;
+        lastRetransmissions = retransmissions;
+        update(Origin.NETWORK, "retransmission-ratio", ratio, retransmissionThreshold);
+
+        for (Map.Entry<String, RttHistogram> peer : metrics.rttByPeer().entrySet()) {
+            long[] counts = peer.getValue().counts();
+            long[] last = lastRtt.put(peer.getKey(), counts);
+            long[] window = counts.clone();
+            if (last != null) {
+                for (int i = 0; i < window.length; i++) {
+                    window[i] -= last[i];
+                }
+            }
+            update(Origin.NETWORK, "rtt." + peer.getKey().replace("/", ""),
+                    RttHistogram.percentile(window, 0.99), rttThreshold);
+        }
+
+        update(Origin.GATEWAY, "sender-queue", metrics.sendQueueDepth(), senderQueueThreshold);
+        update(Origin.GATEWAY, "stage-queue", metrics.stageQueueDepth(), stageQueueThreshold);
+        update(Origin.GATEWAY, "deduplicator-overload", BoundedDeduplicatorFactory.isOverloaded() ? 1 : 0, 0.5);
+    }
+
+    private void update(Origin origin, String name, double value, double threshold) {
+        boolean exceeded = value > threshold;
+        if (exceeded == active.contains(name)) {
+            return;
+        }
+        if (exceeded) {
+            active.add(name);
+            (origin == Origin.NETWORK ? networkEvents : gatewayEvents).incrementAndGet();
+        } else {
+            active.remove(name);
+        }
+        Event event = new Event(origin, name, value, threshold, exceeded);
+        LOGGER.log(exceeded ? Level.WARNING : Level.INFO, "Transport event: " + event);
+        for (Listener listener : LISTENERS) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Transport event listener failed", e);
+            }
+        }
+    }
+}
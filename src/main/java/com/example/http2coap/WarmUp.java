@@ -0,0 +1,494 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.MessageDeliverer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional warm-up run after startup and before the gateway reports ready
+ * on {@code /ready}.
+ * <p>
+ * Requests are sent through the real HTTP listener and CoAP proxy port to a
+ * device simulated in-process on the loopback interface, so the translation
+ * in {@link MyHttpTranslator}, the {@link ProxyMessageDeliverer}, the
+ * outbound endpoints and the blockwise code run often enough to be compiled
+ * before real traffic arrives. The requests are either a fixed synthetic mix
+ * or, with {@code warmup.recordings}, the requests of a
+ * {@link TrafficRecorder} recording answered with the recorded responses.
+ * <p>
+ * The warm-up traffic is exempt from rate limiting and not recorded.
+ */
+@Component
+public class WarmUp {
+
+    private final static Logger LOGGER = Logger.getLogger(WarmUp.class.getCanonicalName());
+
+    private static final String[] SYNTHETIC_PATHS = {"warmup/small", "warmup/json?unit=C", "warmup/large", "warmup/echo"};
+    private static final int LARGE_PAYLOAD = 4096;
+    private static final int TIMEOUT = 5000;
+
+    @Value("${warmup.enabled:false}")
+    private boolean enabled;
+
+    @Value("${warmup.requests:10000}")
+    private int requests;
+
+    @Value("${warmup.max-duration:60000}")
+    private long maxDuration;
+
+    @Value("${warmup.threads:4}")
+    private int threads;
+
+    @Value("${warmup.recordings:}")
+    private String recordings;
+
+    @Value("${warmup.max-records:1000}")
+    private int maxRecords;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private Coap2HttpServer coapServer;
+
+    private static volatile String deviceAuthority;
+    private static volatile Map<String, Object> report;
+
+    /**
+     * @return the outcome of the warm-up, null until the gateway is ready
+     */
+    static Map<String, Object> getReport() {
+        return report;
+    }
+
+    /**
+     * @return true for the warm-up's own proxy requests
+     */
+    static boolean isWarmUpRequest(String remoteAddress, String destination) {
+        String device = deviceAuthority;
+        return device != null && device.equals(destination) && isLoopback(remoteAddress);
+    }
+
+    /**
+     * Warms up if enabled and then reports ready. Runs after
+     * {@link Coap2HttpServer#start()} has returned; a CoAP server that is not
+     * up is never reported ready.
+     *
+     * @throws IllegalStateException if the CoAP server failed to start or has
+     *         not been started
+     */
+    public void run() throws InterruptedException {
+        if (!coapServer.awaitStarted(0, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("coap server not started, not reporting ready");
+        }
+        Map<String, Object> outcome = new LinkedHashMap<String, Object>();
+        outcome.put("ready", true);
+        if (!enabled) {
+            outcome.put("warmup", "disabled");
+            publish(outcome);
+            return;
+        }
+        try {
+            outcome.put("warmup", warmUp());
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Warm-up failed, reporting ready anyway", e);
+            outcome.put("warmup", "failed: " + e);
+        }
+        publish(outcome);
+    }
+
+    private static void publish(Map<String, Object> outcome) {
+        report = outcome;
+        GatewayMetrics.register("warmup", metrics -> {
+            Object warmup = outcome.get("warmup");
+            if (warmup instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) warmup).entrySet()) {
+                    if (entry.getValue() instanceof Number) {
+                        metrics.put(entry.getKey().toString(), (Number) entry.getValue());
+                    }
+                }
+            }
+        });
+        LOGGER.info("Gateway ready: " + outcome);
+    }
+
+    private Map<String, Object> warmUp() throws Exception {
+        long st = System.nanoTime();
+        Device device = new Device();
+        List<Call> calls = recordings.isEmpty() ? synthetic() : recorded(new File(recordings), device);
+        if (calls.isEmpty()) {
+            LOGGER.info("No usable records in " + recordings + ", warming up with synthetic requests");
+            calls = synthetic();
+        }
+        final long[] latencies = new long[requests];
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        device.start();
+        try {
+            deviceAuthority = "127.0.0.1:" + device.port();
+            TrafficRecorder.suspend(true);
+
+            final Target target = new Target(device.port());
+            final List<Call> workload = calls;
+            final long end = st + TimeUnit.MILLISECONDS.toNanos(maxDuration);
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicInteger workerIds = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+                Thread thread = new Thread(r, "warmup-" + workerIds.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                for (int i = 0; i < Math.max(1, threads); i++) {
+                    workers.execute(() -> {
+                        int index;
+                        while ((index = next.getAndIncrement()) < requests && System.nanoTime() < end) {
+                            Call call = workload.get(index % workload.size());
+                            long callSt = System.nanoTime();
+                            boolean answered;
+                            try {
+                                answered = call.http ? target.http(call) : target.coap(call);
+                            } catch (Exception e) {
+                                answered = false;
+                            }
+                            if (!answered) {
+                                failures.incrementAndGet();
+                            }
+                            latencies[completed.getAndIncrement()] = System.nanoTime() - callSt;
+                        }
+                    });
+                }
+                workers.shutdown();
+                workers.awaitTermination(maxDuration + TIMEOUT, TimeUnit.MILLISECONDS);
+            } finally {
+                workers.shutdownNow();
+            }
+        } finally {
+            TrafficRecorder.suspend(false);
+            deviceAuthority = null;
+            device.stop();
+        }
+
+        int done = Math.min(completed.get(), requests);
+        int tenth = Math.max(1, done / 10);
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("source", recordings.isEmpty() ? "synthetic" : recordings);
+        result.put("duration.ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - st));
+        result.put("requests", done);
+        result.put("failures", failures.get());
+        if (done > 0) {
+            // the latency at the start against the end shows what the warm-up gained
+            result.put("first.p99.ms", p99(Arrays.copyOfRange(latencies, 0, tenth)));
+            result.put("last.p99.ms", p99(Arrays.copyOfRange(latencies, done - tenth, done)));
+        }
+        return result;
+    }
+
+    private static double p99(long[] nanos) {
+        Arrays.sort(nanos);
+        return nanos[Math.min(nanos.length - 1, (int) (nanos.length * 0.99))] / 1e6;
+    }
+
+    /**
+     * @return the same requests over HTTP and over CoAP
+     */
+    private static List<Call> synthetic() {
+        byte[] echo = new byte[64];
+        Arrays.fill(echo, (byte) 'x');
+        List<Call> calls = new ArrayList<Call>();
+        for (boolean http : new boolean[]{true, false}) {
+            for (String path : SYNTHETIC_PATHS) {
+                boolean post = path.endsWith("echo");
+                calls.add(new Call(http, post ? Code.POST : Code.GET, path, post ? echo : null));
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * @return the recorded requests the device has learned the responses to
+     */
+    private List<Call> recorded(File directory, Device device) throws IOException {
+        List<Call> calls = new ArrayList<Call>();
+        for (File segment : TrafficRecorder.segments(directory)) {
+            for (TrafficRecord record : TrafficRecorder.read(segment)) {
+                if (calls.size() >= maxRecords) {
+                    return calls;
+                }
+                Request request = record.parseRequest();
+                Response response = record.parseResponse();
+                String path;
+                if (record.getSource() == TrafficRecord.Source.COAP) {
+                    if (!request.getOptions().hasProxyUri()) {
+                        continue;
+                    }
+                    URI uri = URI.create(request.getOptions().getProxyUri());
+                    // HTTP origin servers are not simulated
+                    if (!"coap".equals(uri.getScheme())) {
+                        continue;
+                    }
+                    path = uri.getRawPath().replaceFirst("^/", "") + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+                } else {
+                    String query = request.getOptions().getUriQueryString();
+                    path = request.getOptions().getUriPathString() + (query.isEmpty() ? "" : "?" + query);
+                }
+                if (response != null) {
+                    device.learn(request.getCode(), path, response);
+                }
+                calls.add(new Call(record.getSource() == TrafficRecord.Source.HTTP, request.getCode(), path, request.getPayload()));
+            }
+        }
+        return calls;
+    }
+
+    private static boolean isLoopback(String address) {
+        try {
+            return InetAddress.getByName(address).isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A request of the warm-up.
+     */
+    private static final class Call {
+
+        private final boolean http;
+        private final Code code;
+        /* path and query on the device, without leading slash */
+        private final String path;
+        private final byte[] payload;
+
+        Call(boolean http, Code code, String path, byte[] payload) {
+            this.http = http;
+            this.code = code;
+            this.path = path;
+            this.payload = payload == null || payload.length == 0 ? null : payload;
+        }
+    }
+
+    /**
+     * Sends the calls through the gateway's own listeners.
+     */
+    private final class Target {
+
+        private final int devicePort;
+        private final String httpBase;
+        private final String coapProxy;
+        private final SSLSocketFactory trustAll;
+
+        Target(int devicePort) throws GeneralSecurityException {
+            this.devicePort = devicePort;
+            boolean ssl = environment.getProperty("server.ssl.key-store") != null;
+            int httpPort = environment.getProperty("local.server.port", Integer.class,
+                    environment.getProperty("server.port", Integer.class, 8080));
+            httpBase = (ssl ? "https" : "http") + "://127.0.0.1:" + httpPort + "/proxy/127.0.0.1:" + devicePort + "/";
+            coapProxy = "coap://127.0.0.1:" + coapServer.getPort();
+            // the gateway's own certificate, whatever it is
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[]{new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            }}, null);
+            trustAll = context.getSocketFactory();
+        }
+
+        boolean http(Call call) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(httpBase + call.path).openConnection();
+            if (connection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(trustAll);
+                ((HttpsURLConnection) connection).setHostnameVerifier((hostname, session) -> true);
+            }
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestMethod(call.code.name());
+            if (call.payload != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "text/plain");
+                OutputStream out = connection.getOutputStream();
+                out.write(call.payload);
+                out.close();
+            }
+            try {
+                int status = connection.getResponseCode();
+                // read the entity, so the connection is reused
+                InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null) {
+                    byte[] buffer = new byte[4096];
+                    while (in.read(buffer) >= 0) {
+                        // discard
+                    }
+                    in.close();
+                }
+                return status < 500;
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+        }
+
+        boolean coap(Call call) throws InterruptedException {
+            Request request = new Request(call.code);
+            request.setURI(coapProxy);
+            request.getOptions().setProxyUri("coap://127.0.0.1:" + devicePort + "/" + call.path);
+            if (call.payload != null) {
+                request.setPayload(call.payload);
+                request.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+            }
+            request.send(OutboundEndpoints.get());
+            Response response = request.waitForResponse(TIMEOUT);
+            if (response == null) {
+                request.cancel();
+                return false;
+            }
+            return response.getCode().value < ResponseCode.INTERNAL_SERVER_ERROR.value;
+        }
+    }
+
+    /**
+     * The simulated device: answers with the learned responses for the same
+     * method and path, in recorded order, or with a synthetic response.
+     */
+    private static final class Device implements MessageDeliverer {
+
+        private final CoapServer server = new CoapServer(NetworkConfig.getStandard());
+        private final Map<String, Deque<Response>> responses = new HashMap<String, Deque<Response>>();
+        private final byte[] large = new byte[LARGE_PAYLOAD];
+
+        Device() {
+            server.addEndpoint(new CoapEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+            server.setMessageDeliverer(this);
+            Arrays.fill(large, (byte) 'w');
+        }
+
+        void start() {
+            server.start();
+        }
+
+        void stop() {
+            server.destroy();
+        }
+
+        int port() {
+            return server.getEndpoints().get(0).getAddress().getPort();
+        }
+
+        synchronized void learn(Code code, String path, Response response) {
+            String key = code + " " + path.replaceFirst("\\?.*", "");
+            Deque<Response> recorded = responses.get(key);
+            if (recorded == null) {
+                recorded = new ArrayDeque<Response>();
+                responses.put(key, recorded);
+            }
+            recorded.add(response);
+        }
+
+        @Override
+        public void deliverRequest(Exchange exchange) {
+            Request request = exchange.getRequest();
+            String path = request.getOptions().getUriPathString();
+            Response recorded = null;
+            synchronized (this) {
+                Deque<Response> candidates = responses.get(request.getCode() + " " + path);
+                if (candidates != null) {
+                    // cycle through the recorded responses
+                    recorded = candidates.poll();
+                    candidates.add(recorded);
+                }
+            }
+            if (recorded != null) {
+                Response response = new Response(recorded.getCode());
+                response.setOptions(new OptionSet(recorded.getOptions()));
+                response.getOptions().removeObserve();
+                response.setPayload(recorded.getPayload());
+                exchange.sendResponse(response);
+                return;
+            }
+            exchange.sendResponse(synthetic(request, path));
+        }
+
+        private Response synthetic(Request request, String path) {
+            if (request.getCode() == Code.POST) {
+                Response response = new Response(ResponseCode.CHANGED);
+                response.setPayload(request.getPayload());
+                response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+                return response;
+            }
+            Response response = new Response(ResponseCode.CONTENT);
+            if (path.endsWith("json")) {
+                response.setPayload("{\"temperature\":21.5,\"unit\":\"" + request.getOptions().getUriQueryString() + "\"}");
+                response.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_JSON);
+                response.getOptions().addETag(new byte[]{1, 2, 3, 4});
+                response.getOptions().setMaxAge(30);
+            } else if (path.endsWith("large")) {
+                // larger than a block, so the response is transferred blockwise
+                response.setPayload(large);
+                response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+            } else {
+                response.setPayload("ok".getBytes(StandardCharsets.UTF_8));
+                response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+            }
+            return response;
+        }
+
+        @Override
+        public void deliverResponse(Exchange exchange, Response response) {
+            exchange.getRequest().setResponse(response);
+        }
+    }
+}
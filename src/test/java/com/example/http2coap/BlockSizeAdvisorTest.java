@@ -0,0 +1,80 @@
+package com.example.http2coap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockSizeAdvisorTest {
+
+    private static final String PEER = "/10.0.0.1:5683";
+
+    private static void window(BlockSizeAdvisor advisor, int lost) {
+        for (int i = 0; i < 4; i++) {
+            advisor.onTransmission(PEER, i < lost);
+        }
+    }
+
+    @Test
+    public void waitsForTheDeviceToUseBlocks() {
+        BlockSizeAdvisor advisor = new BlockSizeAdvisor(64, 1024, 4, 0.25);
+        window(advisor, 0);
+        assertEquals(-1, advisor.advise(PEER));
+
+        advisor.onBlock(PEER, -1, 5);
+        assertEquals(5, advisor.advise(PEER));
+    }
+
+    @Test
+    public void keepsStateOnlyForDevicesUsingBlocks() {
+        BlockSizeAdvisor advisor = new BlockSizeAdvisor(64, 1024, 4, 0.25);
+        for (int i = 0; i < 100; i++) {
+            advisor.onTransmission("/10.0.1." + i + ":5683", false);
+        }
+        assertEquals(0, advisor.peers());
+
+        advisor.onBlock(PEER, -1, 5);
+        assertEquals(0, advisor.evictIdle(System.currentTimeMillis()));
+        assertEquals(1, advisor.peers());
+        assertEquals(1, advisor.evictIdle(System.currentTimeMillis() + BlockSizeAdvisor.IDLE_MILLIS));
+        assertEquals(-1, advisor.advise(PEER));
+    }
+
+    @Test
+    public void halvesOnLossAndGrowsAdditively() {
+        BlockSizeAdvisor advisor = new BlockSizeAdvisor(64, 1024, 4, 0.25);
+        advisor.onBlock(PEER, -1, 6);
+
+        // one lost request in four is within the threshold
+        window(advisor, 1);
+        assertEquals(6, advisor.advise(PEER));
+        window(advisor, 2);
+        assertEquals(5, advisor.advise(PEER));
+        window(advisor, 2);
+        assertEquals(4, advisor.advise(PEER));
+
+        // 256 bytes plus 64 per clean window
+        for (int i = 0; i < 3; i++) {
+            window(advisor, 0);
+            assertEquals(4, advisor.advise(PEER));
+        }
+        window(advisor, 0);
+        assertEquals(5, advisor.advise(PEER));
+    }
+
+    @Test
+    public void staysWithinLimits() {
+        BlockSizeAdvisor advisor = new BlockSizeAdvisor(64, 1024, 4, 0.25);
+        advisor.onBlock(PEER, -1, 6);
+        for (int i = 0; i < 10; i++) {
+            window(advisor, 4);
+        }
+        assertEquals(2, advisor.advise(PEER));
+
+        // the device answers with smaller blocks than asked for
+        advisor.onBlock(PEER, 5, 3);
+        for (int i = 0; i < 20; i++) {
+            window(advisor, 0);
+        }
+        assertEquals(3, advisor.advise(PEER));
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.deduplication.Deduplicator;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedDeduplicatorTest {
+
+    private static final byte[] PEER = {10, 0, 0, 1};
+
+    private static KeyMID key(int mid) {
+        return new KeyMID(mid, PEER, 5683);
+    }
+
+    private static Exchange exchange() {
+        return new Exchange(new Request(Code.GET), Origin.REMOTE);
+    }
+
+    @Test
+    public void detectsDuplicates() {
+        BoundedDeduplicator deduplicator = new BoundedDeduplicator(16, 10000, 1000);
+        Exchange first = exchange();
+
+        assertNull(deduplicator.findPrevious(key(1), first));
+        assertSame(first, deduplicator.findPrevious(key(1), exchange()));
+        assertSame(first, deduplicator.find(key(1)));
+        assertNull(deduplicator.find(new KeyMID(1, PEER, 5684)));
+        assertEquals(1, deduplicator.size());
+        assertEquals(1, deduplicator.getDuplicates());
+    }
+
+    @Test
+    public void tellsIpv6SourcesWithCollidingHashesApart() {
+        byte[] first = new byte[16];
+        byte[] second = new byte[16];
+        first[0] = second[0] = (byte) 0x20;
+        first[15] = 31;
+        second[14] = 1;
+        // same Arrays.hashCode, so the same packed key
+        assertEquals(Arrays.hashCode(first), Arrays.hashCode(second));
+        assertEquals(BoundedDeduplicator.MidKeys.pack(7, first, 5683), BoundedDeduplicator.MidKeys.pack(7, second, 5683));
+
+        BoundedDeduplicator deduplicator = new BoundedDeduplicator(16, 10000, 1000);
+        Exchange fromFirst = exchange();
+        Exchange fromSecond = exchange();
+        assertNull(deduplicator.findPrevious(new KeyMID(7, first, 5683), fromFirst));
+        assertNull(deduplicator.findPrevious(new KeyMID(7, second, 5683), fromSecond));
+
+        assertSame(fromFirst, deduplicator.find(new KeyMID(7, first, 5683)));
+        assertSame(fromSecond, deduplicator.find(new KeyMID(7, second, 5683)));
+        assertEquals(0, deduplicator.getDuplicates());
+
+        // both expire, the index stays consistent
+        for (int tick = 0; tick < 11; tick++) {
+            deduplicator.advance();
+        }
+        assertEquals(0, deduplicator.size());
+    }
+
+    @Test
+    public void expiresAfterLifetime() {
+        BoundedDeduplicator deduplicator = new BoundedDeduplicator(16, 2000, 1000);
+        deduplicator.findPrevious(key(1), exchange());
+
+        deduplicator.advance();
+        deduplicator.advance();
+        assertTrue(deduplicator.find(key(1)) != null);
+
+        deduplicator.advance();
+        assertNull(deduplicator.find(key(1)));
+        assertEquals(0, deduplicator.size());
+    }
+
+    @Test
+    public void evictsOldestWhenFull() {
+        BoundedDeduplicator deduplicator = new BoundedDeduplicator(2, 10000, 1000);
+        deduplicator.findPrevious(key(1), exchange());
+        deduplicator.advance();
+        deduplicator.findPrevious(key(2), exchange());
+        assertFalse(deduplicator.isOverloaded());
+
+        deduplicator.findPrevious(key(3), exchange());
+
+        // a full store is no overload by itself
+        assertFalse(deduplicator.isOverloaded());
+        assertEquals(1, deduplicator.getEvictions());
+        assertNull(deduplicator.find(key(1)));
+        assertTrue(deduplicator.find(key(2)) != null);
+        assertTrue(deduplicator.find(key(3)) != null);
+    }
+
+    @Test
+    public void reportsOverloadByRateWithHysteresis() {
+        // 5 s window of 1 s ticks, at most 100 new message IDs per second
+        BoundedDeduplicator deduplicator = new BoundedDeduplicator(100000, 60000, 1000, 100);
+        int mid = 0;
+        for (int tick = 0; tick < 5; tick++) {
+            for (int i = 0; i < 101; i++) {
+                deduplicator.findPrevious(key(mid++), exchange());
+            }
+            deduplicator.advance();
+        }
+        assertTrue(deduplicator.isOverloaded());
+
+        // 95/s is below the maximum but above the low-water mark
+        for (int tick = 0; tick < 5; tick++) {
+            for (int i = 0; i < 95; i++) {
+                deduplicator.findPrevious(key(mid++), exchange());
+            }
+            deduplicator.advance();
+        }
+        assertTrue(deduplicator.isOverloaded());
+
+        for (int tick = 0; tick < 5; tick++) {
+            deduplicator.advance();
+        }
+        assertFalse(deduplicator.isOverloaded());
+        assertEquals(0, deduplicator.getRate(), 0);
+    }
+
+    @Test
+    public void keepsRemainingEntriesReachable() {
+        BoundedDeduplicator deduplicator = new BoundedDeduplicator(4096, 3000, 1000);
+        for (int mid = 0; mid < 3000; mid++) {
+            deduplicator.findPrevious(key(mid), exchange());
+            if (mid % 1000 == 999) {
+                deduplicator.advance();
+            }
+        }
+        // drops the first thousand message IDs
+        deduplicator.advance();
+
+        assertEquals(2000, deduplicator.size());
+        for (int mid = 0; mid < 3000; mid++) {
+            assertEquals("mid " + mid, mid >= 1000, deduplicator.find(key(mid)) != null);
+        }
+    }
+
+    @Test
+    public void tracksDeduplicatorsWhileTheirEndpointRuns() {
+        NetworkConfig config = new NetworkConfig();
+        config.setString(NetworkConfig.Keys.DEDUPLICATOR, BoundedDeduplicatorFactory.DEDUPLICATOR_BOUNDED);
+        config.setInt(BoundedDeduplicatorFactory.MAX_ENTRIES, 16);
+        Deduplicator deduplicator = new BoundedDeduplicatorFactory().createDeduplicator(config);
+        assertFalse(BoundedDeduplicatorFactory.getDeduplicators().contains(deduplicator));
+
+        deduplicator.start();
+        assertTrue(BoundedDeduplicatorFactory.getDeduplicators().contains(deduplicator));
+
+        // a destroyed endpoint stops its deduplicator
+        deduplicator.stop();
+        assertFalse(BoundedDeduplicatorFactory.getDeduplicators().contains(deduplicator));
+    }
+}
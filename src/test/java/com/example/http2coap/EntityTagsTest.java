@@ -0,0 +1,71 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EntityTagsTest {
+
+    @Test
+    public void roundTripsCoapEtags() {
+        byte[] etag = {0x00, (byte) 0xFF, 0x10, 0x7A, 0, 0, 0, 1};
+
+        String tag = EntityTags.toHttp(etag);
+
+        assertEquals("\"00ff107a00000001\"", tag);
+        assertArrayEquals(etag, EntityTags.fromHttp(tag).get(0));
+        assertEquals("\"\"", EntityTags.toHttp(new byte[0]));
+    }
+
+    @Test
+    public void parsesTagLists() {
+        List<byte[]> etags = EntityTags.fromHttp("\"0a0b\", W/\"c0\",\"x,y\"");
+
+        assertEquals(3, etags.size());
+        assertArrayEquals(new byte[]{0x0a, 0x0b}, etags.get(0));
+        assertArrayEquals(new byte[]{(byte) 0xc0}, etags.get(1));
+        assertArrayEquals("x,y".getBytes(), etags.get(2));
+        assertNull(EntityTags.decode("longer-than-eight-bytes"));
+    }
+
+    @Test
+    public void translatesIfNoneMatchToEtagOptions() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/proxy/localhost/temp");
+        request.addHeader("If-None-Match", "\"0a0b\", \"0c\"");
+
+        List<Option> options = MyHttpTranslator.getCoapOptions(request);
+
+        assertEquals(2, options.size());
+        assertEquals(OptionNumberRegistry.ETAG, options.get(0).getNumber());
+        assertArrayEquals(new byte[]{0x0a, 0x0b}, options.get(0).getValue());
+        assertArrayEquals(new byte[]{0x0c}, options.get(1).getValue());
+    }
+
+    @Test
+    public void keepsIfNoneMatchWildcard() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/proxy/localhost/temp");
+        request.addHeader("If-None-Match", "*");
+
+        List<Option> options = MyHttpTranslator.getCoapOptions(request);
+
+        assertEquals(1, options.size());
+        assertEquals(OptionNumberRegistry.IF_NONE_MATCH, options.get(0).getNumber());
+        assertEquals(0, options.get(0).getLength());
+    }
+
+    @Test(expected = MyHttpTranslator.UnsupportedConditionException.class)
+    public void refusesTaggedIfNoneMatchOnWrites() throws Exception {
+        // the ETag option is no precondition on a CoAP PUT, the write would be unconditional
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/proxy/localhost/temp");
+        request.addHeader("If-None-Match", "\"0a0b\"");
+
+        MyHttpTranslator.getCoapOptions(request);
+    }
+}
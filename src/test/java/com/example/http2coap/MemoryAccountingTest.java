@@ -0,0 +1,74 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryAccountingTest {
+
+    @Test
+    public void shedsNewEntriesAtTheSoftLimit() {
+        MemoryAccounting.Account account = new MemoryAccounting.Account("test");
+        account.setSoftLimit(100);
+
+        assertTrue(account.tryReserve(1, 60));
+        assertTrue(account.tryReserve(1, 60));
+        assertTrue(account.isOverLimit());
+        assertFalse(account.tryReserve(1, 1));
+        assertEquals(2, account.getEntries());
+        assertEquals(120, account.getBytes());
+        assertEquals(1, account.getShed());
+
+        // entries already held are unaffected, new ones are taken once drained
+        account.release(1, 60);
+        assertFalse(account.isOverLimit());
+        assertTrue(account.tryReserve(1, 10));
+        assertEquals(70, account.getBytes());
+    }
+
+    @Test
+    public void noLimitNeverSheds() {
+        MemoryAccounting.Account account = new MemoryAccounting.Account("test");
+        assertTrue(account.tryReserve(1, Long.MAX_VALUE / 2));
+        assertFalse(account.isOverLimit());
+    }
+
+    @Test
+    public void releasesEvictedSubjects() {
+        long entries = MemoryAccounting.SUBSCRIBERS.getEntries();
+        long bytes = MemoryAccounting.SUBSCRIBERS.getBytes();
+        String resource = "coap://127.0.0.1:5683/evicted";
+        ObServlet.setIdleTimeout(1000);
+        try {
+            ObServlet.restore(resource, "value", "1");
+            ObServlet.onNotification(resource, "next");
+            assertEquals(entries + 1, MemoryAccounting.SUBSCRIBERS.getEntries());
+
+            assertEquals(1, ObServlet.evictIdle(System.currentTimeMillis() + 1000));
+            assertEquals(entries, MemoryAccounting.SUBSCRIBERS.getEntries());
+            assertEquals(bytes, MemoryAccounting.SUBSCRIBERS.getBytes());
+
+            // nobody reads it any more, its notifications are ignored
+            ObServlet.onNotification(resource, "later");
+            assertEquals(null, ObServlet.historyOf(resource));
+            assertEquals(entries, MemoryAccounting.SUBSCRIBERS.getEntries());
+        } finally {
+            ObServlet.setIdleTimeout(0);
+        }
+    }
+
+    @Test
+    public void sizesMessagesByPayloadTokenAndOptions() {
+        Request request = new Request(Code.POST);
+        request.setToken(new byte[]{1, 2, 3, 4});
+        request.setPayload("0123456789");
+        request.getOptions().setUriPath("abc");
+
+        assertEquals(10 + 4 + (3 + 8), MemoryAccounting.sizeOf(request));
+        assertEquals(0, MemoryAccounting.sizeOf(null));
+    }
+}
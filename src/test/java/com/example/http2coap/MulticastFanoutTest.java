@@ -0,0 +1,103 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.serialization.DataParser;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a group of two devices on the loopback interface.
+ */
+public class MulticastFanoutTest {
+
+    private static final String GROUP = "224.0.1.187";
+
+    private final List<MulticastSocket> devices = new ArrayList<MulticastSocket>();
+
+    @After
+    public void closeDevices() {
+        for (MulticastSocket device : devices) {
+            device.close();
+        }
+    }
+
+    private void startDevice(final String name, int port, NetworkInterface lo) throws IOException {
+        final MulticastSocket socket = new MulticastSocket(null);
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(port));
+        socket.joinGroup(new InetSocketAddress(InetAddress.getByName(GROUP), port), lo);
+        devices.add(socket);
+        Thread thread = new Thread(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+            try {
+                while (true) {
+                    packet.setLength(1500);
+                    socket.receive(packet);
+                    Request request = new DataParser(Arrays.copyOf(packet.getData(), packet.getLength())).parseRequest();
+                    Response response = new Response(ResponseCode.CONTENT);
+                    response.setType(Type.NON);
+                    response.setMID((request.getMID() + 1) & 0xFFFF);
+                    response.setToken(request.getToken());
+                    response.setPayload(name + " " + request.getOptions().getUriPathString());
+                    byte[] bytes = new DataSerializer().serializeResponse(response);
+                    socket.send(new DatagramPacket(bytes, bytes.length, packet.getSocketAddress()));
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Test
+    public void collectsResponsesOfAllMembers() throws Exception {
+        NetworkInterface lo = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        MulticastSocket probe = new MulticastSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        startDevice("kitchen", port, lo);
+        startDevice("hall", port, lo);
+
+        Request request = Request.newGet();
+        request.setURI("coap://" + GROUP + ":" + port + "/temp");
+        List<MulticastFanout.Member> members = new MulticastFanout(1, lo, 500, 1000).collect(request, 500);
+
+        assertEquals(2, members.size());
+        Set<String> payloads = new HashSet<String>();
+        for (MulticastFanout.Member member : members) {
+            payloads.add(member.getResponse().getPayloadString());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("kitchen temp", "hall temp")), payloads);
+        assertTrue(MulticastFanout.toJson(members, 500).contains("\"responses\":2"));
+    }
+
+    @Test
+    public void limitsWindow() {
+        MulticastFanout fanout = new MulticastFanout(1, null, 2000, 10000);
+
+        assertEquals(2000, fanout.window(null));
+        assertEquals(300, fanout.window("300"));
+        assertEquals(10000, fanout.window("60000"));
+        assertEquals(2000, fanout.window("soon"));
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NonConfirmableSenderTest {
+
+    private static Request get(String uri) {
+        Request request = new Request(Code.GET);
+        request.getOptions().setProxyUri(uri);
+        return request;
+    }
+
+    @Test
+    public void matchesMarkedReads() {
+        NonConfirmableSender sender = new NonConfirmableSender(Arrays.asList("10.0.0.7:5683/telemetry", " "), 3, 100, 1000);
+
+        assertTrue(sender.matches(get("coap://10.0.0.7:5683/telemetry/temp")));
+        assertFalse(sender.matches(get("coap://10.0.0.7:5683/config")));
+
+        Request post = new Request(Code.POST);
+        post.getOptions().setProxyUri("coap://10.0.0.7:5683/telemetry");
+        assertFalse(sender.matches(post));
+
+        Request observe = get("coap://10.0.0.7:5683/telemetry");
+        observe.setObserve();
+        assertFalse(sender.matches(observe));
+    }
+
+    @Test
+    public void matchesRoutesOnPathSegments() {
+        NonConfirmableSender sender = new NonConfirmableSender(Arrays.asList("10.0.0.7:5683/telemetry"), 3, 100, 1000);
+
+        assertTrue(sender.matches(get("coap://10.0.0.7:5683/telemetry")));
+        assertTrue(sender.matches(get("coap://10.0.0.7:5683/telemetry?unit=c")));
+        assertFalse(sender.matches(get("coap://10.0.0.7:5683/telemetry2")));
+        assertFalse(sender.matches(get("coap://10.0.0.7:5683/telemetry-raw/temp")));
+        // a host route must not cover a longer port
+        NonConfirmableSender host = new NonConfirmableSender(Arrays.asList("10.0.0.7:5683"), 3, 100, 1000);
+        assertTrue(host.matches(get("coap://10.0.0.7:5683/config")));
+        assertFalse(host.matches(get("coap://10.0.0.7:56830/config")));
+    }
+
+    @Test
+    public void matchesRequestsWithoutProxyUriByTheirUri() {
+        NonConfirmableSender sender = new NonConfirmableSender(Arrays.asList("127.0.0.1:61616/telemetry"), 3, 100, 1000);
+
+        Request direct = new Request(Code.GET);
+        direct.setURI("coap://127.0.0.1:61616/telemetry/temp");
+        assertTrue(sender.matches(direct));
+
+        Request other = new Request(Code.GET);
+        other.setURI("coap://127.0.0.1:61616/telemetry2");
+        assertFalse(sender.matches(other));
+    }
+
+    @Test
+    public void retriesUntilAnswered() throws Exception {
+        final AtomicInteger received = new AtomicInteger();
+        CoapServer device = new CoapServer(0);
+        device.add(new CoapResource("telemetry") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+                // the first request is lost
+                if (received.incrementAndGet() > 1) {
+                    exchange.respond("21.5");
+                }
+            }
+        });
+        device.start();
+        CoapEndpoint client = new CoapEndpoint(new InetSocketAddress("127.0.0.1", 0));
+        client.setMessageDeliverer(new EndpointManager.ClientMessageDeliverer());
+        client.start();
+        try {
+            int port = device.getEndpoints().get(0).getAddress().getPort();
+            String uri = "coap://127.0.0.1:" + port + "/telemetry";
+            NonConfirmableSender sender = new NonConfirmableSender(Arrays.asList(uri), 3, 200, 2000);
+
+            Request request = new Request(Code.GET);
+            request.setURI(uri);
+            Response response = sender.send(request, client, TrafficClass.INTERACTIVE);
+
+            assertNotNull(response);
+            assertEquals("21.5", response.getPayloadString());
+            assertEquals(2, received.get());
+            Map<String, Number> metrics = new HashMap<String, Number>();
+            sender.collect(metrics);
+            assertEquals(1L, metrics.get("retries"));
+            assertEquals(0L, metrics.get("failures"));
+        } finally {
+            client.destroy();
+            device.destroy();
+        }
+    }
+
+    @Test
+    public void givesUpAtTheDeadline() throws Exception {
+        CoapServer device = new CoapServer(0);
+        device.add(new CoapResource("silent") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+            }
+        });
+        device.start();
+        CoapEndpoint client = new CoapEndpoint(new InetSocketAddress("127.0.0.1", 0));
+        client.setMessageDeliverer(new EndpointManager.ClientMessageDeliverer());
+        client.start();
+        try {
+            String uri = "coap://127.0.0.1:" + device.getEndpoints().get(0).getAddress().getPort() + "/silent";
+            NonConfirmableSender sender = new NonConfirmableSender(Arrays.asList(uri), 10, 100, 500);
+
+            Request request = new Request(Code.GET);
+            request.setURI(uri);
+            long st = System.currentTimeMillis();
+
+            assertNull(sender.send(request, client, TrafficClass.INTERACTIVE));
+            long elapsed = System.currentTimeMillis() - st;
+            assertTrue("took " + elapsed + " ms", elapsed >= 450 && elapsed < 1500);
+        } finally {
+            client.destroy();
+            device.destroy();
+        }
+    }
+}
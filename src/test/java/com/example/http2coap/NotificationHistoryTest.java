@@ -0,0 +1,81 @@
+package com.example.http2coap;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationHistoryTest {
+
+    private static NotificationHistory filled(int entries, int bytes, int count) {
+        NotificationHistory history = new NotificationHistory(entries, bytes);
+        for (int i = 1; i <= count; i++) {
+            history.append(1000 * i, i, "n" + i);
+        }
+        return history;
+    }
+
+    @Test
+    public void readsTimeRange() {
+        NotificationHistory history = filled(16, 1024, 5);
+
+        List<NotificationHistory.Notification> range = history.range(2000, 4000, 10);
+
+        assertEquals(2, range.size());
+        assertEquals("n2", range.get(0).getData());
+        assertEquals(3, range.get(1).getEtag());
+        assertEquals(3000, range.get(1).getTime());
+        assertEquals(1, history.range(0, Long.MAX_VALUE, 1).size());
+    }
+
+    @Test
+    public void readsSinceEtag() {
+        NotificationHistory history = filled(16, 1024, 5);
+
+        NotificationHistory.Page page = history.since(3, 10);
+
+        assertTrue(page.isComplete());
+        assertEquals(2, page.getNotifications().size());
+        assertEquals("n4", page.getNotifications().get(0).getData());
+        assertEquals("n5", page.getNotifications().get(1).getData());
+    }
+
+    @Test
+    public void allocatesTheRingWithTheFirstNotification() {
+        NotificationHistory history = new NotificationHistory(4, 1024);
+        long empty = history.retainedBytes();
+
+        history.append(1000, 1, "n1");
+
+        assertEquals(empty + 1024, history.retainedBytes());
+        assertTrue(history.since(0, 10).isComplete());
+    }
+
+    @Test
+    public void dropsOldestEntries() {
+        NotificationHistory history = filled(4, 1024, 10);
+
+        assertEquals(4, history.size());
+        assertEquals("n7", history.range(0, Long.MAX_VALUE, 10).get(0).getData());
+        assertTrue(history.since(6, 10).isComplete());
+        assertFalse(history.since(5, 10).isComplete());
+        assertEquals(4, history.since(5, 10).getNotifications().size());
+    }
+
+    @Test
+    public void dropsOverwrittenPayloads() {
+        // payloads of 2 bytes, the ring holds three of them
+        NotificationHistory history = filled(16, 6, 6);
+
+        assertEquals(3, history.size());
+        List<NotificationHistory.Notification> all = history.range(0, Long.MAX_VALUE, 10);
+        assertEquals("n4", all.get(0).getData());
+        assertEquals("n5", all.get(1).getData());
+        assertEquals("n6", all.get(2).getData());
+        assertFalse(history.since(2, 10).isComplete());
+        assertTrue(history.since(3, 10).isComplete());
+    }
+}
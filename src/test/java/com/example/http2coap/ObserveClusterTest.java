@@ -0,0 +1,187 @@
+package com.example.http2coap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ObserveClusterTest {
+
+    private final Map<String, Integer> registrations = new HashMap<String, Integer>();
+    private final Map<String, String> received = new HashMap<String, String>();
+    private final List<String> resources = new ArrayList<String>();
+
+    private LoopbackClusterBus bus;
+
+    private final ObserveCluster.Upstream upstream = new ObserveCluster.Upstream() {
+        @Override
+        public Object observe(String resource, ObserveCluster cluster) {
+            synchronized (registrations) {
+                Integer count = registrations.get(resource);
+                registrations.put(resource, count == null ? 1 : count + 1);
+            }
+            return resource;
+        }
+
+        @Override
+        public void cancel(Object handle) {
+            synchronized (registrations) {
+                registrations.put((String) handle, registrations.get(handle) - 1);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        bus = new LoopbackClusterBus();
+        for (int i = 0; i < 32; i++) {
+            resources.add("coap://device" + i + "/temperature");
+        }
+    }
+
+    private ObserveCluster node(final String id) {
+        ObserveCluster cluster = new ObserveCluster(id, bus, upstream, new ObserveCluster.NotificationSink() {
+            @Override
+            public void onNotification(String resource, String payload) {
+                received.put(id + " " + resource, payload);
+            }
+        });
+        cluster.join();
+        return cluster;
+    }
+
+    private void assertObservedOnce() {
+        for (String resource : resources) {
+            assertEquals(resource, Integer.valueOf(1), registrations.get(resource));
+        }
+    }
+
+    @Test
+    public void observesEachResourceOnce() {
+        ObserveCluster a = node("a");
+        ObserveCluster b = node("b");
+        ObserveCluster c = node("c");
+        for (int i = 0; i < resources.size(); i++) {
+            // clients of the same resource on different nodes
+            a.interest(resources.get(i));
+            (i % 2 == 0 ? b : c).interest(resources.get(i));
+        }
+
+        assertObservedOnce();
+        int spread = 0;
+        for (ObserveCluster node : new ObserveCluster[]{a, b, c}) {
+            for (String resource : resources) {
+                assertEquals(node.isObserving(resource), node.getNodeId().equals(node.ownerOf(resource)));
+                assertEquals(a.ownerOf(resource), node.ownerOf(resource));
+            }
+            spread += node.isObserving(resources.get(0)) ? 1 : 0;
+        }
+        assertEquals(1, spread);
+    }
+
+    @Test
+    public void movesOwnershipWhenOwnerLeaves() {
+        ObserveCluster a = node("a");
+        ObserveCluster b = node("b");
+        for (String resource : resources) {
+            b.interest(resource);
+        }
+        boolean aOwnedSome = false;
+        for (String resource : resources) {
+            aOwnedSome |= a.isObserving(resource);
+        }
+        assertTrue(aOwnedSome);
+
+        a.leave();
+
+        assertObservedOnce();
+        for (String resource : resources) {
+            assertTrue(b.isObserving(resource));
+        }
+    }
+
+    @Test
+    public void detectsSilentNodes() {
+        ObserveCluster a = new ObserveCluster("a", bus, upstream, (resource, payload) -> { });
+        a.start(1000);
+        try {
+            ObserveCluster b = node("b");
+            for (String resource : resources) {
+                b.interest(resource);
+            }
+            assertEquals(2, a.getMembers().size());
+
+            bus.unsubscribe(b);
+            a.heartbeat(System.currentTimeMillis() + 10000);
+
+            assertEquals(1, a.getMembers().size());
+            for (String resource : resources) {
+                assertTrue(a.isObserving(resource));
+            }
+        } finally {
+            a.stop();
+        }
+    }
+
+    @Test
+    public void cancelsObservationsNobodyIsInterestedIn() {
+        ObserveCluster a = node("a");
+        ObserveCluster b = node("b");
+        for (String resource : resources) {
+            a.interest(resource);
+            b.interest(resource);
+        }
+
+        // b still has clients
+        for (String resource : resources) {
+            a.withdraw(resource);
+        }
+        assertObservedOnce();
+
+        for (String resource : resources) {
+            b.withdraw(resource);
+        }
+        for (String resource : resources) {
+            assertEquals(resource, Integer.valueOf(0), registrations.get(resource));
+            assertFalse(a.isInterested(resource));
+            assertFalse(b.isObserving(resource) || a.isObserving(resource));
+        }
+    }
+
+    @Test
+    public void forgetsInterestsOfNodesThatLeft() {
+        ObserveCluster a = node("a");
+        ObserveCluster b = node("b");
+        for (String resource : resources) {
+            b.interest(resource);
+        }
+
+        b.leave();
+
+        for (String resource : resources) {
+            assertEquals(resource, Integer.valueOf(0), registrations.get(resource));
+            assertFalse(a.isInterested(resource));
+        }
+    }
+
+    @Test
+    public void republishesNotificationsToPeers() {
+        ObserveCluster a = node("a");
+        ObserveCluster b = node("b");
+        String resource = resources.get(0);
+        a.interest(resource);
+        ObserveCluster owner = a.getNodeId().equals(a.ownerOf(resource)) ? a : b;
+
+        owner.publishNotification(resource, "21.5");
+
+        assertEquals("21.5", received.get("a " + resource));
+        assertEquals("21.5", received.get("b " + resource));
+    }
+}
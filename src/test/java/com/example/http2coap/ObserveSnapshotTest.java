@@ -0,0 +1,76 @@
+package com.example.http2coap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ObserveSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ObserveSnapshot.Entry upstream(String resource, String value) {
+        return new ObserveSnapshot.Entry(ObserveSnapshot.Kind.UPSTREAM, resource, new byte[]{1, 2}, null, "42", value);
+    }
+
+    @Test
+    public void restoresLatestGeneration() throws Exception {
+        File file = folder.newFile("observe.snapshot");
+        ObserveSnapshot snapshot = new ObserveSnapshot(file, 1024);
+        snapshot.write(Collections.singletonList(upstream("coap://a/temp", "20")));
+        InetSocketAddress client = new InetSocketAddress(InetAddress.getByName("10.0.0.7"), 40000);
+        snapshot.write(Arrays.asList(upstream("coap://a/temp", "21"),
+                new ObserveSnapshot.Entry(ObserveSnapshot.Kind.RELATION, "/test", new byte[]{9}, client, null, null)));
+        snapshot.close();
+
+        List<ObserveSnapshot.Entry> entries = new ObserveSnapshot(file, 1024).read();
+
+        assertEquals(2, entries.size());
+        assertEquals("21", entries.get(0).getValue());
+        assertEquals("42", entries.get(0).getEtag());
+        assertArrayEquals(new byte[]{1, 2}, entries.get(0).getToken());
+        assertNull(entries.get(0).getPeer());
+        assertEquals(ObserveSnapshot.Kind.RELATION, entries.get(1).getKind());
+        assertEquals(client, entries.get(1).getPeer());
+        assertNull(entries.get(1).getValue());
+    }
+
+    @Test
+    public void fallsBackToPreviousGenerationWhenCorrupted() throws Exception {
+        File file = folder.newFile("observe.snapshot");
+        ObserveSnapshot snapshot = new ObserveSnapshot(file, 1024);
+        snapshot.write(Collections.singletonList(upstream("coap://a/temp", "20")));
+        snapshot.write(Collections.singletonList(upstream("coap://a/temp", "21")));
+        snapshot.close();
+
+        // the second generation went to the second slot
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(1024 + 30);
+        raf.write(0xFF);
+        raf.close();
+
+        List<ObserveSnapshot.Entry> entries = new ObserveSnapshot(file, 1024).read();
+        assertEquals(1, entries.size());
+        assertEquals("20", entries.get(0).getValue());
+    }
+
+    @Test
+    public void dropsEntriesThatDoNotFit() throws Exception {
+        ObserveSnapshot snapshot = new ObserveSnapshot(folder.newFile("observe.snapshot"), 84);
+        snapshot.write(Arrays.asList(upstream("coap://a/1", "x"), upstream("coap://a/2", "x"), upstream("coap://a/3", "x")));
+
+        assertEquals(2, snapshot.read().size());
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.elements.RawData;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityOutboundQueueTest {
+
+    @Test
+    public void dropsDatagramsBeyondTheCapacityOfAClass() {
+        PriorityOutboundQueue queue = new PriorityOutboundQueue(2);
+        assertTrue(queue.offer(datagram(), TrafficClass.BACKGROUND));
+        assertTrue(queue.offer(datagram(), TrafficClass.BACKGROUND));
+        assertFalse(queue.offer(datagram(), TrafficClass.BACKGROUND));
+        // the other classes have their own room
+        assertTrue(queue.offer(datagram(), TrafficClass.INTERACTIVE));
+
+        Map<String, Number> metrics = new HashMap<>();
+        queue.collect(metrics);
+        assertEquals(3, queue.size());
+        assertEquals(1L, metrics.get("background.dropped"));
+        assertEquals(0L, metrics.get("interactive.dropped"));
+    }
+
+    private static RawData datagram() {
+        return new RawData(new byte[] {0x50, 0x01, 0, 1}, InetAddress.getLoopbackAddress(), 5683);
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.proxy.resources.ForwardingResource;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ProxyMessageDelivererTest {
+
+    private final List<CoapServer> servers = new ArrayList<CoapServer>();
+    private final List<Endpoint> clients = new ArrayList<Endpoint>();
+
+    @After
+    public void stop() {
+        for (CoapServer server : servers) {
+            server.destroy();
+        }
+        for (Endpoint client : clients) {
+            client.destroy();
+        }
+    }
+
+    @Test
+    public void restoredRelationNotifiesTheClient() throws Exception {
+        Gateway before = new Gateway(0, "before");
+        int port = before.port();
+
+        Endpoint client = client();
+        BlockingQueue<Response> notifications = new LinkedBlockingQueue<Response>();
+        Request observe = Request.newGet();
+        observe.setURI("coap://127.0.0.1:" + port + "/obs");
+        observe.setObserve();
+        observe.addMessageObserver(new MessageObserverAdapter() {
+            @Override
+            public void onResponse(Response response) {
+                notifications.add(response);
+            }
+        });
+        observe.send(client);
+        assertEquals("before", poll(notifications).getPayloadString());
+
+        List<ObserveSnapshot.Entry> snapshot = before.deliverer.snapshotRelations();
+        assertEquals(1, snapshot.size());
+        before.server.destroy();
+
+        // the restarted gateway knows the client only from the snapshot
+        Gateway after = new Gateway(port, "after");
+        assertEquals(1, after.deliverer.restoreRelations(snapshot, after.server.getEndpoints().get(0)));
+        after.resource.changed();
+
+        Response notification = poll(notifications);
+        assertEquals("after", notification.getPayloadString());
+        assertEquals(ResponseCode.CONTENT, notification.getCode());
+    }
+
+    @Test
+    public void releasesRelationsThatEnd() throws Exception {
+        Gateway gateway = new Gateway(0, "value");
+        Endpoint client = client();
+        long entries = MemoryAccounting.RELATIONS.getEntries();
+        long bytes = MemoryAccounting.RELATIONS.getBytes();
+
+        // the forwarding resources never establish a relation
+        Request proxied = Request.newGet();
+        proxied.setURI("coap://127.0.0.1:" + gateway.port());
+        proxied.getOptions().setProxyUri("coap://127.0.0.1:1/unreachable");
+        proxied.setObserve();
+        proxied.send(client);
+        assertNotNull(proxied.waitForResponse(5000));
+        awaitReleased(gateway, entries, bytes);
+
+        // the client forgets the observation and answers the next notification with RST
+        BlockingQueue<Response> notifications = new LinkedBlockingQueue<Response>();
+        Request observe = Request.newGet();
+        observe.setURI("coap://127.0.0.1:" + gateway.port() + "/obs");
+        observe.setObserve();
+        observe.addMessageObserver(new MessageObserverAdapter() {
+            @Override
+            public void onResponse(Response response) {
+                notifications.add(response);
+            }
+        });
+        observe.send(client);
+        poll(notifications);
+        assertEquals(1, gateway.deliverer.trackedRelations());
+        assertEquals(entries + 1, MemoryAccounting.RELATIONS.getEntries());
+
+        observe.cancel();
+        gateway.resource.changed();
+        awaitReleased(gateway, entries, bytes);
+    }
+
+    private static void awaitReleased(Gateway gateway, long entries, long bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (gateway.deliverer.trackedRelations() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, gateway.deliverer.trackedRelations());
+        assertEquals(entries, MemoryAccounting.RELATIONS.getEntries());
+        assertEquals(bytes, MemoryAccounting.RELATIONS.getBytes());
+    }
+
+    private Endpoint client() throws Exception {
+        CoapEndpoint client = new CoapEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client.setMessageDeliverer(new EndpointManager.ClientMessageDeliverer());
+        client.start();
+        clients.add(client);
+        return client;
+    }
+
+    private static Response poll(BlockingQueue<Response> responses) throws InterruptedException {
+        Response response = responses.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no response", response);
+        return response;
+    }
+
+    /**
+     * A gateway with one observable local resource.
+     */
+    private final class Gateway {
+
+        private final CoapServer server = new CoapServer();
+        private final ProxyMessageDeliverer deliverer;
+        private final Observable resource;
+
+        Gateway(int port, String payload) {
+            server.addEndpoint(new CoapEndpoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+            resource = new Observable(payload);
+            server.add(resource);
+            deliverer = new ProxyMessageDeliverer(server.getRoot(), new Unreachable("coap2coap"), new Unreachable("coap2http"));
+            server.setMessageDeliverer(deliverer);
+            server.start();
+            servers.add(server);
+        }
+
+        int port() {
+            return server.getEndpoints().get(0).getAddress().getPort();
+        }
+    }
+
+    private static final class Observable extends CoapResource {
+
+        private final String payload;
+
+        Observable(String payload) {
+            super("obs");
+            this.payload = payload;
+            setObservable(true);
+        }
+
+        @Override
+        public void handleGET(CoapExchange exchange) {
+            exchange.respond(payload);
+        }
+    }
+
+    private static final class Unreachable extends ForwardingResource {
+
+        Unreachable(String name) {
+            super(name);
+        }
+
+        @Override
+        public Response forwardRequest(Request incomingRequest) {
+            return new Response(ResponseCode.BAD_GATEWAY);
+        }
+    }
+}
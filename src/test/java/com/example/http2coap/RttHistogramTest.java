@@ -0,0 +1,37 @@
+package com.example.http2coap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RttHistogramTest {
+
+    @Test
+    public void reportsBucketUpperBounds() {
+        RttHistogram histogram = new RttHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3);
+        }
+        histogram.record(700);
+        histogram.record(700);
+
+        assertEquals(100, histogram.count());
+        assertEquals(4, histogram.percentile(0.5));
+        assertEquals(1024, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void computesPercentilesOfWindow() {
+        RttHistogram histogram = new RttHistogram();
+        histogram.record(5000);
+        long[] before = histogram.counts();
+        histogram.record(0);
+
+        long[] window = histogram.counts();
+        for (int i = 0; i < window.length; i++) {
+            window[i] -= before[i];
+        }
+        assertEquals(1, RttHistogram.percentile(window, 0.99));
+        assertEquals(0, RttHistogram.percentile(new long[window.length], 0.99));
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Repeatable startup benchmark. Every run forks a fresh gateway JVM and
+ * reports the time from process launch to the first successful proxied
+ * request against a local CoAP device.
+ * <p>
+ * Not a unit test; run it from the IDE or with
+ * {@code mvn test-compile exec:java -Dexec.mainClass=com.example.http2coap.StartupBenchmark -Dexec.classpathScope=test}.
+ * Options: {@code -Dbench.runs=5 -Dbench.profile=fast -Dbench.timeout=60000}.
+ */
+public class StartupBenchmark {
+
+    private static final int RUNS = Integer.getInteger("bench.runs", 5);
+    private static final String PROFILE = System.getProperty("bench.profile", "fast");
+    private static final long TIMEOUT = Long.getLong("bench.timeout", 60000L);
+
+    public static void main(String[] args) throws Exception {
+        trustLocalCertificate();
+
+        CoapServer device = new CoapServer(0);
+        device.add(new CoapResource("bench") {
+            @Override
+            public void handleGET(CoapExchange exchange) {
+                exchange.respond("ok");
+            }
+        });
+        device.start();
+        int devicePort = device.getEndpoints().get(0).getAddress().getPort();
+
+        List<Long> results = new ArrayList<Long>();
+        try {
+            for (int run = 1; run <= RUNS; run++) {
+                long millis = measure(devicePort);
+                results.add(millis);
+                System.out.println(String.format("run %d: first proxied response after %d ms", run, millis));
+            }
+        } finally {
+            device.destroy();
+        }
+
+        Collections.sort(results);
+        System.out.println(String.format("profile=%s runs=%d min=%d ms median=%d ms max=%d ms",
+                PROFILE, results.size(), results.get(0), results.get(results.size() / 2), results.get(results.size() - 1)));
+    }
+
+    private static long measure(int devicePort) throws Exception {
+        int httpPort = freeTcpPort();
+        int coapPort = freeUdpPort();
+
+        List<String> command = new ArrayList<String>(Arrays.asList(
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                "-cp", System.getProperty("java.class.path"),
+                Http2coapApplication.class.getName(),
+                "--server.port=" + httpPort,
+                "--coapserver.port=" + coapPort));
+        if (!PROFILE.isEmpty()) {
+            command.add("--spring.profiles.active=" + PROFILE);
+        }
+
+        URL url = new URL("https://localhost:" + httpPort + "/proxy/localhost:" + devicePort + "/bench");
+        long st = System.nanoTime();
+        Process gateway = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(new File("target/startup-bench.log")).start();
+        try {
+            while (System.nanoTime() - st < TIMEOUT * 1000000L) {
+                if (isProxied(url)) {
+                    return (System.nanoTime() - st) / 1000000L;
+                }
+                Thread.sleep(10);
+            }
+            throw new IllegalStateException("gateway did not serve a proxied request within " + TIMEOUT + " ms");
+        } finally {
+            gateway.destroy();
+            gateway.waitFor();
+        }
+    }
+
+    private static boolean isProxied(URL url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(200);
+            connection.setReadTimeout(5000);
+            try {
+                return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException e) {
+            // listener not up yet
+            return false;
+        }
+    }
+
+    private static int freeTcpPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static int freeUdpPort() throws IOException {
+        DatagramSocket socket = new DatagramSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * The gateway uses the self-signed keystore.jks, accept it for localhost.
+     */
+    static void trustLocalCertificate() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+        HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> "localhost".equals(hostname));
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.serialization.DataParser;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TcpFramesTest {
+
+    private static final byte[] TOKEN = {1, 2, 3, 4};
+
+    @Test
+    public void encodesLengthsOfRfc8323() throws Exception {
+        int[][] cases = {{0, 0x00, 0}, {12, 0xC0, 0}, {13, 0xD0, 1}, {268, 0xD0, 1}, {269, 0xE0, 2}, {65804, 0xE0, 2}, {65805, 0xF0, 4}};
+        for (int[] c : cases) {
+            byte[] body = new byte[c[0]];
+            Arrays.fill(body, (byte) 7);
+            byte[] frame = TcpFrames.encode(0x45, TOKEN, body, false);
+
+            assertEquals("length " + c[0], c[1] | TOKEN.length, frame[0] & 0xFF);
+            assertEquals(1 + c[2] + 1 + TOKEN.length + c[0], frame.length);
+
+            TcpFrames.Frame read = TcpFrames.read(new ByteArrayInputStream(frame), 1 << 20);
+            assertEquals(0x45, read.code);
+            assertArrayEquals(TOKEN, read.token);
+            assertArrayEquals(body, read.body);
+        }
+    }
+
+    @Test
+    public void framesWebSocketMessagesWithoutLength() throws Exception {
+        byte[] frame = TcpFrames.encode(0x45, TOKEN, new byte[300], true);
+
+        assertEquals(TOKEN.length, frame[0]);
+        assertEquals(2 + TOKEN.length + 300, frame.length);
+        TcpFrames.Frame decoded = TcpFrames.decode(frame);
+        assertEquals(0x45, decoded.code);
+        assertEquals(300, decoded.body.length);
+    }
+
+    @Test
+    public void encodesSignals() throws Exception {
+        byte[] csm = TcpFrames.signal(TcpFrames.CSM, new byte[0], TcpFrames.MAX_MESSAGE_SIZE, 1152, false);
+
+        // Len 3, TKL 0, 7.01, option 2 of 2 bytes: 0x0480
+        assertArrayEquals(new byte[]{0x30, (byte) 0xE1, 0x22, 0x04, (byte) 0x80}, csm);
+        assertTrue(TcpFrames.read(new ByteArrayInputStream(csm), 1024).isSignal());
+        assertArrayEquals(new byte[]{0x00, (byte) 0xE2}, TcpFrames.signal(TcpFrames.PING, new byte[0], 0, 0, false));
+    }
+
+    @Test
+    public void reframesRequestsAndResponses() throws Exception {
+        Request request = new Request(Code.GET);
+        request.setURI("coap://127.0.0.1/sensors/temp?unit=C");
+        request.setToken(TOKEN);
+
+        TcpFrames.Frame frame = TcpFrames.read(new ByteArrayInputStream(TcpFrames.encode(request, false)), 1024);
+        Request parsed = parseRequest(frame);
+
+        assertEquals(Code.GET, parsed.getCode());
+        assertEquals("sensors/temp", parsed.getOptions().getUriPathString());
+        assertEquals("unit=C", parsed.getOptions().getUriQueryString());
+        assertArrayEquals(TOKEN, parsed.getToken());
+
+        byte[] reply = TcpFrames.encode(ResponseCode.CONTENT.value, TOKEN, new byte[]{(byte) 0xFF, '2', '1'}, false);
+        Response response = TcpFrames.read(new ByteArrayInputStream(reply), 1024).toResponse();
+        assertEquals(ResponseCode.CONTENT, response.getCode());
+        assertEquals("21", response.getPayloadString());
+    }
+
+    @Test
+    public void endsAtStreamEnd() throws Exception {
+        assertNull(TcpFrames.read(new ByteArrayInputStream(new byte[0]), 1024));
+    }
+
+    @Test
+    public void exchangesOverLoopbackTcp() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread device = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                out.write(TcpFrames.signal(TcpFrames.CSM, new byte[0], 0, 0, false));
+                TcpFrames.Frame frame;
+                while ((frame = TcpFrames.read(in, 1 << 20)) != null) {
+                    if (frame.isSignal()) {
+                        if (frame.code == TcpFrames.PING) {
+                            out.write(TcpFrames.signal(TcpFrames.PONG, frame.token, 0, 0, false));
+                        }
+                        continue;
+                    }
+                    byte[] path = parseRequest(frame).getOptions().getUriPathString().getBytes("UTF-8");
+                    byte[] payload = new byte[1 + path.length];
+                    payload[0] = (byte) 0xFF;
+                    System.arraycopy(path, 0, payload, 1, path.length);
+                    out.write(TcpFrames.encode(ResponseCode.CONTENT.value, frame.token, payload, false));
+                }
+            } catch (Exception e) {
+                // test ended
+            }
+        });
+        device.setDaemon(true);
+        device.start();
+
+        CoapTcpTransport transport = new CoapTcpTransport(1000, 2000, 1, 8, 60000, 10000);
+        try {
+            String base = "coap+tcp://127.0.0.1:" + server.getLocalPort();
+            for (String path : new String[]{"a", "b/c"}) {
+                Request request = new Request(Code.GET);
+                Response response = transport.send(request, base + "/" + path);
+
+                assertEquals(ResponseCode.CONTENT, response.getCode());
+                assertEquals(path, response.getPayloadString());
+                assertEquals(server.getLocalPort(), request.getDestinationPort());
+            }
+
+            // answered pings keep the connection alive, but do not keep it in use
+            long now = System.currentTimeMillis();
+            for (long at = now + 20000; at < now + 60000; at += 20000) {
+                transport.maintain(at);
+                Thread.sleep(100);
+                assertEquals(1, metrics(transport).get("connections.open").intValue());
+            }
+            transport.maintain(now + 60000);
+            assertEquals(0, metrics(transport).get("connections.open").intValue());
+            assertEquals(0, metrics(transport).get("destinations").intValue());
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void failsFastAfterAConnectFailure() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        String uri = "coap+tcp://127.0.0.1:" + closed.getLocalPort() + "/a";
+        closed.close();
+
+        CoapTcpTransport transport = new CoapTcpTransport(10000, 2000, 1, 8, 60000, 10000);
+        try {
+            try {
+                transport.send(new Request(Code.GET), uri);
+                fail("connected to a closed port");
+            } catch (IOException e) {
+                // refused
+            }
+            try {
+                transport.send(new Request(Code.GET), uri);
+                fail("connected to a closed port");
+            } catch (IOException e) {
+                // the first failure, not another attempt
+                assertTrue(e.getMessage().startsWith("recent connect"));
+            }
+            transport.maintain(System.currentTimeMillis());
+            assertEquals(1, metrics(transport).get("destinations").intValue());
+        } finally {
+            transport.close();
+        }
+    }
+
+    private static Map<String, Number> metrics(CoapTcpTransport transport) {
+        Map<String, Number> metrics = new HashMap<String, Number>();
+        transport.collect(metrics);
+        return metrics;
+    }
+
+    private static Request parseRequest(TcpFrames.Frame frame) {
+        byte[] datagram = new byte[4 + frame.token.length + frame.body.length];
+        datagram[0] = (byte) (0x50 | frame.token.length);
+        datagram[1] = (byte) frame.code;
+        System.arraycopy(frame.token, 0, datagram, 4, frame.token.length);
+        System.arraycopy(frame.body, 0, datagram, 4 + frame.token.length, frame.body.length);
+        return new DataParser(datagram).parseRequest();
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.http2coap;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void admitsBurstThenLimits() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(2, 3, 4, 100);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("client", 0));
+        }
+        long wait = limiter.tryAcquire("client", 0);
+        assertTrue(wait + " ns", Math.abs(wait - SECOND / 2) <= 1);
+
+        // other keys have their own bucket
+        assertEquals(0, limiter.tryAcquire("other", 0));
+
+        // two tokens after one second
+        assertEquals(0, limiter.tryAcquire("client", SECOND));
+        assertEquals(0, limiter.tryAcquire("client", SECOND));
+        assertTrue(limiter.tryAcquire("client", SECOND) > 0);
+    }
+
+    @Test
+    public void evictsRefilledBuckets() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, 10, 1, 100);
+        for (int i = 0; i < 50; i++) {
+            limiter.tryAcquire("client" + i, 0);
+        }
+        assertEquals(50, limiter.size());
+
+        // each acquire drops up to two idle buckets
+        for (int i = 0; i < 30; i++) {
+            limiter.tryAcquire("late" + i, 10 * SECOND);
+        }
+        assertEquals(30, limiter.size());
+    }
+
+    @Test
+    public void capsKeysPerStripe() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 1, 1, 10);
+        for (int i = 0; i < 1000; i++) {
+            limiter.tryAcquire("client" + i, 0);
+        }
+        assertEquals(10, limiter.size());
+    }
+
+    @Test
+    public void extractsDestination() {
+        assertEquals("10.0.0.1:5683", RateLimitFilter.destinationOf("/proxy/10.0.0.1:5683/temp"));
+        assertEquals("sensor", RateLimitFilter.destinationOf("/proxy-ob/coap://Sensor/temp"));
+        assertNull(RateLimitFilter.destinationOf("/metrics"));
+        // observed state is served without asking the device
+        assertTrue(RateLimitFilter.reachesDevice("/proxy/10.0.0.1:5683/temp"));
+        assertFalse(RateLimitFilter.reachesDevice("/proxy-ob/coap://Sensor/temp"));
+    }
+}
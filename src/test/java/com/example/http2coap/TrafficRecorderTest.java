@@ -0,0 +1,49 @@
+package com.example.http2coap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrafficRecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static TrafficRecord record(int i) throws Exception {
+        return new TrafficRecord(TrafficRecord.Source.HTTP, 1000L + i, i,
+                new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 5683), new byte[]{(byte) i, 1, 2, 3}, new byte[]{9});
+    }
+
+    @Test
+    public void rotatesSegmentsAndKeepsNewest() throws Exception {
+        File directory = folder.newFolder("recordings");
+        // a record takes 37 bytes, two fit into a segment
+        TrafficRecorder recorder = new TrafficRecorder(directory, 80, 2, 16);
+        for (int i = 0; i < 7; i++) {
+            recorder.offer(record(i));
+        }
+        recorder.close();
+
+        List<File> segments = TrafficRecorder.segments(directory);
+        assertEquals(2, segments.size());
+        List<TrafficRecord> records = new ArrayList<TrafficRecord>();
+        for (File segment : segments) {
+            records.addAll(TrafficRecorder.read(segment));
+        }
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; i++) {
+            TrafficRecord record = records.get(i);
+            assertEquals(1004L + i, record.getTimestamp());
+            assertEquals(4 + i, record.getDurationMicros());
+            assertEquals(5683, record.getPeer().getPort());
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.http2coap;
+
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.MessageDeliverer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a recording of the {@link TrafficRecorder} against a running
+ * gateway. Every CoAP device of the recording is simulated by a local
+ * CoapServer that answers with the recorded responses, so the run is
+ * deterministic and independent of the real devices.
+ * <p>
+ * Not a unit test; run it with
+ * {@code mvn test-compile exec:java -Dexec.mainClass=com.example.http2coap.TrafficReplay -Dexec.classpathScope=test -Dexec.args=recordings}.
+ * Options: {@code -Dreplay.speed=1.0} (2.0 replays twice as fast, 0 as
+ * fast as possible), {@code -Dreplay.host=localhost -Dreplay.http=8443
+ * -Dreplay.coap=8848 -Dreplay.threads=32 -Dreplay.timeout=10000}.
+ */
+public class TrafficReplay {
+
+    private static final double SPEED = Double.parseDouble(System.getProperty("replay.speed", "1.0"));
+    private static final String HOST = System.getProperty("replay.host", "localhost");
+    private static final int HTTP_PORT = Integer.getInteger("replay.http", 8443);
+    private static final int COAP_PORT = Integer.getInteger("replay.coap", 8848);
+    private static final int THREADS = Integer.getInteger("replay.threads", 32);
+    private static final long TIMEOUT = Long.getLong("replay.timeout", 10000L);
+
+    private final Map<String, Device> devices = new HashMap<String, Device>();
+    private final Map<TrafficRecord.Source, List<Long>> latencies = new ConcurrentHashMap<TrafficRecord.Source, List<Long>>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args.length > 0 ? args[0] : "recordings");
+        StartupBenchmark.trustLocalCertificate();
+
+        List<TrafficRecord> records = new ArrayList<TrafficRecord>();
+        for (File segment : TrafficRecorder.segments(directory)) {
+            records.addAll(TrafficRecorder.read(segment));
+        }
+        if (records.isEmpty()) {
+            System.out.println("no records in " + directory);
+            return;
+        }
+        records.sort((a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+        new TrafficReplay().run(records);
+    }
+
+    private void run(List<TrafficRecord> records) throws Exception {
+        // learn the responses first, so the devices answer as recorded
+        for (TrafficRecord record : records) {
+            String authority = authorityOf(record);
+            if (authority != null) {
+                device(authority).learn(record.parseRequest(), record.parseResponse());
+            }
+        }
+        for (Device device : devices.values()) {
+            device.server.start();
+        }
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(THREADS);
+        final CountDownLatch done = new CountDownLatch(records.size());
+        long first = records.get(0).getTimestamp();
+        long st = System.nanoTime();
+        for (final TrafficRecord record : records) {
+            long delay = SPEED <= 0 ? 0 : (long) ((record.getTimestamp() - first) / SPEED);
+            executor.schedule(() -> {
+                try {
+                    replay(record);
+                } finally {
+                    done.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        done.await();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - st);
+        executor.shutdown();
+        for (Device device : devices.values()) {
+            device.server.destroy();
+        }
+
+        System.out.println(String.format("replayed %d records in %d ms (speed %s), %d devices, %d failed, %d skipped",
+                records.size(), elapsed, SPEED, devices.size(), failures.get(), skipped.get()));
+        for (Map.Entry<TrafficRecord.Source, List<Long>> source : latencies.entrySet()) {
+            List<Long> values = new ArrayList<Long>(source.getValue());
+            Collections.sort(values);
+            System.out.println(String.format("%s: %d requests, p50=%.2f ms p99=%.2f ms max=%.2f ms", source.getKey(), values.size(),
+                    values.get(values.size() / 2) / 1000.0,
+                    values.get(Math.min(values.size() - 1, (int) (values.size() * 0.99))) / 1000.0,
+                    values.get(values.size() - 1) / 1000.0));
+        }
+    }
+
+    private void replay(TrafficRecord record) {
+        String authority = authorityOf(record);
+        if (authority == null) {
+            skipped.incrementAndGet();
+            return;
+        }
+        int devicePort = devices.get(authority).port();
+        Request original = record.parseRequest();
+        long st = System.nanoTime();
+        try {
+            boolean answered = record.getSource() == TrafficRecord.Source.HTTP
+                    ? replayHttp(original, devicePort) : replayCoap(original, devicePort);
+            if (!answered) {
+                failures.incrementAndGet();
+                return;
+            }
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            return;
+        }
+        latencies.computeIfAbsent(record.getSource(), s -> Collections.synchronizedList(new ArrayList<Long>()))
+                .add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - st));
+    }
+
+    private static boolean replayHttp(Request original, int devicePort) throws IOException {
+        String query = original.getOptions().getUriQueryString();
+        URL url = new URL("https://" + HOST + ":" + HTTP_PORT + "/proxy/localhost:" + devicePort + "/"
+                + original.getOptions().getUriPathString() + (query.isEmpty() ? "" : "?" + query));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout((int) TIMEOUT);
+        connection.setRequestMethod(original.getCode().name());
+        if (original.getPayloadSize() > 0) {
+            connection.setDoOutput(true);
+            OutputStream out = connection.getOutputStream();
+            out.write(original.getPayload());
+            out.close();
+        }
+        try {
+            return connection.getResponseCode() < 500;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static boolean replayCoap(Request original, int devicePort) throws Exception {
+        URI target = new URI(original.getOptions().getProxyUri());
+        Request request = new Request(original.getCode(), original.getType());
+        request.setOptions(new OptionSet(original.getOptions()));
+        request.setPayload(original.getPayload());
+        request.setURI("coap://" + HOST + ":" + COAP_PORT);
+        request.getOptions().setProxyUri(new URI(target.getScheme(), null, "localhost", devicePort,
+                target.getPath(), target.getQuery(), null).toString());
+        request.send();
+        return request.waitForResponse(TIMEOUT) != null;
+    }
+
+    /**
+     * @return the device a record was sent to, null if it cannot be
+     *         simulated
+     */
+    private static String authorityOf(TrafficRecord record) {
+        Request request = record.parseRequest();
+        if (record.getSource() == TrafficRecord.Source.COAP) {
+            if (!request.getOptions().hasProxyUri()) {
+                return null;
+            }
+            URI uri = URI.create(request.getOptions().getProxyUri());
+            // HTTP origin servers are not simulated
+            return "coap".equals(uri.getScheme()) ? uri.getHost() + ":" + uri.getPort() : null;
+        }
+        return record.getPeer().getAddress().getHostAddress() + ":" + record.getPeer().getPort();
+    }
+
+    private Device device(String authority) {
+        Device device = devices.get(authority);
+        if (device == null) {
+            device = new Device();
+            devices.put(authority, device);
+        }
+        return device;
+    }
+
+    /**
+     * A simulated device answering every request with the responses
+     * recorded for the same method and path, in recorded order.
+     */
+    private static class Device implements MessageDeliverer {
+
+        private final CoapServer server = new CoapServer(0);
+        private final Map<String, Deque<Response>> responses = new HashMap<String, Deque<Response>>();
+
+        Device() {
+            server.setMessageDeliverer(this);
+        }
+
+        int port() {
+            return server.getEndpoints().get(0).getAddress().getPort();
+        }
+
+        void learn(Request request, Response response) {
+            if (response == null) {
+                return;
+            }
+            String key = key(request.getCode(), request.getOptions());
+            Deque<Response> recorded = responses.get(key);
+            if (recorded == null) {
+                recorded = new ArrayDeque<Response>();
+                responses.put(key, recorded);
+            }
+            recorded.add(response);
+        }
+
+        private static String key(Code code, OptionSet options) {
+            String path = options.hasProxyUri() ? URI.create(options.getProxyUri()).getRawPath() : "/" + options.getUriPathString();
+            return code + " " + path;
+        }
+
+        @Override
+        public void deliverRequest(Exchange exchange) {
+            Response recorded;
+            Deque<Response> candidates;
+            synchronized (this) {
+                candidates = responses.get(key(exchange.getRequest().getCode(), exchange.getRequest().getOptions()));
+                if (candidates == null) {
+                    recorded = null;
+                } else {
+                    // cycle through the recorded responses
+                    recorded = candidates.poll();
+                    candidates.add(recorded);
+                }
+            }
+            if (recorded == null) {
+                exchange.sendResponse(new Response(ResponseCode.NOT_FOUND));
+                return;
+            }
+            Response response = new Response(recorded.getCode());
+            response.setOptions(new OptionSet(recorded.getOptions()));
+            response.getOptions().removeObserve();
+            response.setPayload(recorded.getPayload());
+            exchange.sendResponse(response);
+        }
+
+        @Override
+        public void deliverResponse(Exchange exchange, Response response) {
+            exchange.getRequest().setResponse(response);
+        }
+    }
+}